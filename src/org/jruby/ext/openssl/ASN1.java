@@ -28,23 +28,17 @@
 package org.jruby.ext.openssl;
 
 import java.math.BigInteger;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
-import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERBitString;
 import org.bouncycastle.asn1.DERBoolean;
 import org.bouncycastle.asn1.DEREncodableVector;
@@ -53,11 +47,8 @@ import org.bouncycastle.asn1.DERNull;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
-import org.bouncycastle.asn1.DERSet;
-import org.bouncycastle.asn1.DERString;
 import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.asn1.DERUTCTime;
-import org.bouncycastle.asn1.DERUTF8String;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyBignum;
@@ -70,313 +61,329 @@ import org.jruby.RubySymbol;
 import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
+import org.jruby.ext.openssl.impl.ASN1Reader;
+import org.jruby.ext.openssl.impl.OIDTable;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.util.ByteList;
+import org.jruby.util.IOInputStream;
 
 /**
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class ASN1 {
-    private static Map<Ruby, Map<String, DERObjectIdentifier>> SYM_TO_OID = new IdentityHashMap<Ruby, Map<String, DERObjectIdentifier>>();
-    private static Map<Ruby, Map<DERObjectIdentifier, String>> OID_TO_SYM = new IdentityHashMap<Ruby, Map<DERObjectIdentifier, String>>();
-    private static Map<Ruby, Map<DERObjectIdentifier, Integer>> OID_TO_NID = new IdentityHashMap<Ruby, Map<DERObjectIdentifier, Integer>>();
-    private static Map<Ruby, Map<Integer, DERObjectIdentifier>> NID_TO_OID = new IdentityHashMap<Ruby, Map<Integer, DERObjectIdentifier>>();
-    private static Map<Ruby, Map<Integer, String>> NID_TO_SN = new IdentityHashMap<Ruby, Map<Integer, String>>();
-    private static Map<Ruby, Map<Integer, String>> NID_TO_LN = new IdentityHashMap<Ruby, Map<Integer, String>>();
-
-
-    static void addObject(Ruby runtime, int nid, String sn, String ln, String oid) {
-        Map<String, DERObjectIdentifier> s2o = SYM_TO_OID.get(runtime);
-        Map<DERObjectIdentifier, String> o2s = OID_TO_SYM.get(runtime);
-        Map<DERObjectIdentifier, Integer> o2n = OID_TO_NID.get(runtime);
-        Map<Integer, DERObjectIdentifier> n2o = NID_TO_OID.get(runtime);
-        Map<Integer, String> n2s = NID_TO_SN.get(runtime);
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        if(null != oid && (null != sn || null != ln)) {
-            DERObjectIdentifier ident = new DERObjectIdentifier(oid);
-            if(sn != null) {
-                s2o.put(sn.toLowerCase(),ident);
-            }
-            if(ln != null) {
-                s2o.put(ln.toLowerCase(),ident);
-            }
-            o2s.put(ident,sn == null ? ln : sn);
-            o2n.put(ident,nid);
-            n2o.put(nid,ident);
-            n2s.put(nid,sn);
-            n2l.put(nid,ln);
-        }        
+    /**
+     * The default objects, built once and shared read-only by every
+     * runtime.
+     */
+    private static final class Defaults {
+        static final OIDTable TABLE;
+        static {
+            OIDTable.Builder b = new OIDTable.Builder(org.bouncycastle.asn1.x509.X509Name.DefaultLookUp, org.bouncycastle.asn1.x509.X509Name.DefaultSymbols);
+            defaultObjects(b);
+            TABLE = b.build();
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private synchronized static void initMaps(Ruby runtime) {
-        Map<String, DERObjectIdentifier> val = new HashMap<String, DERObjectIdentifier>(org.bouncycastle.asn1.x509.X509Name.DefaultLookUp);
-        Map<DERObjectIdentifier, String> val2 = new HashMap<DERObjectIdentifier, String>(org.bouncycastle.asn1.x509.X509Name.DefaultSymbols);
-        SYM_TO_OID.put(runtime,val);
-        OID_TO_SYM.put(runtime,val2);
-        OID_TO_NID.put(runtime,new HashMap<DERObjectIdentifier, Integer>());
-        NID_TO_OID.put(runtime,new HashMap<Integer, DERObjectIdentifier>());
-        NID_TO_SN.put(runtime,new HashMap<Integer, String>());
-        NID_TO_LN.put(runtime,new HashMap<Integer, String>());
-        defaultObjects(runtime);
+    /**
+     * Objects added with ObjectId.register, kept per runtime on top of
+     * the shared defaults. Only the runtime's weak reference is held, so
+     * a dropped runtime's overlay is discarded at the next registration.
+     */
+    private static final class Overlay {
+        final WeakReference<Ruby> runtime;
+        final Map<String, DERObjectIdentifier> symToOid = new ConcurrentHashMap<String, DERObjectIdentifier>();
+        final Map<DERObjectIdentifier, String> oidToSym = new ConcurrentHashMap<DERObjectIdentifier, String>();
+
+        Overlay(Ruby runtime) {
+            this.runtime = new WeakReference<Ruby>(runtime);
+        }
     }
 
-    synchronized static Integer obj2nid(Ruby runtime, String oid) {
-        return obj2nid(runtime, new DERObjectIdentifier(oid));
+    // replaced wholesale under the class lock, read without locking
+    private static volatile Overlay[] overlays = new Overlay[0];
+
+    private static Overlay overlay(Ruby runtime) {
+        for(Overlay o : overlays) {
+            if(o.runtime.get() == runtime) {
+                return o;
+            }
+        }
+        return null;
     }
 
-    synchronized static String ln2oid(Ruby runtime, String ln) {
-        Map<String, DERObjectIdentifier> val = SYM_TO_OID.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = SYM_TO_OID.get(runtime);
+    private static synchronized Overlay overlayFor(Ruby runtime) {
+        Overlay o = overlay(runtime);
+        if(o != null) {
+            return o;
+        }
+        List<Overlay> live = new ArrayList<Overlay>();
+        for(Overlay old : overlays) {
+            if(old.runtime.get() != null) {
+                live.add(old);
+            }
         }
-        return val.get(ln).getId();
+        o = new Overlay(runtime);
+        live.add(o);
+        overlays = live.toArray(new Overlay[live.size()]);
+        return o;
     }
 
-    synchronized static Integer obj2nid(Ruby runtime, DERObjectIdentifier oid) {
-        Map<DERObjectIdentifier, Integer> o2n = OID_TO_NID.get(runtime);
-        if(null == o2n) {
-            initMaps(runtime);
-            o2n = OID_TO_NID.get(runtime);
+    static void addObject(Ruby runtime, String oid, String sn, String ln) {
+        Overlay o = overlayFor(runtime);
+        DERObjectIdentifier ident = new DERObjectIdentifier(oid);
+        o.symToOid.put(sn.toLowerCase(),ident);
+        o.symToOid.put(ln.toLowerCase(),ident);
+        o.oidToSym.put(ident,sn);
+    }
+
+    /**
+     * Looks up a short or long name, case insensitively.
+     */
+    static DERObjectIdentifier sym2oid(Ruby runtime, String name) {
+        String key = name.toLowerCase();
+        Overlay o = overlay(runtime);
+        if(o != null) {
+            DERObjectIdentifier oid = o.symToOid.get(key);
+            if(oid != null) {
+                return oid;
+            }
         }
-        return o2n.get(oid);
+        return Defaults.TABLE.sym2oid(key);
     }
 
-    synchronized static String o2a(Ruby runtime, DERObjectIdentifier obj) {
-        Integer nid = obj2nid(runtime,obj);
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        Map<Integer, String> n2s = NID_TO_SN.get(runtime);
-        String one = n2l.get(nid);
-        if(one == null) {
-            one = n2s.get(nid);
+    static String oid2sym(Ruby runtime, DERObjectIdentifier oid) {
+        Overlay o = overlay(runtime);
+        if(o != null) {
+            String sym = o.oidToSym.get(oid);
+            if(sym != null) {
+                return sym;
+            }
         }
-        return one;
+        return Defaults.TABLE.oid2sym(oid);
     }
 
-    synchronized static String nid2ln(Ruby runtime, int nid) {
-        return nid2ln(runtime, new Integer(nid));
+    static Integer obj2nid(Ruby runtime, String oid) {
+        return obj2nid(runtime, new DERObjectIdentifier(oid));
     }
 
-    synchronized static String nid2ln(Ruby runtime, Integer nid) {
-        Map<Integer, String> n2l = NID_TO_LN.get(runtime);
-        if(null == n2l) {
-            initMaps(runtime);
-            n2l = NID_TO_LN.get(runtime);
-        }
-        return n2l.get(nid);
+    static String ln2oid(Ruby runtime, String ln) {
+        return sym2oid(runtime, ln).getId();
     }
-    
-    synchronized static Map<String, DERObjectIdentifier> getOIDLookup(Ruby runtime) {
-        Map<String, DERObjectIdentifier> val = SYM_TO_OID.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = SYM_TO_OID.get(runtime);
-        }
-        return val;
+
+    static Integer obj2nid(Ruby runtime, DERObjectIdentifier oid) {
+        int nid = Defaults.TABLE.obj2nid(oid);
+        return nid == -1 ? null : Integer.valueOf(nid);
     }
 
-    synchronized static Map<DERObjectIdentifier, String> getSymLookup(Ruby runtime) {
-        Map<DERObjectIdentifier, String> val = OID_TO_SYM.get(runtime);
-        if(null == val) {
-            initMaps(runtime);
-            val = OID_TO_SYM.get(runtime);
+    static String o2a(Ruby runtime, DERObjectIdentifier obj) {
+        int nid = Defaults.TABLE.obj2nid(obj);
+        String one = Defaults.TABLE.nid2ln(nid);
+        if(one == null) {
+            one = Defaults.TABLE.nid2sn(nid);
         }
-        return val;
+        return one;
     }
 
-    private static void defaultObjects(Ruby runtime) {
-        ASN1.addObject(runtime, 0, null, null, "1.2.840.113549.1.12.1");
-        ASN1.addObject(runtime, 1, null, "rsadsi", "1.2.840.113549");
-        ASN1.addObject(runtime, 2, null, "pkcs", "1.2.840.113549.1");
-        ASN1.addObject(runtime, 3, "MD2", "md2", "1.2.840.113549.2.2");
-        ASN1.addObject(runtime, 4, "MD5", "md5", "1.2.840.113549.2.5");
-        ASN1.addObject(runtime, 5, "RC4", "rc4", "1.2.840.113549.3.4");
-        ASN1.addObject(runtime, 6, null, "rsaEncryption", "1.2.840.113549.1.1.1");
-        ASN1.addObject(runtime, 7, "RSA-MD2", "md2WithRSAEncryption", "1.2.840.113549.1.1.2");
-        ASN1.addObject(runtime, 8, "RSA-MD5", "md5WithRSAEncryption", "1.2.840.113549.1.1.4");
-        ASN1.addObject(runtime, 9, "PBE-MD2-DES", "pbeWithMD2AndDES-CBC", "1.2.840.113549.1.5.1");
-        ASN1.addObject(runtime, 10, "PBE-MD5-DES", "pbeWithMD5AndDES-CBC", "1.2.840.113549.1.5.3");
-        ASN1.addObject(runtime, 11, null, "X500", "2.5");
-        ASN1.addObject(runtime, 12, null, "X509", "2.5.4");
-        ASN1.addObject(runtime, 13, "CN", "commonName", "2.5.4.3");
-        ASN1.addObject(runtime, 14, "C", "countryName", "2.5.4.6");
-        ASN1.addObject(runtime, 15, "L", "localityName", "2.5.4.7");
-        ASN1.addObject(runtime, 16, "ST", "stateOrProvinceName", "2.5.4.8");
-        ASN1.addObject(runtime, 17, "O", "organizationName", "2.5.4.10");
-        ASN1.addObject(runtime, 18, "OU", "organizationalUnitName", "2.5.4.11");
-        ASN1.addObject(runtime, 19, "RSA", "rsa", "2.5.8.1.1");
-        ASN1.addObject(runtime, 20, null, "pkcs7", "1.2.840.113549.1.7");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_data, null, "pkcs7-data", "1.2.840.113549.1.7.1");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_signed, null, "pkcs7-signedData", "1.2.840.113549.1.7.2");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_enveloped, null, "pkcs7-envelopedData", "1.2.840.113549.1.7.3");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_signedAndEnveloped, null, "pkcs7-signedAndEnvelopedData",
+    static String nid2ln(Ruby runtime, int nid) {
+        return Defaults.TABLE.nid2ln(nid);
+    }
+
+    static String nid2ln(Ruby runtime, Integer nid) {
+        return nid == null ? null : Defaults.TABLE.nid2ln(nid.intValue());
+    }
+
+    private static void defaultObjects(OIDTable.Builder b) {
+        b.add(0, null, null, "1.2.840.113549.1.12.1");
+        b.add(1, null, "rsadsi", "1.2.840.113549");
+        b.add(2, null, "pkcs", "1.2.840.113549.1");
+        b.add(3, "MD2", "md2", "1.2.840.113549.2.2");
+        b.add(4, "MD5", "md5", "1.2.840.113549.2.5");
+        b.add(5, "RC4", "rc4", "1.2.840.113549.3.4");
+        b.add(6, null, "rsaEncryption", "1.2.840.113549.1.1.1");
+        b.add(7, "RSA-MD2", "md2WithRSAEncryption", "1.2.840.113549.1.1.2");
+        b.add(8, "RSA-MD5", "md5WithRSAEncryption", "1.2.840.113549.1.1.4");
+        b.add(9, "PBE-MD2-DES", "pbeWithMD2AndDES-CBC", "1.2.840.113549.1.5.1");
+        b.add(10, "PBE-MD5-DES", "pbeWithMD5AndDES-CBC", "1.2.840.113549.1.5.3");
+        b.add(11, null, "X500", "2.5");
+        b.add(12, null, "X509", "2.5.4");
+        b.add(13, "CN", "commonName", "2.5.4.3");
+        b.add(14, "C", "countryName", "2.5.4.6");
+        b.add(15, "L", "localityName", "2.5.4.7");
+        b.add(16, "ST", "stateOrProvinceName", "2.5.4.8");
+        b.add(17, "O", "organizationName", "2.5.4.10");
+        b.add(18, "OU", "organizationalUnitName", "2.5.4.11");
+        b.add(19, "RSA", "rsa", "2.5.8.1.1");
+        b.add(20, null, "pkcs7", "1.2.840.113549.1.7");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_data, null, "pkcs7-data", "1.2.840.113549.1.7.1");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_signed, null, "pkcs7-signedData", "1.2.840.113549.1.7.2");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_enveloped, null, "pkcs7-envelopedData", "1.2.840.113549.1.7.3");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_signedAndEnveloped, null, "pkcs7-signedAndEnvelopedData",
                 "1.2.840.113549.1.7.4");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_digest, null, "pkcs7-digestData", "1.2.840.113549.1.7.5");
-        ASN1.addObject(runtime, org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_encrypted, null, "pkcs7-encryptedData", "1.2.840.113549.1.7.6");
-        ASN1.addObject(runtime, 27, null, "pkcs3", "1.2.840.113549.1.3");
-        ASN1.addObject(runtime, 28, null, "dhKeyAgreement", "1.2.840.113549.1.3.1");
-        ASN1.addObject(runtime, 29, "DES-ECB", "des-ecb", "1.3.14.3.2.6");
-        ASN1.addObject(runtime, 30, "DES-CFB", "des-cfb", "1.3.14.3.2.9");
-        ASN1.addObject(runtime, 31, "DES-CBC", "des-cbc", "1.3.14.3.2.7");
-        ASN1.addObject(runtime, 32, "DES-EDE", "des-ede", "1.3.14.3.2.17");
-        ASN1.addObject(runtime, 33, "DES-EDE3", "des-ede3", null);
-        ASN1.addObject(runtime, 34, "IDEA-CBC", "idea-cbc", "1.3.6.1.4.1.188.7.1.1.2");
-        ASN1.addObject(runtime, 35, "IDEA-CFB", "idea-cfb", null);
-        ASN1.addObject(runtime, 36, "IDEA-ECB", "idea-ecb", null);
-        ASN1.addObject(runtime, 37, "RC2-CBC", "rc2-cbc", "1.2.840.113549.3.2");
-        ASN1.addObject(runtime, 38, "RC2-ECB", "rc2-ecb", null);
-        ASN1.addObject(runtime, 39, "RC2-CFB", "rc2-cfb", null);
-        ASN1.addObject(runtime, 40, "RC2-OFB", "rc2-ofb", null);
-        ASN1.addObject(runtime, 41, "SHA", "sha", "1.3.14.3.2.18");
-        ASN1.addObject(runtime, 42, "RSA-SHA", "shaWithRSAEncryption", "1.3.14.3.2.15");
-        ASN1.addObject(runtime, 43, "DES-EDE-CBC", "des-ede-cbc", null);
-        ASN1.addObject(runtime, 44, "DES-EDE3-CBC", "des-ede3-cbc", "1.2.840.113549.3.7");
-        ASN1.addObject(runtime, 45, "DES-OFB", "des-ofb", "1.3.14.3.2.8");
-        ASN1.addObject(runtime, 46, "IDEA-OFB", "idea-ofb", null);
-        ASN1.addObject(runtime, 47, null, "pkcs9", "1.2.840.113549.1.9");
-        ASN1.addObject(runtime, 48, "Email", "emailAddress", "1.2.840.113549.1.9.1");
-        ASN1.addObject(runtime, 49, null, "unstructuredName", "1.2.840.113549.1.9.2");
-        ASN1.addObject(runtime, 50, null, "contentType", "1.2.840.113549.1.9.3");
-        ASN1.addObject(runtime, 51, null, "messageDigest", "1.2.840.113549.1.9.4");
-        ASN1.addObject(runtime, 52, null, "signingTime", "1.2.840.113549.1.9.5");
-        ASN1.addObject(runtime, 53, null, "countersignature", "1.2.840.113549.1.9.6");
-        ASN1.addObject(runtime, 54, null, "challengePassword", "1.2.840.113549.1.9.7");
-        ASN1.addObject(runtime, 55, null, "unstructuredAddress", "1.2.840.113549.1.9.8");
-        ASN1.addObject(runtime, 56, null, "extendedCertificateAttributes", "1.2.840.113549.1.9.9");
-        ASN1.addObject(runtime, 57, "Netscape", "Netscape Communications Corp.", "2.16.840.1.113730");
-        ASN1.addObject(runtime, 58, "nsCertExt", "Netscape Certificate Extension", "2.16.840.1.113730.1");
-        ASN1.addObject(runtime, 59, "nsDataType", "Netscape Data Type", "2.16.840.1.113730.2");
-        ASN1.addObject(runtime, 60, "DES-EDE-CFB", "des-ede-cfb", null);
-        ASN1.addObject(runtime, 61, "DES-EDE3-CFB", "des-ede3-cfb", null);
-        ASN1.addObject(runtime, 62, "DES-EDE-OFB", "des-ede-ofb", null);
-        ASN1.addObject(runtime, 63, "DES-EDE3-OFB", "des-ede3-ofb", null);
-        ASN1.addObject(runtime, 64, "SHA1", "sha1", "1.3.14.3.2.26");
-        ASN1.addObject(runtime, 65, "RSA-SHA1", "sha1WithRSAEncryption", "1.2.840.113549.1.1.5");
-        ASN1.addObject(runtime, 66, "DSA-SHA", "dsaWithSHA", "1.3.14.3.2.13");
-        ASN1.addObject(runtime, 67, "DSA-old", "dsaEncryption-old", "1.3.14.3.2.12");
-        ASN1.addObject(runtime, 68, "PBE-SHA1-RC2-64", "pbeWithSHA1AndRC2-CBC", "1.2.840.113549.1.5.11");
-        ASN1.addObject(runtime, 69, null, "PBKDF2", "1.2.840.113549.1.5.12");
-        ASN1.addObject(runtime, 70, "DSA-SHA1-old", "dsaWithSHA1-old", "1.3.14.3.2.27");
-        ASN1.addObject(runtime, 71, "nsCertType", "Netscape Cert Type", "2.16.840.1.113730.1.1");
-        ASN1.addObject(runtime, 72, "nsBaseUrl", "Netscape Base Url", "2.16.840.1.113730.1.2");
-        ASN1.addObject(runtime, 73, "nsRevocationUrl", "Netscape Revocation Url", "2.16.840.1.113730.1.3");
-        ASN1.addObject(runtime, 74, "nsCaRevocationUrl", "Netscape CA Revocation Url", "2.16.840.1.113730.1.4");
-        ASN1.addObject(runtime, 75, "nsRenewalUrl", "Netscape Renewal Url", "2.16.840.1.113730.1.7");
-        ASN1.addObject(runtime, 76, "nsCaPolicyUrl", "Netscape CA Policy Url", "2.16.840.1.113730.1.8");
-        ASN1.addObject(runtime, 77, "nsSslServerName", "Netscape SSL Server Name", "2.16.840.1.113730.1.12");
-        ASN1.addObject(runtime, 78, "nsComment", "Netscape Comment", "2.16.840.1.113730.1.13");
-        ASN1.addObject(runtime, 79, "nsCertSequence", "Netscape Certificate Sequence", "2.16.840.1.113730.2.5");
-        ASN1.addObject(runtime, 80, "DESX-CBC", "desx-cbc", null);
-        ASN1.addObject(runtime, 81, "id-ce", null, "2.5.29");
-        ASN1.addObject(runtime, 82, "subjectKeyIdentifier", "X509v3 Subject Key Identifier", "2.5.29.14");
-        ASN1.addObject(runtime, 83, "keyUsage", "X509v3 Key Usage", "2.5.29.15");
-        ASN1.addObject(runtime, 84, "privateKeyUsagePeriod", "X509v3 Private Key Usage Period", "2.5.29.16");
-        ASN1.addObject(runtime, 85, "subjectAltName", "X509v3 Subject Alternative Name", "2.5.29.17");
-        ASN1.addObject(runtime, 86, "issuerAltName", "X509v3 Issuer Alternative Name", "2.5.29.18");
-        ASN1.addObject(runtime, 87, "basicConstraints", "X509v3 Basic Constraints", "2.5.29.19");
-        ASN1.addObject(runtime, 88, "crlNumber", "X509v3 CRL Number", "2.5.29.20");
-        ASN1.addObject(runtime, 89, "certificatePolicies", "X509v3 Certificate Policies", "2.5.29.32");
-        ASN1.addObject(runtime, 90, "authorityKeyIdentifier", "X509v3 Authority Key Identifier", "2.5.29.35");
-        ASN1.addObject(runtime, 91, "BF-CBC", "bf-cbc", "1.3.6.1.4.1.3029.1.2");
-        ASN1.addObject(runtime, 92, "BF-ECB", "bf-ecb", null);
-        ASN1.addObject(runtime, 93, "BF-CFB", "bf-cfb", null);
-        ASN1.addObject(runtime, 94, "BF-OFB", "bf-ofb", null);
-        ASN1.addObject(runtime, 95, "MDC2", "mdc2", "2.5.8.3.101");
-        ASN1.addObject(runtime, 96, "RSA-MDC2", "mdc2withRSA", "2.5.8.3.100");
-        ASN1.addObject(runtime, 97, "RC4-40", "rc4-40", null);
-        ASN1.addObject(runtime, 98, "RC2-40-CBC", "rc2-40-cbc", null);
-        ASN1.addObject(runtime, 99, "G", "givenName", "2.5.4.42");
-        ASN1.addObject(runtime, 100, "S", "surname", "2.5.4.4");
-        ASN1.addObject(runtime, 101, "I", "initials", "2.5.4.43");
-        ASN1.addObject(runtime, 102, "UID", "uniqueIdentifier", "2.5.4.45");
-        ASN1.addObject(runtime, 103, "crlDistributionPoints", "X509v3 CRL Distribution Points", "2.5.29.31");
-        ASN1.addObject(runtime, 104, "RSA-NP-MD5", "md5WithRSA", "1.3.14.3.2.3");
-        ASN1.addObject(runtime, 105, "SN", "serialNumber", "2.5.4.5");
-        ASN1.addObject(runtime, 106, "T", "title", "2.5.4.12");
-        ASN1.addObject(runtime, 107, "D", "description", "2.5.4.13");
-        ASN1.addObject(runtime, 108, "CAST5-CBC", "cast5-cbc", "1.2.840.113533.7.66.10");
-        ASN1.addObject(runtime, 109, "CAST5-ECB", "cast5-ecb", null);
-        ASN1.addObject(runtime, 110, "CAST5-CFB", "cast5-cfb", null);
-        ASN1.addObject(runtime, 111, "CAST5-OFB", "cast5-ofb", null);
-        ASN1.addObject(runtime, 112, null, "pbeWithMD5AndCast5CBC", "1.2.840.113533.7.66.12");
-        ASN1.addObject(runtime, 113, "DSA-SHA1", "dsaWithSHA1", "1.2.840.10040.4.3");
-        ASN1.addObject(runtime, 114, "MD5-SHA1", "md5-sha1", null);
-        ASN1.addObject(runtime, 115, "RSA-SHA1-2", "sha1WithRSA", "1.3.14.3.2.29");
-        ASN1.addObject(runtime, 116, "DSA", "dsaEncryption", "1.2.840.10040.4.1");
-        ASN1.addObject(runtime, 117, "RIPEMD160", "ripemd160", "1.3.36.3.2.1");
-        ASN1.addObject(runtime, 118, "RSA-RIPEMD160", "ripemd160WithRSA", "1.3.36.3.3.1.2");
-        ASN1.addObject(runtime, 119, "RC5-CBC", "rc5-cbc", "1.2.840.113549.3.8");
-        ASN1.addObject(runtime, 120, "RC5-ECB", "rc5-ecb", null);
-        ASN1.addObject(runtime, 121, "RC5-CFB", "rc5-cfb", null);
-        ASN1.addObject(runtime, 122, "RC5-OFB", "rc5-ofb", null);
-        ASN1.addObject(runtime, 123, "RLE", "run length compression", "1.1.1.1.666.1");
-        ASN1.addObject(runtime, 124, "ZLIB", "zlib compression", "1.1.1.1.666.2");
-        ASN1.addObject(runtime, 125, "extendedKeyUsage", "X509v3 Extended Key Usage", "2.5.29.37");
-        ASN1.addObject(runtime, 126, "PKIX", null, "1.3.6.1.5.5.7");
-        ASN1.addObject(runtime, 127, "id-kp", null, "1.3.6.1.5.5.7.3");
-        ASN1.addObject(runtime, 128, "serverAuth", "TLS Web Server Authentication", "1.3.6.1.5.5.7.3.1");
-        ASN1.addObject(runtime, 129, "clientAuth", "TLS Web Client Authentication", "1.3.6.1.5.5.7.3.2");
-        ASN1.addObject(runtime, 130, "codeSigning", "Code Signing", "1.3.6.1.5.5.7.3.3");
-        ASN1.addObject(runtime, 131, "emailProtection", "E-mail Protection", "1.3.6.1.5.5.7.3.4");
-        ASN1.addObject(runtime, 132, "timeStamping", "Time Stamping", "1.3.6.1.5.5.7.3.8");
-        ASN1.addObject(runtime, 133, "msCodeInd", "Microsoft Individual Code Signing", "1.3.6.1.4.1.311.2.1.21");
-        ASN1.addObject(runtime, 134, "msCodeCom", "Microsoft Commercial Code Signing", "1.3.6.1.4.1.311.2.1.22");
-        ASN1.addObject(runtime, 135, "msCTLSign", "Microsoft Trust List Signing", "1.3.6.1.4.1.311.10.3.1");
-        ASN1.addObject(runtime, 136, "msSGC", "Microsoft Server Gated Crypto", "1.3.6.1.4.1.311.10.3.3");
-        ASN1.addObject(runtime, 137, "msEFS", "Microsoft Encrypted File System", "1.3.6.1.4.1.311.10.3.4");
-        ASN1.addObject(runtime, 138, "nsSGC", "Netscape Server Gated Crypto", "2.16.840.1.113730.4.1");
-        ASN1.addObject(runtime, 139, "deltaCRL", "X509v3 Delta CRL Indicator", "2.5.29.27");
-        ASN1.addObject(runtime, 140, "CRLReason", "CRL Reason Code", "2.5.29.21");
-        ASN1.addObject(runtime, 141, "invalidityDate", "Invalidity Date", "2.5.29.24");
-        ASN1.addObject(runtime, 142, "SXNetID", "Strong Extranet ID", "1.3.101.1.4.1");
-        ASN1.addObject(runtime, 143, "PBE-SHA1-RC4-128", "pbeWithSHA1And128BitRC4", "1.2.840.113549.1.12.1.1");
-        ASN1.addObject(runtime, 144, "PBE-SHA1-RC4-40", "pbeWithSHA1And40BitRC4", "1.2.840.113549.1.12.1.2");
-        ASN1.addObject(runtime, 145, "PBE-SHA1-3DES", "pbeWithSHA1And3-KeyTripleDES-CBC", "1.2.840.113549.1.12.1.3");
-        ASN1.addObject(runtime, 146, "PBE-SHA1-2DES", "pbeWithSHA1And2-KeyTripleDES-CBC", "1.2.840.113549.1.12.1.4");
-        ASN1.addObject(runtime, 147, "PBE-SHA1-RC2-128", "pbeWithSHA1And128BitRC2-CBC", "1.2.840.113549.1.12.1.5");
-        ASN1.addObject(runtime, 148, "PBE-SHA1-RC2-40", "pbeWithSHA1And40BitRC2-CBC", "1.2.840.113549.1.12.1.6");
-        ASN1.addObject(runtime, 149, null, "keyBag", "1.2.840.113549.1.12.10.1.1");
-        ASN1.addObject(runtime, 150, null, "pkcs8ShroudedKeyBag", "1.2.840.113549.1.12.10.1.2");
-        ASN1.addObject(runtime, 151, null, "certBag", "1.2.840.113549.1.12.10.1.3");
-        ASN1.addObject(runtime, 152, null, "crlBag", "1.2.840.113549.1.12.10.1.4");
-        ASN1.addObject(runtime, 153, null, "secretBag", "1.2.840.113549.1.12.10.1.5");
-        ASN1.addObject(runtime, 154, null, "safeContentsBag", "1.2.840.113549.1.12.10.1.6");
-        ASN1.addObject(runtime, 155, null, "PBES2", "1.2.840.113549.1.5.13");
-        ASN1.addObject(runtime, 156, null, "PBMAC1", "1.2.840.113549.1.5.14");
-        ASN1.addObject(runtime, 157, null, "hmacWithSHA1", "1.2.840.113549.2.7");
-        ASN1.addObject(runtime, 158, "id-qt-cps", "Policy Qualifier CPS", "1.3.6.1.5.5.7.2.1");
-        ASN1.addObject(runtime, 159, "id-qt-unotice", "Policy Qualifier User Notice", "1.3.6.1.5.5.7.2.2");
-        ASN1.addObject(runtime, 160, "RC2-64-CBC", "rc2-64-cbc", null);
-        ASN1.addObject(runtime, 161, "SMIME-CAPS", "S/MIME Capabilities", "1.2.840.113549.1.9.15");
-        ASN1.addObject(runtime, 162, "PBE-MD2-RC2-64", "pbeWithMD2AndRC2-CBC", "1.2.840.113549.1.5.4");
-        ASN1.addObject(runtime, 163, "PBE-MD5-RC2-64", "pbeWithMD5AndRC2-CBC", "1.2.840.113549.1.5.6");
-        ASN1.addObject(runtime, 164, "PBE-SHA1-DES", "pbeWithSHA1AndDES-CBC", "1.2.840.113549.1.5.10");
-        ASN1.addObject(runtime, 165, "msExtReq", "Microsoft Extension Request", "1.3.6.1.4.1.311.2.1.14");
-        ASN1.addObject(runtime, 166, "extReq", "Extension Request", "1.2.840.113549.1.9.14");
-        ASN1.addObject(runtime, 167, "name", "name", "2.5.4.41");
-        ASN1.addObject(runtime, 168, "dnQualifier", "dnQualifier", "2.5.4.46");
-        ASN1.addObject(runtime, 169, "id-pe", null, "1.3.6.1.5.5.7.1");
-        ASN1.addObject(runtime, 170, "id-ad", null, "1.3.6.1.5.5.7.48");
-        ASN1.addObject(runtime, 171, "authorityInfoAccess", "Authority Information Access", "1.3.6.1.5.5.7.1.1");
-        ASN1.addObject(runtime, 172, "OCSP", "OCSP", "1.3.6.1.5.5.7.48.1");
-        ASN1.addObject(runtime, 173, "caIssuers", "CA Issuers", "1.3.6.1.5.5.7.48.2");
-        ASN1.addObject(runtime, 174, "OCSPSigning", "OCSP Signing", "1.3.6.1.5.5.7.3.9");
-        ASN1.addObject(runtime, 175, "AES-128-EBC", "aes-128-ebc", "2.16.840.1.101.3.4.1.1");
-        ASN1.addObject(runtime, 176, "AES-128-CBC", "aes-128-cbc", "2.16.840.1.101.3.4.1.2");
-        ASN1.addObject(runtime, 177, "AES-128-OFB", "aes-128-ofb", "2.16.840.1.101.3.4.1.3");
-        ASN1.addObject(runtime, 178, "AES-128-CFB", "aes-128-cfb", "2.16.840.1.101.3.4.1.4");
-        ASN1.addObject(runtime, 179, "AES-192-EBC", "aes-192-ebc", "2.16.840.1.101.3.4.1.21");
-        ASN1.addObject(runtime, 180, "AES-192-CBC", "aes-192-cbc", "2.16.840.1.101.3.4.1.22");
-        ASN1.addObject(runtime, 181, "AES-192-OFB", "aes-192-ofb", "2.16.840.1.101.3.4.1.23");
-        ASN1.addObject(runtime, 182, "AES-192-CFB", "aes-192-cfb", "2.16.840.1.101.3.4.1.24");
-        ASN1.addObject(runtime, 183, "AES-256-EBC", "aes-256-ebc", "2.16.840.1.101.3.4.1.41");
-        ASN1.addObject(runtime, 184, "AES-256-CBC", "aes-256-cbc", "2.16.840.1.101.3.4.1.42");
-        ASN1.addObject(runtime, 185, "AES-256-OFB", "aes-256-ofb", "2.16.840.1.101.3.4.1.43");
-        ASN1.addObject(runtime, 186, "AES-256-CFB", "aes-256-cfb", "2.16.840.1.101.3.4.1.44");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_digest, null, "pkcs7-digestData", "1.2.840.113549.1.7.5");
+        b.add(org.jruby.ext.openssl.impl.ASN1Registry.NID_pkcs7_encrypted, null, "pkcs7-encryptedData", "1.2.840.113549.1.7.6");
+        b.add(27, null, "pkcs3", "1.2.840.113549.1.3");
+        b.add(28, null, "dhKeyAgreement", "1.2.840.113549.1.3.1");
+        b.add(29, "DES-ECB", "des-ecb", "1.3.14.3.2.6");
+        b.add(30, "DES-CFB", "des-cfb", "1.3.14.3.2.9");
+        b.add(31, "DES-CBC", "des-cbc", "1.3.14.3.2.7");
+        b.add(32, "DES-EDE", "des-ede", "1.3.14.3.2.17");
+        b.add(33, "DES-EDE3", "des-ede3", null);
+        b.add(34, "IDEA-CBC", "idea-cbc", "1.3.6.1.4.1.188.7.1.1.2");
+        b.add(35, "IDEA-CFB", "idea-cfb", null);
+        b.add(36, "IDEA-ECB", "idea-ecb", null);
+        b.add(37, "RC2-CBC", "rc2-cbc", "1.2.840.113549.3.2");
+        b.add(38, "RC2-ECB", "rc2-ecb", null);
+        b.add(39, "RC2-CFB", "rc2-cfb", null);
+        b.add(40, "RC2-OFB", "rc2-ofb", null);
+        b.add(41, "SHA", "sha", "1.3.14.3.2.18");
+        b.add(42, "RSA-SHA", "shaWithRSAEncryption", "1.3.14.3.2.15");
+        b.add(43, "DES-EDE-CBC", "des-ede-cbc", null);
+        b.add(44, "DES-EDE3-CBC", "des-ede3-cbc", "1.2.840.113549.3.7");
+        b.add(45, "DES-OFB", "des-ofb", "1.3.14.3.2.8");
+        b.add(46, "IDEA-OFB", "idea-ofb", null);
+        b.add(47, null, "pkcs9", "1.2.840.113549.1.9");
+        b.add(48, "Email", "emailAddress", "1.2.840.113549.1.9.1");
+        b.add(49, null, "unstructuredName", "1.2.840.113549.1.9.2");
+        b.add(50, null, "contentType", "1.2.840.113549.1.9.3");
+        b.add(51, null, "messageDigest", "1.2.840.113549.1.9.4");
+        b.add(52, null, "signingTime", "1.2.840.113549.1.9.5");
+        b.add(53, null, "countersignature", "1.2.840.113549.1.9.6");
+        b.add(54, null, "challengePassword", "1.2.840.113549.1.9.7");
+        b.add(55, null, "unstructuredAddress", "1.2.840.113549.1.9.8");
+        b.add(56, null, "extendedCertificateAttributes", "1.2.840.113549.1.9.9");
+        b.add(57, "Netscape", "Netscape Communications Corp.", "2.16.840.1.113730");
+        b.add(58, "nsCertExt", "Netscape Certificate Extension", "2.16.840.1.113730.1");
+        b.add(59, "nsDataType", "Netscape Data Type", "2.16.840.1.113730.2");
+        b.add(60, "DES-EDE-CFB", "des-ede-cfb", null);
+        b.add(61, "DES-EDE3-CFB", "des-ede3-cfb", null);
+        b.add(62, "DES-EDE-OFB", "des-ede-ofb", null);
+        b.add(63, "DES-EDE3-OFB", "des-ede3-ofb", null);
+        b.add(64, "SHA1", "sha1", "1.3.14.3.2.26");
+        b.add(65, "RSA-SHA1", "sha1WithRSAEncryption", "1.2.840.113549.1.1.5");
+        b.add(66, "DSA-SHA", "dsaWithSHA", "1.3.14.3.2.13");
+        b.add(67, "DSA-old", "dsaEncryption-old", "1.3.14.3.2.12");
+        b.add(68, "PBE-SHA1-RC2-64", "pbeWithSHA1AndRC2-CBC", "1.2.840.113549.1.5.11");
+        b.add(69, null, "PBKDF2", "1.2.840.113549.1.5.12");
+        b.add(70, "DSA-SHA1-old", "dsaWithSHA1-old", "1.3.14.3.2.27");
+        b.add(71, "nsCertType", "Netscape Cert Type", "2.16.840.1.113730.1.1");
+        b.add(72, "nsBaseUrl", "Netscape Base Url", "2.16.840.1.113730.1.2");
+        b.add(73, "nsRevocationUrl", "Netscape Revocation Url", "2.16.840.1.113730.1.3");
+        b.add(74, "nsCaRevocationUrl", "Netscape CA Revocation Url", "2.16.840.1.113730.1.4");
+        b.add(75, "nsRenewalUrl", "Netscape Renewal Url", "2.16.840.1.113730.1.7");
+        b.add(76, "nsCaPolicyUrl", "Netscape CA Policy Url", "2.16.840.1.113730.1.8");
+        b.add(77, "nsSslServerName", "Netscape SSL Server Name", "2.16.840.1.113730.1.12");
+        b.add(78, "nsComment", "Netscape Comment", "2.16.840.1.113730.1.13");
+        b.add(79, "nsCertSequence", "Netscape Certificate Sequence", "2.16.840.1.113730.2.5");
+        b.add(80, "DESX-CBC", "desx-cbc", null);
+        b.add(81, "id-ce", null, "2.5.29");
+        b.add(82, "subjectKeyIdentifier", "X509v3 Subject Key Identifier", "2.5.29.14");
+        b.add(83, "keyUsage", "X509v3 Key Usage", "2.5.29.15");
+        b.add(84, "privateKeyUsagePeriod", "X509v3 Private Key Usage Period", "2.5.29.16");
+        b.add(85, "subjectAltName", "X509v3 Subject Alternative Name", "2.5.29.17");
+        b.add(86, "issuerAltName", "X509v3 Issuer Alternative Name", "2.5.29.18");
+        b.add(87, "basicConstraints", "X509v3 Basic Constraints", "2.5.29.19");
+        b.add(88, "crlNumber", "X509v3 CRL Number", "2.5.29.20");
+        b.add(89, "certificatePolicies", "X509v3 Certificate Policies", "2.5.29.32");
+        b.add(90, "authorityKeyIdentifier", "X509v3 Authority Key Identifier", "2.5.29.35");
+        b.add(91, "BF-CBC", "bf-cbc", "1.3.6.1.4.1.3029.1.2");
+        b.add(92, "BF-ECB", "bf-ecb", null);
+        b.add(93, "BF-CFB", "bf-cfb", null);
+        b.add(94, "BF-OFB", "bf-ofb", null);
+        b.add(95, "MDC2", "mdc2", "2.5.8.3.101");
+        b.add(96, "RSA-MDC2", "mdc2withRSA", "2.5.8.3.100");
+        b.add(97, "RC4-40", "rc4-40", null);
+        b.add(98, "RC2-40-CBC", "rc2-40-cbc", null);
+        b.add(99, "G", "givenName", "2.5.4.42");
+        b.add(100, "S", "surname", "2.5.4.4");
+        b.add(101, "I", "initials", "2.5.4.43");
+        b.add(102, "UID", "uniqueIdentifier", "2.5.4.45");
+        b.add(103, "crlDistributionPoints", "X509v3 CRL Distribution Points", "2.5.29.31");
+        b.add(104, "RSA-NP-MD5", "md5WithRSA", "1.3.14.3.2.3");
+        b.add(105, "SN", "serialNumber", "2.5.4.5");
+        b.add(106, "T", "title", "2.5.4.12");
+        b.add(107, "D", "description", "2.5.4.13");
+        b.add(108, "CAST5-CBC", "cast5-cbc", "1.2.840.113533.7.66.10");
+        b.add(109, "CAST5-ECB", "cast5-ecb", null);
+        b.add(110, "CAST5-CFB", "cast5-cfb", null);
+        b.add(111, "CAST5-OFB", "cast5-ofb", null);
+        b.add(112, null, "pbeWithMD5AndCast5CBC", "1.2.840.113533.7.66.12");
+        b.add(113, "DSA-SHA1", "dsaWithSHA1", "1.2.840.10040.4.3");
+        b.add(114, "MD5-SHA1", "md5-sha1", null);
+        b.add(115, "RSA-SHA1-2", "sha1WithRSA", "1.3.14.3.2.29");
+        b.add(116, "DSA", "dsaEncryption", "1.2.840.10040.4.1");
+        b.add(117, "RIPEMD160", "ripemd160", "1.3.36.3.2.1");
+        b.add(118, "RSA-RIPEMD160", "ripemd160WithRSA", "1.3.36.3.3.1.2");
+        b.add(119, "RC5-CBC", "rc5-cbc", "1.2.840.113549.3.8");
+        b.add(120, "RC5-ECB", "rc5-ecb", null);
+        b.add(121, "RC5-CFB", "rc5-cfb", null);
+        b.add(122, "RC5-OFB", "rc5-ofb", null);
+        b.add(123, "RLE", "run length compression", "1.1.1.1.666.1");
+        b.add(124, "ZLIB", "zlib compression", "1.1.1.1.666.2");
+        b.add(125, "extendedKeyUsage", "X509v3 Extended Key Usage", "2.5.29.37");
+        b.add(126, "PKIX", null, "1.3.6.1.5.5.7");
+        b.add(127, "id-kp", null, "1.3.6.1.5.5.7.3");
+        b.add(128, "serverAuth", "TLS Web Server Authentication", "1.3.6.1.5.5.7.3.1");
+        b.add(129, "clientAuth", "TLS Web Client Authentication", "1.3.6.1.5.5.7.3.2");
+        b.add(130, "codeSigning", "Code Signing", "1.3.6.1.5.5.7.3.3");
+        b.add(131, "emailProtection", "E-mail Protection", "1.3.6.1.5.5.7.3.4");
+        b.add(132, "timeStamping", "Time Stamping", "1.3.6.1.5.5.7.3.8");
+        b.add(133, "msCodeInd", "Microsoft Individual Code Signing", "1.3.6.1.4.1.311.2.1.21");
+        b.add(134, "msCodeCom", "Microsoft Commercial Code Signing", "1.3.6.1.4.1.311.2.1.22");
+        b.add(135, "msCTLSign", "Microsoft Trust List Signing", "1.3.6.1.4.1.311.10.3.1");
+        b.add(136, "msSGC", "Microsoft Server Gated Crypto", "1.3.6.1.4.1.311.10.3.3");
+        b.add(137, "msEFS", "Microsoft Encrypted File System", "1.3.6.1.4.1.311.10.3.4");
+        b.add(138, "nsSGC", "Netscape Server Gated Crypto", "2.16.840.1.113730.4.1");
+        b.add(139, "deltaCRL", "X509v3 Delta CRL Indicator", "2.5.29.27");
+        b.add(140, "CRLReason", "CRL Reason Code", "2.5.29.21");
+        b.add(141, "invalidityDate", "Invalidity Date", "2.5.29.24");
+        b.add(142, "SXNetID", "Strong Extranet ID", "1.3.101.1.4.1");
+        b.add(143, "PBE-SHA1-RC4-128", "pbeWithSHA1And128BitRC4", "1.2.840.113549.1.12.1.1");
+        b.add(144, "PBE-SHA1-RC4-40", "pbeWithSHA1And40BitRC4", "1.2.840.113549.1.12.1.2");
+        b.add(145, "PBE-SHA1-3DES", "pbeWithSHA1And3-KeyTripleDES-CBC", "1.2.840.113549.1.12.1.3");
+        b.add(146, "PBE-SHA1-2DES", "pbeWithSHA1And2-KeyTripleDES-CBC", "1.2.840.113549.1.12.1.4");
+        b.add(147, "PBE-SHA1-RC2-128", "pbeWithSHA1And128BitRC2-CBC", "1.2.840.113549.1.12.1.5");
+        b.add(148, "PBE-SHA1-RC2-40", "pbeWithSHA1And40BitRC2-CBC", "1.2.840.113549.1.12.1.6");
+        b.add(149, null, "keyBag", "1.2.840.113549.1.12.10.1.1");
+        b.add(150, null, "pkcs8ShroudedKeyBag", "1.2.840.113549.1.12.10.1.2");
+        b.add(151, null, "certBag", "1.2.840.113549.1.12.10.1.3");
+        b.add(152, null, "crlBag", "1.2.840.113549.1.12.10.1.4");
+        b.add(153, null, "secretBag", "1.2.840.113549.1.12.10.1.5");
+        b.add(154, null, "safeContentsBag", "1.2.840.113549.1.12.10.1.6");
+        b.add(155, null, "PBES2", "1.2.840.113549.1.5.13");
+        b.add(156, null, "PBMAC1", "1.2.840.113549.1.5.14");
+        b.add(157, null, "hmacWithSHA1", "1.2.840.113549.2.7");
+        b.add(158, "id-qt-cps", "Policy Qualifier CPS", "1.3.6.1.5.5.7.2.1");
+        b.add(159, "id-qt-unotice", "Policy Qualifier User Notice", "1.3.6.1.5.5.7.2.2");
+        b.add(160, "RC2-64-CBC", "rc2-64-cbc", null);
+        b.add(161, "SMIME-CAPS", "S/MIME Capabilities", "1.2.840.113549.1.9.15");
+        b.add(162, "PBE-MD2-RC2-64", "pbeWithMD2AndRC2-CBC", "1.2.840.113549.1.5.4");
+        b.add(163, "PBE-MD5-RC2-64", "pbeWithMD5AndRC2-CBC", "1.2.840.113549.1.5.6");
+        b.add(164, "PBE-SHA1-DES", "pbeWithSHA1AndDES-CBC", "1.2.840.113549.1.5.10");
+        b.add(165, "msExtReq", "Microsoft Extension Request", "1.3.6.1.4.1.311.2.1.14");
+        b.add(166, "extReq", "Extension Request", "1.2.840.113549.1.9.14");
+        b.add(167, "name", "name", "2.5.4.41");
+        b.add(168, "dnQualifier", "dnQualifier", "2.5.4.46");
+        b.add(169, "id-pe", null, "1.3.6.1.5.5.7.1");
+        b.add(170, "id-ad", null, "1.3.6.1.5.5.7.48");
+        b.add(171, "authorityInfoAccess", "Authority Information Access", "1.3.6.1.5.5.7.1.1");
+        b.add(172, "OCSP", "OCSP", "1.3.6.1.5.5.7.48.1");
+        b.add(173, "caIssuers", "CA Issuers", "1.3.6.1.5.5.7.48.2");
+        b.add(174, "OCSPSigning", "OCSP Signing", "1.3.6.1.5.5.7.3.9");
+        b.add(175, "AES-128-EBC", "aes-128-ebc", "2.16.840.1.101.3.4.1.1");
+        b.add(176, "AES-128-CBC", "aes-128-cbc", "2.16.840.1.101.3.4.1.2");
+        b.add(177, "AES-128-OFB", "aes-128-ofb", "2.16.840.1.101.3.4.1.3");
+        b.add(178, "AES-128-CFB", "aes-128-cfb", "2.16.840.1.101.3.4.1.4");
+        b.add(179, "AES-192-EBC", "aes-192-ebc", "2.16.840.1.101.3.4.1.21");
+        b.add(180, "AES-192-CBC", "aes-192-cbc", "2.16.840.1.101.3.4.1.22");
+        b.add(181, "AES-192-OFB", "aes-192-ofb", "2.16.840.1.101.3.4.1.23");
+        b.add(182, "AES-192-CFB", "aes-192-cfb", "2.16.840.1.101.3.4.1.24");
+        b.add(183, "AES-256-EBC", "aes-256-ebc", "2.16.840.1.101.3.4.1.41");
+        b.add(184, "AES-256-CBC", "aes-256-cbc", "2.16.840.1.101.3.4.1.42");
+        b.add(185, "AES-256-OFB", "aes-256-ofb", "2.16.840.1.101.3.4.1.43");
+        b.add(186, "AES-256-CFB", "aes-256-cfb", "2.16.840.1.101.3.4.1.44");
     }
 
     private final static Object[][] ASN1_INFO = {
@@ -513,27 +520,21 @@ public class ASN1 {
 
     private static String getShortNameFor(Ruby runtime, String nameOrOid) {
         DERObjectIdentifier oid = getObjectIdentifier(runtime,nameOrOid);
-        Map<String, DERObjectIdentifier> em = getOIDLookup(runtime);
-        String name = null;
-        for(Iterator<String> iter = em.keySet().iterator();iter.hasNext();) {
-            String key = iter.next();
-            if(oid.equals(em.get(key))) {
-                if(name == null || key.length() < name.length()) {
-                    name = key;
-                }
-            }
-        }
-        return name;
+        return nameFor(runtime, oid, Defaults.TABLE.shortestName(oid), true);
     }
 
     private static String getLongNameFor(Ruby runtime, String nameOrOid) {
         DERObjectIdentifier oid = getObjectIdentifier(runtime,nameOrOid);
-        Map<String, DERObjectIdentifier> em = getOIDLookup(runtime);
-        String name = null;
-        for(Iterator<String> iter = em.keySet().iterator();iter.hasNext();) {
-            String key = iter.next();
-            if(oid.equals(em.get(key))) {
-                if(name == null || key.length() > name.length()) {
+        return nameFor(runtime, oid, Defaults.TABLE.longestName(oid), false);
+    }
+
+    // picks the shortest or longest of name and the registered names for oid
+    private static String nameFor(Ruby runtime, DERObjectIdentifier oid, String name, boolean shortest) {
+        Overlay o = overlay(runtime);
+        if(o != null) {
+            for(Map.Entry<String, DERObjectIdentifier> e : o.symToOid.entrySet()) {
+                String key = e.getKey();
+                if(oid.equals(e.getValue()) && (name == null || (shortest ? key.length() < name.length() : key.length() > name.length()))) {
                     name = key;
                 }
             }
@@ -542,7 +543,7 @@ public class ASN1 {
     }
 
     private static DERObjectIdentifier getObjectIdentifier(Ruby runtime, String nameOrOid) {
-        Object val1 = ASN1.getOIDLookup(runtime).get(nameOrOid.toLowerCase());
+        Object val1 = sym2oid(runtime, nameOrOid);
         if(null != val1) {
             return (DERObjectIdentifier)val1;
         }
@@ -669,10 +670,7 @@ public class ASN1 {
     public static class ObjectId {
         @JRubyMethod(meta=true, rest=true)
         public static IRubyObject register(IRubyObject recv, IRubyObject[] args) {
-            DERObjectIdentifier deroi = new DERObjectIdentifier(args[0].toString());
-            getOIDLookup(recv.getRuntime()).put(args[1].toString().toLowerCase(),deroi);
-            getOIDLookup(recv.getRuntime()).put(args[2].toString().toLowerCase(),deroi);
-            getSymLookup(recv.getRuntime()).put(deroi,args[1].toString());
+            addObject(recv.getRuntime(), args[0].toString(), args[1].toString(), args[2].toString());
             return recv.getRuntime().getTrue();
         }
 
@@ -692,85 +690,138 @@ public class ASN1 {
         }
     }
 
-    private final static DateFormat dateF = new SimpleDateFormat("yyyyMMddHHmmssz");
-    private static IRubyObject decodeObj(RubyModule asnM,Object v) throws IOException, java.text.ParseException {
-        int ix = idForClass(v.getClass());
-        String v_name = ix == -1 ? null : (String)(ASN1_INFO[ix][2]);
-        ThreadContext tc = asnM.getRuntime().getCurrentContext();
-        if(null != v_name) {
-            RubyClass c = asnM.getClass(v_name);
-            if(v instanceof DERBitString) {
-                ByteList bl = new ByteList(((DERBitString)v).getBytes(), false);
-                IRubyObject bString = c.callMethod(tc,"new",asnM.getRuntime().newString(bl));
-                bString.callMethod(tc,"unused_bits=",asnM.getRuntime().newFixnum(((DERBitString)v).getPadBits()));
-                return bString;
-            } else if(v instanceof DERString) {
-                ByteList val; 
-                if (v instanceof DERUTF8String) {
-                    val = new ByteList(((DERUTF8String) v).getString().getBytes("UTF-8"));
-                } else {
-                    val = ByteList.create(((DERString)v).getString());
-                }
-                return c.callMethod(tc,"new",asnM.getRuntime().newString(val));
-            } else if(v instanceof ASN1Sequence) {
-                List<IRubyObject> l = new ArrayList<IRubyObject>();
-                for(Enumeration enm = ((ASN1Sequence)v).getObjects(); enm.hasMoreElements(); ) {
-                    l.add(decodeObj(asnM,enm.nextElement()));
+    /**
+     * Builds the Ruby side of a DER encoding straight from the bytes. The
+     * ASN1Data objects are allocated and their attributes set directly,
+     * rather than going through a BouncyCastle object tree and calling new
+     * on every class.
+     */
+    private static final class Decoder {
+        private final Ruby runtime;
+        private final RubyModule asnM;
+        private final RubyClass[] classes = new RubyClass[ASN1_INFO.length];
+        private RubyClass dataClass;
+
+        Decoder(RubyModule asnM) {
+            this.runtime = asnM.getRuntime();
+            this.asnM = asnM;
+        }
+
+        IRubyObject decode(ASN1Reader r) throws IOException {
+            r.next();
+            int tag = r.tag();
+            if(r.tagClass() != ASN1Reader.UNIVERSAL) {
+                return data(tagged(r), tag, tagClass(r.tagClass()));
+            }
+            if(tag >= ASN1_INFO.length || ASN1_INFO[tag][2] == null) {
+                return data(runtime.newString(new ByteList(r.bytes(), false)), tag, tagClass(ASN1Reader.UNIVERSAL));
+            }
+            if(tag == ASN1Reader.SEQUENCE || tag == ASN1Reader.SET) {
+                if(!r.isConstructed()) {
+                    throw new IOException("primitive encoding of constructed type");
                 }
-                return c.callMethod(tc,"new",asnM.getRuntime().newArray(l));
-            } else if(v instanceof DERSet) {
-                List<IRubyObject> l = new ArrayList<IRubyObject>();
-                for(Enumeration enm = ((DERSet)v).getObjects(); enm.hasMoreElements(); ) {
-                    l.add(decodeObj(asnM,enm.nextElement()));
+                return typed(tag, runtime.newArray(children(r)));
+            }
+            if(r.isConstructed()) {
+                if(!isString(tag)) {
+                    throw new IOException("constructed encoding of primitive type");
                 }
-                return c.callMethod(tc,"new",asnM.getRuntime().newArray(l));
-            } else if(v instanceof DERNull) {
-                return c.callMethod(tc,"new",asnM.getRuntime().getNil());
-            } else if(v instanceof DERInteger) {
-                return c.callMethod(tc,"new",RubyNumeric.str2inum(asnM.getRuntime(),asnM.getRuntime().newString(((DERInteger)v).getValue().toString()),10));
-            } else if(v instanceof DERUTCTime) {
-                Date d = dateF.parse(((DERUTCTime)v).getAdjustedTime());
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(d);
-                IRubyObject[] argv = new IRubyObject[6];
-                argv[0] = asnM.getRuntime().newFixnum(cal.get(Calendar.YEAR));
-                argv[1] = asnM.getRuntime().newFixnum(cal.get(Calendar.MONTH)+1);
-                argv[2] = asnM.getRuntime().newFixnum(cal.get(Calendar.DAY_OF_MONTH));
-                argv[3] = asnM.getRuntime().newFixnum(cal.get(Calendar.HOUR_OF_DAY));
-                argv[4] = asnM.getRuntime().newFixnum(cal.get(Calendar.MINUTE));
-                argv[5] = asnM.getRuntime().newFixnum(cal.get(Calendar.SECOND));
-                return c.callMethod(tc,"new",asnM.getRuntime().getClass("Time").callMethod(tc,"local",argv));
-            } else if(v instanceof DERObjectIdentifier) {
-                String av = ((DERObjectIdentifier)v).getId();
-                return c.callMethod(tc,"new",asnM.getRuntime().newString(av));
-            } else if(v instanceof DEROctetString) {
-                ByteList bl = new ByteList(((DEROctetString)v).getOctets(), false);
-                return c.callMethod(tc,"new",asnM.getRuntime().newString(bl));
-            } else if(v instanceof DERBoolean) {
-                return c.callMethod(tc,"new",((DERBoolean)v).isTrue() ? asnM.getRuntime().getTrue() : asnM.getRuntime().getFalse());
-            } else {
-                System.out.println("Should handle: " + v.getClass().getName());
+                return typed(tag, runtime.newString(new ByteList(r.stringBytes(), false)));
+            }
+            switch(tag) {
+            case ASN1Reader.BOOLEAN:
+                return typed(tag, runtime.newBoolean(r.booleanValue()));
+            case ASN1Reader.INTEGER:
+            case ASN1Reader.ENUMERATED:
+                return typed(tag, r.isLong() ? runtime.newFixnum(r.longValue()) : RubyBignum.bignorm(runtime, r.bigIntegerValue()));
+            case ASN1Reader.BIT_STRING:
+                ASN1Data bString = typed(tag, runtime.newString(new ByteList(r.bitStringBytes(), false)));
+                bString.setInstanceVariable("@unused_bits", runtime.newFixnum(r.unusedBits()));
+                return bString;
+            case ASN1Reader.NULL:
+                return typed(tag, runtime.getNil());
+            case ASN1Reader.OBJECT:
+                String oid = r.oidValue();
+                String sym = oid2sym(runtime, new DERObjectIdentifier(oid));
+                return typed(tag, runtime.newString(sym != null ? sym : oid));
+            case ASN1Reader.UTCTIME:
+            case ASN1Reader.GENERALIZEDTIME:
+                return typed(tag, RubyTime.newTime(runtime, r.timeValue()));
+            default:
+                return typed(tag, runtime.newString(new ByteList(r.bytes(), false)));
             }
-        } else if(v instanceof DERTaggedObject) {
-            RubyClass c = asnM.getClass("ASN1Data");
-            IRubyObject val = decodeObj(asnM, ((DERTaggedObject)v).getObject());
-            IRubyObject tag = asnM.getRuntime().newFixnum(((DERTaggedObject)v).getTagNo());
-            IRubyObject tag_class = asnM.getRuntime().newSymbol("CONTEXT_SPECIFIC");
-            return c.callMethod(tc,"new",new IRubyObject[]{asnM.getRuntime().newArray(val),tag,tag_class});
         }
 
-        //        System.err.println("v: " + v + "[" + v.getClass().getName() + "]");
-        return null;
+        // OCTET STRING and UTF8String up to BMPString, which BER allows to
+        // be split into constructed segments
+        private static boolean isString(int tag) {
+            return tag == ASN1Reader.OCTET_STRING || (tag >= 12 && tag <= 30 && tag != ASN1Reader.UTCTIME && tag != ASN1Reader.GENERALIZEDTIME);
+        }
+
+        private List<IRubyObject> children(ASN1Reader r) throws IOException {
+            List<IRubyObject> l = new ArrayList<IRubyObject>();
+            for(ASN1Reader c = r.contents(); c.hasNext(); ) {
+                l.add(decode(c));
+            }
+            return l;
+        }
+
+        // a primitive tagged value is read as an OCTET STRING, constructed
+        // contents as one explicitly tagged value or an implicit SEQUENCE
+        private RubyArray tagged(ASN1Reader r) throws IOException {
+            if(!r.isConstructed()) {
+                return runtime.newArray(typed(ASN1Reader.OCTET_STRING, runtime.newString(new ByteList(r.bytes(), false))));
+            }
+            List<IRubyObject> l = children(r);
+            if(l.size() == 1) {
+                return runtime.newArray(l.get(0));
+            }
+            return runtime.newArray(typed(ASN1Reader.SEQUENCE, runtime.newArray(l)));
+        }
+
+        private ASN1Data typed(int tag, IRubyObject value) {
+            RubyClass c = classes[tag];
+            if(c == null) {
+                c = classes[tag] = asnM.getClass((String)ASN1_INFO[tag][2]);
+            }
+            ASN1Data obj = (ASN1Data)c.allocate();
+            obj.setInstanceVariable("@tag", runtime.newFixnum(tag));
+            obj.setInstanceVariable("@value", value);
+            obj.setInstanceVariable("@tagging", runtime.getNil());
+            obj.setInstanceVariable("@tag_class", tagClass(ASN1Reader.UNIVERSAL));
+            return obj;
+        }
+
+        private ASN1Data data(IRubyObject value, int tag, IRubyObject tagClass) {
+            if(dataClass == null) {
+                dataClass = asnM.getClass("ASN1Data");
+            }
+            ASN1Data obj = (ASN1Data)dataClass.allocate();
+            obj.setInstanceVariable("@tag", runtime.newFixnum(tag));
+            obj.setInstanceVariable("@value", value);
+            obj.setInstanceVariable("@tag_class", tagClass);
+            return obj;
+        }
+
+        private IRubyObject tagClass(int tagClass) {
+            switch(tagClass) {
+            case ASN1Reader.APPLICATION:
+                return runtime.newSymbol("APPLICATION");
+            case ASN1Reader.CONTEXT_SPECIFIC:
+                return runtime.newSymbol("CONTEXT_SPECIFIC");
+            case ASN1Reader.PRIVATE:
+                return runtime.newSymbol("PRIVATE");
+            default:
+                return runtime.newSymbol("UNIVERSAL");
+            }
+        }
     }
 
     @JRubyMethod(meta = true)
     public static IRubyObject decode(IRubyObject recv, IRubyObject obj) {
         try {
             IRubyObject obj2 = OpenSSLImpl.to_der_if_possible(obj);
-            RubyModule asnM = (RubyModule)recv;
-            ASN1InputStream asis = new ASN1InputStream(obj2.convertToString().getBytes());
-            IRubyObject ret = decodeObj(asnM, asis.readObject());
-            return ret;
+            return new Decoder((RubyModule)recv).decode(new ASN1Reader(obj2.convertToString().getBytes()));
         } catch(IOException e) {
             throw recv.getRuntime().newIOErrorFromException(e);
         } catch(Exception e) {
@@ -780,8 +831,53 @@ public class ASN1 {
 
     @JRubyMethod(meta=true, required=1)
     public static IRubyObject decode_all(IRubyObject recv, IRubyObject a) {
-        System.err.println("WARNING: unimplemented method called: decode_all");
-        return null;
+        try {
+            IRubyObject obj = OpenSSLImpl.to_der_if_possible(a);
+            Decoder decoder = new Decoder((RubyModule)recv);
+            List<IRubyObject> l = new ArrayList<IRubyObject>();
+            for(ASN1Reader r = new ASN1Reader(obj.convertToString().getBytes()); r.hasNext(); ) {
+                l.add(decoder.decode(r));
+            }
+            return recv.getRuntime().newArray(l);
+        } catch(IOException e) {
+            throw recv.getRuntime().newIOErrorFromException(e);
+        } catch(Exception e) {
+            throw recv.getRuntime().newArgumentError(e.getMessage());
+        }
+    }
+
+    /**
+     * Yields each top level value in a String or in anything that responds
+     * to read, such as an IO. An IO is read one element at a time, so the
+     * memory used is bounded by the largest element, not the input.
+     * Nothing is buffered: every read asks for exactly the bytes the
+     * element still needs, so a pipe is never waited on past the current
+     * element and the IO is left just behind the last one yielded.
+     */
+    @JRubyMethod(meta=true, required=1)
+    public static IRubyObject each_object(IRubyObject recv, IRubyObject io, Block block) {
+        Ruby runtime = recv.getRuntime();
+        if(!block.isGiven()) {
+            throw runtime.newArgumentError("no block given");
+        }
+        ThreadContext tc = runtime.getCurrentContext();
+        Decoder decoder = new Decoder((RubyModule)recv);
+        try {
+            if(io instanceof RubyString) {
+                for(ASN1Reader r = new ASN1Reader(((RubyString)io).getBytes()); r.hasNext(); ) {
+                    block.yield(tc, decoder.decode(r));
+                }
+            } else {
+                InputStream in = new IOInputStream(io);
+                byte[] der;
+                while((der = ASN1Reader.readEncoding(in)) != null) {
+                    block.yield(tc, decoder.decode(new ASN1Reader(der)));
+                }
+            }
+        } catch(IOException e) {
+            throw runtime.newIOErrorFromException(e);
+        }
+        return runtime.getNil();
     }
 
     public static class ASN1Data extends RubyObject {
@@ -938,7 +1034,7 @@ public class ASN1 {
                 tag_class = getRuntime().newSymbol("UNIVERSAL");
             }
             if("ObjectId".equals(getMetaClass().getRealClass().getBaseName())) {
-                String v = getSymLookup(getRuntime()).get(getObjectIdentifier(value.toString()));
+                String v = oid2sym(getRuntime(), getObjectIdentifier(value.toString()));
                 if(v != null) {
                     value = getRuntime().newString(v);
                 }
@@ -953,7 +1049,7 @@ public class ASN1 {
         }
 
         private DERObjectIdentifier getObjectIdentifier(String nameOrOid) {
-            Object val1 = ASN1.getOIDLookup(getRuntime()).get(nameOrOid.toLowerCase());
+            Object val1 = sym2oid(getRuntime(), nameOrOid);
             if(null != val1) {
                 return (DERObjectIdentifier)val1;
             }
@@ -69,7 +69,7 @@ public class Attribute extends RubyObject {
     private IRubyObject value;
 
     private DERObjectIdentifier getObjectIdentifier(String nameOrOid) {
-        Object val1 = ASN1.getOIDLookup(getRuntime()).get(nameOrOid.toLowerCase());
+        Object val1 = ASN1.sym2oid(getRuntime(), nameOrOid);
         if(null != val1) {
             return (DERObjectIdentifier)val1;
         }
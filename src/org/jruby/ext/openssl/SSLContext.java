@@ -73,7 +73,7 @@ public class SSLContext extends RubyObject {
     private final static String[] ctx_attrs = {
         "cert", "key", "client_ca", "ca_file", "ca_path",
         "timeout", "verify_mode", "verify_depth",
-        "verify_callback", "options", "cert_store", "extra_chain_cert",
+        "verify_callback", "verify_callback_mode", "options", "cert_store", "extra_chain_cert",
         "client_cert_cb", "tmp_dh_callback", "session_id_context"};
 
     // Mapping table for OpenSSL's SSL_METHOD -> JSSE's SSLContext algorithm.
@@ -238,6 +238,11 @@ public class SSLContext extends RubyObject {
         if (value != null && !value.isNil()) {
             internalCtx.store.setExtraData(1, value);
         }
+        value = getInstanceVariable("@verify_callback_mode");
+        if (value != null && !value.isNil()) {
+            internalCtx.store.setExtraData(X509Store.CALLBACK_MODE_IDX,
+                    X509Store.CallbackMode.parse(getRuntime(), value));
+        }
 
         value = getInstanceVariable("@timeout");
         if (value != null && !value.isNil()) {
@@ -333,6 +338,17 @@ public class SSLContext extends RubyObject {
         return val;
     }
 
+    /**
+     * Same modes as X509::Store#verify_callback_mode=, checked here so
+     * that a bad one raises where it is assigned rather than in setup.
+     */
+    @JRubyMethod(name = "verify_callback_mode=")
+    public IRubyObject set_verify_callback_mode(IRubyObject mode) {
+        X509Store.CallbackMode.parse(getRuntime(), mode);
+        setInstanceVariable("@verify_callback_mode", mode);
+        return mode;
+    }
+
     @JRubyMethod(name = "ssl_version=")
     public IRubyObject set_ssl_version(IRubyObject val) {
         RubyString str = val.convertToString();
@@ -635,12 +651,12 @@ public class SSLContext extends RubyObject {
                         break;
                     }
                     try {
-                        Name xn = new Name(x.getIssuerX500Principal());
+                        Name xn = Name.of(x.getIssuerX500Principal());
                         X509Object[] s_obj = new X509Object[1];
                         if (storeCtx.getBySubject(X509Utils.X509_LU_X509, xn, s_obj) <= 0) {
                             break;
                         }
-                        x = ((Certificate) s_obj[0]).x509;
+                        x = ((Certificate) s_obj[0]).getX509();
                     } catch (Exception e) {
                         break;
                     }
@@ -79,6 +79,8 @@ public class X509 {
         mX509.setConstant("V_ERR_AKID_ISSUER_SERIAL_MISMATCH",runtime.newFixnum(31));
         mX509.setConstant("V_ERR_KEYUSAGE_NO_CERTSIGN",runtime.newFixnum(32));
         mX509.setConstant("V_ERR_APPLICATION_VERIFICATION",runtime.newFixnum(50));
+        mX509.setConstant("V_ERR_OCSP_VERIFY_FAILED",runtime.newFixnum(74));
+        mX509.setConstant("V_ERR_OCSP_CERT_UNKNOWN",runtime.newFixnum(75));
         mX509.setConstant("V_FLAG_CRL_CHECK",runtime.newFixnum(4));
         mX509.setConstant("V_FLAG_CRL_CHECK_ALL",runtime.newFixnum(8));
         mX509.setConstant("PURPOSE_SSL_CLIENT",runtime.newFixnum(1));
@@ -28,32 +28,32 @@
 package org.jruby.ext.openssl;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.cert.CRLException;
-import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRLEntry;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.DERBoolean;
-import org.bouncycastle.asn1.DEREncodable;
 import org.bouncycastle.asn1.DERInteger;
 import org.bouncycastle.asn1.DERObject;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.DERSequence;
-import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.x509.X509V2CRLGenerator;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
 import org.jruby.RubyClass;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
@@ -63,6 +63,7 @@ import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
 import org.jruby.ext.openssl.x509store.BouncyCastleASN1FormatHandler;
+import org.jruby.ext.openssl.x509store.StreamingCRL;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
 import org.jruby.runtime.builtin.IRubyObject;
@@ -85,6 +86,10 @@ public class X509CRL extends RubyObject {
         mX509.defineClassUnder("CRLError",openSSLError,openSSLError.getAllocator());
 
         cX509CRL.defineAnnotatedMethods(X509CRL.class);
+
+        RubyClass cRevokedList = cX509CRL.defineClassUnder("RevokedList",runtime.getObject(),ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        cRevokedList.includeModule(runtime.getModule("Enumerable"));
+        cRevokedList.defineAnnotatedMethods(RevokedList.class);
     }
 
     private IRubyObject version;
@@ -123,78 +128,66 @@ public class X509CRL extends RubyObject {
             return this;
         }
 
-        ByteArrayInputStream bis = new ByteArrayInputStream(args[0].convertToString().getBytes());
-        try {
-            // SunJCE throws java.security.cert.CRLException: Invalid encoding of AuthorityKeyIdentifierExtension.
-            // FIXME: use BC for now.
-            CertificateFactory cf = OpenSSLReal.getX509CertificateFactoryBC();
-            crl = (java.security.cert.X509CRL) cf.generateCRL(bis);
-        } catch (GeneralSecurityException gse) {
-            throw newX509CRLError(getRuntime(), gse.getMessage());
-        }
-
-        byte[] crl_bytes = args[0].convertToString().getBytes();
-        // Parse PEM if we ever get passed some PEM contents
+        StreamingCRL parsed;
         try {
-            StringReader in = new StringReader(args[0].toString());
-            byte[] bytes = OpenSSLReal.getFormatHandler().readPEMToDER(in);
-            if (bytes != null)
-                crl_bytes = bytes;
-            in.close();
-        }
-        catch(Exception e) {
-            // this is not PEM encoded, let's use the default argument
+            parsed = StreamingCRL.load(ByteBuffer.wrap(args[0].convertToString().getBytes()));
+        } catch (CRLException crle) {
+            throw newX509CRLError(getRuntime(), crle.getMessage());
         }
+        setCRL(parsed);
+        return this;
+    }
 
+    /**
+     * Reads a CRL, PEM or DER, from path without copying the file into
+     * a Ruby String first. The file is read once into a private buffer
+     * that the CRL is then parsed from.
+     */
+    @JRubyMethod(meta=true)
+    public static IRubyObject load_file(IRubyObject klass, IRubyObject path) {
+        Ruby runtime = klass.getRuntime();
+        StreamingCRL parsed;
         try {
-            crl_v = new ASN1InputStream(new ByteArrayInputStream(crl_bytes)).readObject();
+            File file = new File(path.convertToString().toString());
+            if (!file.isAbsolute()) {
+                file = new File(runtime.getCurrentDirectory(), file.getPath());
+            }
+            parsed = StreamingCRL.load(StreamingCRL.read(file));
         } catch (IOException ioe) {
-            throw newX509CRLError(getRuntime(), ioe.getMessage());
+            throw newX509CRLError(runtime, ioe.getMessage());
+        } catch (CRLException crle) {
+            throw newX509CRLError(runtime, crle.getMessage());
         }
+        X509CRL crl = (X509CRL)X509CRL_ALLOCATOR.allocate(runtime, (RubyClass)klass);
+        crl.extensions = new ArrayList<IRubyObject>();
+        crl.setCRL(parsed);
+        return crl;
+    }
+
+    private void setCRL(StreamingCRL parsed) {
+        crl = parsed;
+        crl_v = null;
 
-        DEREncodable v0 = ((DERSequence)(((DERSequence)crl_v).getObjectAt(0))).getObjectAt(0);
-        if(v0 instanceof DERInteger) {
-            set_version(getRuntime().newFixnum(((DERInteger)v0).getValue().intValue()));
+        // an explicit version field holds 1 (v2); without one report 2 as before
+        set_version(getRuntime().newFixnum(parsed.getVersion() == 2 ? 1 : 2));
+        set_last_update(RubyTime.newTime(getRuntime(),crl.getThisUpdate().getTime()));
+        if(crl.getNextUpdate() != null) {
+            set_next_update(RubyTime.newTime(getRuntime(),crl.getNextUpdate().getTime()));
         } else {
-            set_version(getRuntime().newFixnum(2));
+            next_update = getRuntime().getNil();
         }
-        set_last_update(RubyTime.newTime(getRuntime(),crl.getThisUpdate().getTime()));
-        set_next_update(RubyTime.newTime(getRuntime(),crl.getNextUpdate().getTime()));
         RubyString name = RubyString.newString(getRuntime(), crl.getIssuerX500Principal().getEncoded());
         set_issuer(Utils.newRubyInstance(getRuntime(), "OpenSSL::X509::Name", name));
 
-        revoked = getRuntime().newArray();
-
-        DERSequence seqa = (DERSequence)((DERSequence)crl_v).getObjectAt(0);
-        DERObject maybe_ext = (DERObject)seqa.getObjectAt(seqa.size()-1);
-        if(maybe_ext instanceof DERTaggedObject && ((DERTaggedObject)maybe_ext).getTagNo() == 0) {
-            DERSequence exts = (DERSequence)((DERTaggedObject)maybe_ext).getObject();
-            for(int i=0;i<exts.size();i++) {
-                DERSequence seq2 = (DERSequence)exts.getObjectAt(i);
-                boolean critical = false;
-                String oid = ((DERObjectIdentifier)seq2.getObjectAt(0)).getId();
-                if(seq2.getObjectAt(1) == DERBoolean.TRUE) {
-                    critical = true;
-                }
-                byte[] value = crl.getExtensionValue(oid);
-                IRubyObject mASN1 = getRuntime().getClassFromPath("OpenSSL::ASN1");
-                IRubyObject rValue = null;
-                try {
-                    rValue = ASN1.decode(mASN1,
-                            ASN1.decode(mASN1, RubyString.newString(getRuntime(), value)).callMethod(getRuntime().getCurrentContext(), "value"));
-                } catch(Exception e) {
-                    rValue = RubyString.newString(getRuntime(), value);
-                }
-                X509Extensions.Extension ext1 = (X509Extensions.Extension) Utils.newRubyInstance(getRuntime(), "OpenSSL::X509::Extension");
-                ext1.setRealOid(ext1.getObjectIdentifier(oid));
-                ext1.setRealValue(rValue);
-                ext1.setRealCritical(critical);
-                add_extension(ext1);
-            }
+        revoked = new RevokedList(getRuntime(), parsed);
+
+        Set<String> criticalOIDs = crl.getCriticalExtensionOIDs();
+        for(String oid : parsed.getExtensionOIDs()) {
+            boolean critical = criticalOIDs != null && criticalOIDs.contains(oid);
+            add_extension(newExtension(getRuntime(), oid, crl.getExtensionValue(oid), critical));
         }
 
         changed = false;
-        return this;
     }
 
     @Override
@@ -223,7 +216,12 @@ public class X509CRL extends RubyObject {
     @JRubyMethod
     public IRubyObject to_der() {
         try {
+            if(crl_v == null) {
+                return RubyString.newString(getRuntime(), crl.getEncoded());
+            }
             return RubyString.newString(getRuntime(), crl_v.getEncoded());
+        } catch (CRLException crle) {
+            throw newX509CRLError(getRuntime(), crle.getMessage());
         } catch (IOException ioe) {
             throw newX509CRLError(getRuntime(), ioe.getMessage());
         }
@@ -239,7 +237,7 @@ public class X509CRL extends RubyObject {
         sbe.append("Certificate Revocation List (CRL):\n");
         sbe.append(IND8).append("Version ").append(RubyNumeric.fix2int(version)+1).append(" (0x");
         sbe.append(Integer.toString(RubyNumeric.fix2int(version),16)).append(")\n");
-        sbe.append(IND8).append("Signature Algorithm: ").append(ASN1.nid2ln(getRuntime(),ASN1.obj2nid(getRuntime(),((DERObjectIdentifier)((DERSequence)((DERSequence)crl_v).getObjectAt(1)).getObjectAt(0))))).append("\n");
+        sbe.append(IND8).append("Signature Algorithm: ").append(ASN1.nid2ln(getRuntime(),ASN1.obj2nid(getRuntime(),new DERObjectIdentifier(crl.getSigAlgOID())))).append("\n");
         sbe.append(IND8).append("Issuer: ").append(issuer()).append("\n");
         sbe.append(IND8).append("Last Update: ").append(ASN_DATE.format(((RubyTime)last_update()).getJavaDate())).append("\n");
         if(!next_update().isNil()) {
@@ -347,11 +345,135 @@ public class X509CRL extends RubyObject {
         return val;
     }
 
+    private static IRubyObject newExtension(Ruby runtime, String oid, byte[] value, boolean critical) {
+        IRubyObject mASN1 = runtime.getClassFromPath("OpenSSL::ASN1");
+        IRubyObject rValue = null;
+        try {
+            rValue = ASN1.decode(mASN1,
+                    ASN1.decode(mASN1, RubyString.newString(runtime, value)).callMethod(runtime.getCurrentContext(), "value"));
+        } catch(Exception e) {
+            rValue = RubyString.newString(runtime, value);
+        }
+        X509Extensions.Extension ext1 = (X509Extensions.Extension) Utils.newRubyInstance(runtime, "OpenSSL::X509::Extension");
+        ext1.setRealOid(ext1.getObjectIdentifier(oid));
+        ext1.setRealValue(rValue);
+        ext1.setRealCritical(critical);
+        return ext1;
+    }
+
+    /**
+     * Revoked entries of a parsed CRL. Entries are decoded into
+     * X509::Revoked objects only while iterating; counting and serial
+     * lookups are answered from the CRL's revocation index.
+     */
+    public static class RevokedList extends RubyObject {
+        private static final long serialVersionUID = 1L;
+
+        private final StreamingCRL crl;
+
+        RevokedList(Ruby runtime, StreamingCRL crl) {
+            super(runtime, Utils.getClassFromPath(runtime, "OpenSSL::X509::CRL::RevokedList"));
+            this.crl = crl;
+        }
+
+        @JRubyMethod(frame=true)
+        public IRubyObject each(Block block) {
+            for(Iterator<X509CRLEntry> iter = crl.revokedIterator(); iter.hasNext();) {
+                block.yield(getRuntime().getCurrentContext(), newRevoked(getRuntime(), iter.next()));
+            }
+            return this;
+        }
+
+        @JRubyMethod(name={"size", "length"})
+        public IRubyObject size() {
+            return getRuntime().newFixnum(crl.getRevokedCount());
+        }
+
+        @JRubyMethod(name="empty?")
+        public IRubyObject empty_p() {
+            return getRuntime().newBoolean(crl.getRevokedCount() == 0);
+        }
+
+        @JRubyMethod
+        public IRubyObject to_a() {
+            RubyArray ary = getRuntime().newArray(crl.getRevokedCount());
+            for(Iterator<X509CRLEntry> iter = crl.revokedIterator(); iter.hasNext();) {
+                ary.append(newRevoked(getRuntime(), iter.next()));
+            }
+            return ary;
+        }
+
+        @JRubyMethod
+        public IRubyObject inspect() {
+            return getRuntime().newString("#<OpenSSL::X509::CRL::RevokedList size=" + crl.getRevokedCount() + ">");
+        }
+    }
+
+    private static IRubyObject newRevoked(Ruby runtime, X509CRLEntry entry) {
+        X509Revoked rev = (X509Revoked)Utils.newRubyInstance(runtime, "OpenSSL::X509::Revoked");
+        rev.set_serial(RubyBignum.bignorm(runtime, entry.getSerialNumber()));
+        rev.set_time(RubyTime.newTime(runtime, entry.getRevocationDate().getTime()));
+        addEntryExtensions(runtime, rev, entry, entry.getCriticalExtensionOIDs(), true);
+        addEntryExtensions(runtime, rev, entry, entry.getNonCriticalExtensionOIDs(), false);
+        return rev;
+    }
+
+    private static void addEntryExtensions(Ruby runtime, X509Revoked rev, X509CRLEntry entry, Set<String> oids, boolean critical) {
+        if(oids == null) {
+            return;
+        }
+        for(String oid : oids) {
+            rev.add_extension(newExtension(runtime, oid, entry.getExtensionValue(oid), critical));
+        }
+    }
+
+    private static BigInteger toSerial(IRubyObject serial) {
+        return new BigInteger(serial.toString());
+    }
+
+    /* a parsed CRL keeps its entries lazily; anything that edits them
+     * gets a plain Array first */
+    private RubyArray revokedArray() {
+        if(revoked instanceof RevokedList) {
+            revoked = ((RevokedList)revoked).to_a();
+        }
+        return (RubyArray)revoked;
+    }
+
     @JRubyMethod
     public IRubyObject revoked() {
         return this.revoked;
     }
 
+    @JRubyMethod
+    public IRubyObject revoked_count() {
+        if(revoked instanceof RevokedList) {
+            return ((RevokedList)revoked).size();
+        }
+        return revoked.callMethod(getRuntime().getCurrentContext(), "size");
+    }
+
+    @JRubyMethod(name="revoked?")
+    public IRubyObject revoked_p(IRubyObject serial) {
+        return getRuntime().newBoolean(!find_revoked(serial).isNil());
+    }
+
+    @JRubyMethod
+    public IRubyObject find_revoked(IRubyObject serial) {
+        BigInteger s = toSerial(serial);
+        if(revoked instanceof RevokedList) {
+            X509CRLEntry entry = ((RevokedList)revoked).crl.getRevokedCertificate(s);
+            return entry == null ? getRuntime().getNil() : newRevoked(getRuntime(), entry);
+        }
+        for(IRubyObject rev : ((RubyArray)revoked).toJavaArray()) {
+            IRubyObject revSerial = rev.callMethod(getRuntime().getCurrentContext(), "serial");
+            if(!revSerial.isNil() && toSerial(revSerial).equals(s)) {
+                return rev;
+            }
+        }
+        return getRuntime().getNil();
+    }
+
     @JRubyMethod(name="revoked=")
     public IRubyObject set_revoked(IRubyObject val) {
         changed = true;
@@ -362,7 +484,7 @@ public class X509CRL extends RubyObject {
     @JRubyMethod
     public IRubyObject add_revoked(IRubyObject val) {
         changed = true;
-        this.revoked.callMethod(getRuntime().getCurrentContext(),"<<",val);
+        revokedArray().append(val);
         return val;
     }
 
@@ -400,7 +522,7 @@ public class X509CRL extends RubyObject {
         sig_alg = getRuntime().newString(digAlg);
         generator.setSignatureAlgorithm(digAlg + "WITH" + keyAlg);
 
-        for (IRubyObject obj : ((RubyArray)revoked).toJavaArray()) {
+        for (IRubyObject obj : revokedArray().toJavaArray()) {
             X509Revoked rev = (X509Revoked)obj; // TODO: can throw CCE
             BigInteger serial = new BigInteger(rev.callMethod(getRuntime().getCurrentContext(),"serial").toString());
             IRubyObject t1 = rev.callMethod(getRuntime().getCurrentContext(),"time").callMethod(getRuntime().getCurrentContext(),"getutc");
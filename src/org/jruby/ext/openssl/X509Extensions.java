@@ -145,7 +145,7 @@ public class X509Extensions {
         }
 
         private DERObjectIdentifier getObjectIdentifier(String nameOrOid) {
-            Object val1 = ASN1.getOIDLookup(getRuntime()).get(nameOrOid.toLowerCase());
+            Object val1 = ASN1.sym2oid(getRuntime(), nameOrOid);
             if(null != val1) {
                 return (DERObjectIdentifier)val1;
             }
@@ -510,7 +510,7 @@ public class X509Extensions {
         }
 
         DERObjectIdentifier getObjectIdentifier(String nameOrOid) {
-            Object val1 = ASN1.getOIDLookup(getRuntime()).get(nameOrOid.toLowerCase());
+            Object val1 = ASN1.sym2oid(getRuntime(), nameOrOid);
             if(null != val1) {
                 return (DERObjectIdentifier)val1;
             }
@@ -565,7 +565,7 @@ public class X509Extensions {
 
         @JRubyMethod
         public IRubyObject oid() {
-            Object val = ASN1.getSymLookup(getRuntime()).get(oid);
+            Object val = ASN1.oid2sym(getRuntime(), oid);
             if(null == val) {
                 val = oid.toString();
             }
@@ -31,7 +31,6 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
 
 import org.bouncycastle.asn1.ASN1Encodable;
@@ -223,7 +222,7 @@ public class X509Name extends RubyObject {
     */
 
     private DERObjectIdentifier getObjectIdentifier(String nameOrOid) {
-        Object val1 = ASN1.getOIDLookup(getRuntime()).get(nameOrOid.toLowerCase());
+        Object val1 = ASN1.sym2oid(getRuntime(), nameOrOid);
         if(null != val1) {
             return (DERObjectIdentifier)val1;
         }
@@ -280,7 +279,6 @@ else
         }
 
         StringBuffer sb = new StringBuffer();
-        Map<DERObjectIdentifier, String>  lookup = ASN1.getSymLookup(getRuntime());
         Iterator<Object> oiter = null;
         Iterator<Object> viter = null;
         if(flag == RFC2253) {
@@ -299,7 +297,7 @@ else
         for(;oiter.hasNext();) {
             DERObjectIdentifier oid = (DERObjectIdentifier)oiter.next();
             String val = (String)viter.next();
-            String outOid = lookup.get(oid);
+            String outOid = ASN1.oid2sym(getRuntime(), oid);
             if(null == outOid) {
                 outOid = oid.toString();
             }
@@ -317,14 +315,13 @@ else
     @JRubyMethod
     public RubyArray to_a() {
         List<IRubyObject> entries = new ArrayList<IRubyObject>();
-        Map<DERObjectIdentifier, String> lookup = ASN1.getSymLookup(getRuntime());
         Iterator<Object> oiter = oids.iterator();
         Iterator<Object> viter = values.iterator();
         Iterator<Object> titer = types.iterator();
         for(;oiter.hasNext();) {
             DERObjectIdentifier oid = (DERObjectIdentifier)oiter.next();
             String val = (String)viter.next();
-            String outOid = lookup.get(oid);
+            String outOid = ASN1.oid2sym(getRuntime(), oid);
             if(null == outOid) {
                 outOid = "UNDEF";
             }
@@ -27,7 +27,15 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl;
 
+import java.io.File;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
 import org.jruby.RubyFixnum;
@@ -35,14 +43,22 @@ import org.jruby.RubyHash;
 import org.jruby.RubyModule;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.RubyTime;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.exceptions.RaiseException;
+import org.jruby.ext.openssl.x509store.BatchVerifier;
+import org.jruby.ext.openssl.x509store.Lookup;
 import org.jruby.ext.openssl.x509store.X509AuxCertificate;
 import org.jruby.ext.openssl.x509store.Store;
 import org.jruby.ext.openssl.x509store.StoreContext;
+import org.jruby.ext.openssl.x509store.TrustBundle;
+import org.jruby.ext.openssl.x509store.VerifyStats;
 import org.jruby.ext.openssl.x509store.X509Utils;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 /**
@@ -61,8 +77,7 @@ public class X509Store extends RubyObject {
         RubyClass cX509Store = mX509.defineClassUnder("Store",runtime.getObject(),X509STORE_ALLOCATOR);
         RubyClass openSSLError = runtime.getModule("OpenSSL").getClass("OpenSSLError");
         mX509.defineClassUnder("StoreError",openSSLError,openSSLError.getAllocator());
-        cX509Store.attr_accessor(runtime.getCurrentContext(), new IRubyObject[]{runtime.newSymbol("verify_callback"),runtime.newSymbol("error"),
-                                                                                runtime.newSymbol("error_string"),runtime.newSymbol("chain")});
+        cX509Store.attr_accessor(runtime.getCurrentContext(), new IRubyObject[]{runtime.newSymbol("verify_callback")});
 
         cX509Store.defineAnnotatedMethods(X509Store.class);
 
@@ -70,17 +85,24 @@ public class X509Store extends RubyObject {
     }
 
     private RubyClass cStoreError;
-    private RubyClass cStoreContext;
 
     public X509Store(Ruby runtime, RubyClass type) {
         super(runtime,type);
         store = new Store();
         cStoreError = Utils.getClassFromPath(runtime, "OpenSSL::X509::StoreError");
-        cStoreContext = Utils.getClassFromPath(runtime, "OpenSSL::X509::StoreContext");
     }
 
     private Store store;
 
+    // result of the last verify; error, error_string and chain are only
+    // turned into Ruby objects when read
+    private int verifyError;
+    private int verifyErrorDepth;
+    private List<X509AuxCertificate> verifyChain;
+    private boolean errorPending;
+    private boolean errorStringPending;
+    private boolean chainPending;
+
     Store getStore() {
         return store;
     }
@@ -93,6 +115,7 @@ public class X509Store extends RubyObject {
     public IRubyObject _initialize(IRubyObject[] args, Block block) {
         store.setVerifyCallbackFunction(ossl_verify_cb);
         this.set_verify_callback(getRuntime().getNil());
+        this.set_verify_callback_mode(getRuntime().getNil());
         this.setInstanceVariable("@flags",RubyFixnum.zero(getRuntime()));
         this.setInstanceVariable("@purpose",RubyFixnum.zero(getRuntime()));
         this.setInstanceVariable("@trust",RubyFixnum.zero(getRuntime()));
@@ -111,6 +134,24 @@ public class X509Store extends RubyObject {
         return cb;
     }
 
+    /**
+     * Selects which verification steps reach verify_callback: nil or
+     * :all calls it for every certificate (the OpenSSL behaviour),
+     * :failures only when ok is false, and an Array of error codes
+     * only for failures with one of those codes.
+     */
+    @JRubyMethod(name="verify_callback_mode=")
+    public IRubyObject set_verify_callback_mode(IRubyObject mode) {
+        store.setExtraData(CALLBACK_MODE_IDX, CallbackMode.parse(getRuntime(), mode));
+        this.setInstanceVariable("@verify_callback_mode", mode);
+        return mode;
+    }
+
+    @JRubyMethod
+    public IRubyObject verify_callback_mode() {
+        return getInstanceVariable("@verify_callback_mode");
+    }
+
     @JRubyMethod(name="flags=")
     public IRubyObject set_flags(IRubyObject arg) {
         store.setFlags(RubyNumeric.fix2long(arg));
@@ -137,8 +178,17 @@ public class X509Store extends RubyObject {
 
     @JRubyMethod
     public IRubyObject add_path(IRubyObject arg) {
-        getRuntime().getWarnings().warn("unimplemented method called: Store#add_path");
-        return getRuntime().getNil();
+        String path = arg.toString();
+        int ret = 0;
+        try {
+            ret = store.loadLocations(null, path);
+        } catch (Exception e) {
+            raise("loading path failed: " + e.getMessage());
+        }
+        if(ret != 1) {
+            raise("loading path failed: " + path);
+        }
+        return this;
     }
 
     @JRubyMethod
@@ -152,6 +202,36 @@ public class X509Store extends RubyObject {
         return this;
     }
 
+    /**
+     * compile_bundle(output, *sources)
+     *
+     * Compiles the PEM certificates in sources, files or directories,
+     * into a binary trust bundle at output. add_file maps such a bundle
+     * instead of parsing it, decoding certificates only as verification
+     * looks them up. Returns the number of certificates written.
+     */
+    @JRubyMethod(meta=true, required=2, rest=true)
+    public static IRubyObject compile_bundle(IRubyObject klass, IRubyObject[] args) {
+        Ruby runtime = klass.getRuntime();
+        String[] sources = new String[args.length - 1];
+        for(int i=0;i<sources.length;i++) {
+            sources[i] = resolve(runtime, args[i + 1].convertToString().toString()).getPath();
+        }
+        try {
+            return runtime.newFixnum(TrustBundle.compile(resolve(runtime, args[0].convertToString().toString()), sources));
+        } catch(Exception e) {
+            throw new RaiseException(runtime, Utils.getClassFromPath(runtime, "OpenSSL::X509::StoreError"), "compiling bundle failed: " + e.getMessage(), true);
+        }
+    }
+
+    private static File resolve(Ruby runtime, String path) {
+        File file = new File(path);
+        if(!file.isAbsolute()) {
+            file = new File(runtime.getCurrentDirectory(), path);
+        }
+        return file;
+    }
+
     @JRubyMethod
     public IRubyObject set_default_paths() {
         try {
@@ -185,35 +265,362 @@ public class X509Store extends RubyObject {
         return this;
     }
 
+    /**
+     * update_crl(crl)
+     *
+     * Replaces the CRL held for crl's issuer when crl has a higher CRL
+     * number (or, failing that, a later last_update), adding it if
+     * there is none. The swap is atomic: verifications in progress keep
+     * seeing the old CRL. Returns true if crl was stored.
+     */
+    @JRubyMethod
+    public IRubyObject update_crl(IRubyObject arg) {
+        if(!(arg instanceof X509CRL)) {
+            raise(null);
+        }
+        return getRuntime().newBoolean(store.updateCRL(((X509CRL)arg).getCRL()) == 1);
+    }
+
+    /**
+     * watch_crl_directory(path, interval = 60)
+     *
+     * Rescans path every interval seconds in the background and passes
+     * each new or modified CRL file found there to update_crl.
+     */
+    @JRubyMethod(required=1, optional=1)
+    public IRubyObject watch_crl_directory(IRubyObject[] args) {
+        String path = args[0].toString();
+        double interval = args.length > 1 ? RubyNumeric.num2dbl(args[1]) : 60;
+        if(interval <= 0) {
+            throw getRuntime().newArgumentError("interval must be positive");
+        }
+        if(!new File(path).isDirectory()) {
+            raise("not a directory: " + path);
+        }
+        store.watchCRLDirectory(path, (long)(interval * 1000));
+        return this;
+    }
+
+    @JRubyMethod
+    public IRubyObject unwatch_crl_directory(IRubyObject arg) {
+        store.unwatchCRLDirectory(arg.toString());
+        return this;
+    }
+
     @JRubyMethod(rest=true, frame=true)
     public IRubyObject verify(IRubyObject[] args, Block block) {
+        Ruby runtime = getRuntime();
         IRubyObject cert, chain;
-        if(org.jruby.runtime.Arity.checkArgumentCount(getRuntime(),args,1,2) == 2) {
+        if(org.jruby.runtime.Arity.checkArgumentCount(runtime,args,1,2) == 2) {
             chain = args[1];
         } else {
-            chain = getRuntime().getNil();
+            chain = runtime.getNil();
         }
         cert = args[0];
-        IRubyObject proc, result;
-        X509StoreCtx ctx = (X509StoreCtx)cStoreContext.callMethod(getRuntime().getCurrentContext(),"new",new IRubyObject[]{this,cert,chain});
+        X509AuxCertificate x509 = null;
+        if(!cert.isNil()) {
+            x509 = ((X509Cert)cert).getAuxCert();
+        }
+        List<X509AuxCertificate> untrusted = new ArrayList<X509AuxCertificate>();
+        if(!chain.isNil()) {
+            for(IRubyObject obj : ((RubyArray)chain).toJavaArray()) {
+                untrusted.add(((X509Cert)obj).getAuxCert());
+            }
+        }
+        IRubyObject proc;
         if (block.isGiven()) {
-            proc = getRuntime().newProc(Block.Type.PROC, block);
+            proc = runtime.newProc(Block.Type.PROC, block);
         } else {
             proc = getInstanceVariable("@verify_callback");
         }
-        ctx.setInstanceVariable("@verify_callback",proc);
-        result = ctx.callMethod(getRuntime().getCurrentContext(),"verify");
-        this.setInstanceVariable("@error",ctx.error());
-        this.setInstanceVariable("@error_string",ctx.error_string());
-        this.setInstanceVariable("@chain",ctx.chain());
+
+        StoreContext ctx = new StoreContext();
+        if(ctx.init(store,x509,untrusted) != 1) {
+            raise(null);
+        }
+        IRubyObject t = getInstanceVariable("@time");
+        if(t != null && !t.isNil()) {
+            ctx.setTime(0,((RubyTime)t).getJavaDate());
+        }
+        ctx.setExtraData(1, proc);
+        int result;
+        try {
+            result = ctx.verifyCertificate();
+        } catch (Exception e) {
+            raise(e.getMessage());
+            return null;
+        }
+        verifyError = ctx.getError();
+        verifyErrorDepth = ctx.getErrorDepth();
+        verifyChain = ctx.getChain();
+        errorPending = errorStringPending = chainPending = true;
+        return result != 0 ? runtime.getTrue() : runtime.getFalse();
+    }
+
+    @JRubyMethod
+    public IRubyObject error() {
+        if(errorPending) {
+            errorPending = false;
+            setInstanceVariable("@error",getRuntime().newFixnum(verifyError));
+        }
+        return getInstanceVariable("@error");
+    }
+
+    @JRubyMethod(name="error=")
+    public IRubyObject set_error(IRubyObject arg) {
+        errorPending = false;
+        return setInstanceVariable("@error",arg);
+    }
+
+    @JRubyMethod
+    public IRubyObject error_depth() {
+        return getRuntime().newFixnum(verifyErrorDepth);
+    }
+
+    @JRubyMethod
+    public IRubyObject error_string() {
+        if(errorStringPending) {
+            errorStringPending = false;
+            setInstanceVariable("@error_string",getRuntime().newString(X509Utils.verifyCertificateErrorString(verifyError)));
+        }
+        return getInstanceVariable("@error_string");
+    }
+
+    @JRubyMethod(name="error_string=")
+    public IRubyObject set_error_string(IRubyObject arg) {
+        errorStringPending = false;
+        return setInstanceVariable("@error_string",arg);
+    }
+
+    @JRubyMethod
+    public IRubyObject chain() {
+        if(chainPending) {
+            try {
+                setInstanceVariable("@chain",wrapChain(verifyChain));
+            } catch (CertificateEncodingException cee) {
+                raise(cee.getMessage());
+            }
+            chainPending = false;
+            verifyChain = null;
+        }
+        return getInstanceVariable("@chain");
+    }
+
+    @JRubyMethod(name="chain=")
+    public IRubyObject set_chain(IRubyObject arg) {
+        chainPending = false;
+        verifyChain = null;
+        return setInstanceVariable("@chain",arg);
+    }
+
+    /**
+     * collect_stats = true or false
+     *
+     * Turns on or off the collection of per-phase verification timings
+     * and lookup hit counts read by stats.
+     */
+    @JRubyMethod(name="collect_stats=")
+    public IRubyObject set_collect_stats(IRubyObject arg) {
+        store.setStatsEnabled(arg.isTrue());
+        return arg;
+    }
+
+    /**
+     * Returns nil unless collect_stats is on, otherwise a Hash with one
+     * entry per verification phase (:chain, :extensions, :trust,
+     * :revocation, :crl_lookup, :signature, :policy and :total), each a
+     * Hash of :count, :total_ns, :max_ns and :histogram, an Array of
+     * counts in power-of-two microsecond buckets. :lookups holds a Hash
+     * of :method, :hits and :misses per lookup method and :since the
+     * Time collection started.
+     */
+    @JRubyMethod
+    public IRubyObject stats() {
+        Ruby runtime = getRuntime();
+        VerifyStats stats = store.getStats();
+        if(stats == null) {
+            return runtime.getNil();
+        }
+        ThreadContext tc = runtime.getCurrentContext();
+        RubyHash result = RubyHash.newHash(runtime);
+        for(int phase = 0; phase < VerifyStats.PHASES; phase++) {
+            RubyHash p = RubyHash.newHash(runtime);
+            p.op_aset(tc, runtime.newSymbol("count"), runtime.newFixnum(stats.getCount(phase)));
+            p.op_aset(tc, runtime.newSymbol("total_ns"), runtime.newFixnum(stats.getTotalNanos(phase)));
+            p.op_aset(tc, runtime.newSymbol("max_ns"), runtime.newFixnum(stats.getMaxNanos(phase)));
+            long[] h = stats.getHistogram(phase);
+            RubyArray histogram = runtime.newArray(h.length);
+            for(long n : h) {
+                histogram.append(runtime.newFixnum(n));
+            }
+            p.op_aset(tc, runtime.newSymbol("histogram"), histogram);
+            result.op_aset(tc, runtime.newSymbol(VerifyStats.phaseName(phase)), p);
+        }
+        RubyArray lookups = runtime.newArray();
+        for(Lookup lu : stats.getLookups()) {
+            RubyHash l = RubyHash.newHash(runtime);
+            l.op_aset(tc, runtime.newSymbol("method"), lu.method == null || lu.method.name == null ? runtime.getNil() : runtime.newString(lu.method.name));
+            l.op_aset(tc, runtime.newSymbol("hits"), runtime.newFixnum(stats.getLookupHits(lu)));
+            l.op_aset(tc, runtime.newSymbol("misses"), runtime.newFixnum(stats.getLookupMisses(lu)));
+            lookups.append(l);
+        }
+        result.op_aset(tc, runtime.newSymbol("lookups"), lookups);
+        result.op_aset(tc, runtime.newSymbol("since"), RubyTime.newTime(runtime, stats.getSince()));
         return result;
     }
 
-    public final static Store.VerifyCallbackFunction ossl_verify_cb = new Store.VerifyCallbackFunction() {
+    @JRubyMethod
+    public IRubyObject reset_stats() {
+        VerifyStats stats = store.getStats();
+        if(stats != null) {
+            stats.reset();
+        }
+        return this;
+    }
+
+    /**
+     * verify_many(certs, chain = nil, :threads => n, :chains => false)
+     *
+     * Verifies every certificate in certs against this store on up to n
+     * threads (defaults to the number of processors) and returns an
+     * Array of [error, error_depth] per certificate, or
+     * [error, error_depth, chain] when :chains is true. verify_callback
+     * is not called. When verifying a certificate raised an exception,
+     * its error is V_ERR_UNSPECIFIED and the message is appended to its
+     * entry; the other certificates are still verified.
+     */
+    @JRubyMethod(required=1, optional=2)
+    public IRubyObject verify_many(IRubyObject[] args) {
+        Ruby runtime = getRuntime();
+        IRubyObject chain = runtime.getNil();
+        RubyHash opts = null;
+        int argc = args.length;
+        if(argc > 1 && args[argc - 1] instanceof RubyHash) {
+            opts = (RubyHash)args[argc - 1];
+            argc--;
+        }
+        if(argc > 1) {
+            chain = args[1];
+        }
+
+        int threads = 0;
+        boolean keepChains = false;
+        if(opts != null) {
+            IRubyObject t = opts.fastARef(runtime.newSymbol("threads"));
+            if(t != null && !t.isNil()) {
+                threads = RubyNumeric.fix2int(t);
+            }
+            IRubyObject c = opts.fastARef(runtime.newSymbol("chains"));
+            keepChains = c != null && c.isTrue();
+        }
+
+        List<X509AuxCertificate> certs = new ArrayList<X509AuxCertificate>();
+        for(IRubyObject obj : ((RubyArray)args[0]).toJavaArray()) {
+            certs.add(((X509Cert)obj).getAuxCert());
+        }
+        List<X509AuxCertificate> untrusted = new ArrayList<X509AuxCertificate>();
+        if(!chain.isNil()) {
+            for(IRubyObject obj : ((RubyArray)chain).toJavaArray()) {
+                untrusted.add(((X509Cert)obj).getAuxCert());
+            }
+        }
+        IRubyObject t = getInstanceVariable("@time");
+        Date time = (t != null && !t.isNil()) ? ((RubyTime)t).getJavaDate() : null;
 
-        public int call(Object a1, Object a2) throws Exception {
-            StoreContext ctx = (StoreContext) a2;
-            int ok = ((Integer) a1).intValue();
+        BatchVerifier batch = new BatchVerifier(store, untrusted, time, keepChains);
+        try {
+            batch.verify(certs, threads);
+        } catch (Exception e) {
+            raise("verification failed: " + e.getMessage());
+        }
+
+        RubyArray result = runtime.newArray(batch.size());
+        try {
+            for(int i = 0; i < batch.size(); i++) {
+                IRubyObject error = runtime.newFixnum(batch.getError(i));
+                IRubyObject depth = runtime.newFixnum(batch.getErrorDepth(i));
+                RubyArray entry = keepChains ? runtime.newArray(error, depth, wrapChain(batch.getChain(i))) : runtime.newArray(error, depth);
+                if(batch.getMessage(i) != null) {
+                    entry.append(runtime.newString(batch.getMessage(i)));
+                }
+                result.append(entry);
+            }
+        } catch (CertificateEncodingException cee) {
+            raise(cee.getMessage());
+        }
+        return result;
+    }
+
+    private IRubyObject wrapChain(List<X509AuxCertificate> chain) throws CertificateEncodingException {
+        Ruby runtime = getRuntime();
+        if(chain == null) {
+            return runtime.getNil();
+        }
+        RubyClass cX509Cert = Utils.getClassFromPath(runtime, "OpenSSL::X509::Certificate");
+        RubyArray ary = runtime.newArray(chain.size());
+        for(X509AuxCertificate x509 : chain) {
+            ary.append(cX509Cert.callMethod(runtime.getCurrentContext(), "new", RubyString.newString(runtime, x509.getEncoded())));
+        }
+        return ary;
+    }
+
+    /**
+     * Store ex data slot holding the CallbackMode of a store.
+     */
+    static final int CALLBACK_MODE_IDX = 2;
+
+    /**
+     * StoreContext ex data slot caching the Ruby StoreContext handed
+     * to verify_callback, so one wrapper serves a whole verification.
+     */
+    static final int CALLBACK_CTX_IDX = 3;
+
+    /**
+     * Filter deciding which verify_callback invocations go to Ruby;
+     * a null mode means every invocation does.
+     */
+    static final class CallbackMode {
+        private final int[] errors;
+
+        private CallbackMode(int[] errors) {
+            this.errors = errors;
+        }
+
+        static CallbackMode parse(Ruby runtime, IRubyObject mode) {
+            if(mode.isNil()) {
+                return null;
+            }
+            if(mode instanceof RubySymbol) {
+                String name = mode.toString();
+                if("all".equals(name)) {
+                    return null;
+                }
+                if("failures".equals(name)) {
+                    return new CallbackMode(null);
+                }
+            } else if(mode instanceof RubyArray) {
+                IRubyObject[] codes = ((RubyArray)mode).toJavaArray();
+                int[] errors = new int[codes.length];
+                for(int i=0;i<codes.length;i++) {
+                    errors[i] = RubyNumeric.fix2int(codes[i]);
+                }
+                Arrays.sort(errors);
+                return new CallbackMode(errors);
+            }
+            throw runtime.newArgumentError("verify_callback_mode must be nil, :all, :failures or an Array of error codes");
+        }
+
+        boolean wants(int ok, int error) {
+            if(ok != 0) {
+                return false;
+            }
+            return errors == null || Arrays.binarySearch(errors, error) >= 0;
+        }
+    }
+
+    public final static Store.VerifyCallback ossl_verify_cb = new Store.VerifyCallback() {
+
+        public int verify(int ok, StoreContext ctx) throws Exception {
             IRubyObject proc = (IRubyObject) ctx.getExtraData(1);
             if (null == proc) {
                 proc = (IRubyObject) ctx.ctx.getExtraData(0);
@@ -222,10 +629,18 @@ public class X509Store extends RubyObject {
                 return ok;
             }
             if (!proc.isNil()) {
+                CallbackMode mode = (CallbackMode) ctx.ctx.getExtraData(CALLBACK_MODE_IDX);
+                if (mode != null && !mode.wants(ok, ctx.getError())) {
+                    return ok;
+                }
                 Ruby rt = proc.getRuntime();
-                RubyClass cStoreContext = Utils.getClassFromPath(rt, "OpenSSL::X509::StoreContext");
-                X509StoreCtx rctx = new X509StoreCtx(rt, cStoreContext, ctx);
-                RubyBoolean rok = rt.newBoolean(ok != 0);
+                X509StoreCtx rctx = (X509StoreCtx) ctx.getExtraData(CALLBACK_CTX_IDX);
+                if (rctx == null) {
+                    RubyClass cStoreContext = Utils.getClassFromPath(rt, "OpenSSL::X509::StoreContext");
+                    rctx = new X509StoreCtx(rt, cStoreContext, ctx);
+                    ctx.setExtraData(CALLBACK_CTX_IDX, rctx);
+                }
+                RubyBoolean rok = ok != 0 ? rt.getTrue() : rt.getFalse();
                 IRubyObject ret = proc.callMethod(rt.getCurrentContext(), "call", new IRubyObject[]{rok, rctx});
                 if (ret.isTrue()) {
                     ctx.setError(X509Utils.V_OK);
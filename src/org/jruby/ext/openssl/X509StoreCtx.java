@@ -126,6 +126,7 @@ public class X509StoreCtx extends RubyObject {
     @JRubyMethod
     public IRubyObject verify() {
         ctx.setExtraData(1, getInstanceVariable("@verify_callback"));
+        ctx.setExtraData(X509Store.CALLBACK_CTX_IDX, this);
         try {
             int result = ctx.verifyCertificate();
             return result != 0 ? getRuntime().getTrue() : getRuntime().getFalse();
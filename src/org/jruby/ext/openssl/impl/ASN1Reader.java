@@ -0,0 +1,467 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+
+/**
+ * A cursor over DER encoded bytes. Each call to next() reads the header
+ * of one element and steps past its contents, leaving tag, class and
+ * content bounds in fields. Values are decoded straight from the
+ * underlying array, so walking a structure allocates nothing but the
+ * readers for constructed elements and the values asked for.
+ *
+ * BER indefinite lengths are accepted as well; the contents of such an
+ * element end before its end-of-contents octets.
+ */
+public final class ASN1Reader {
+    public static final int UNIVERSAL = 0x00;
+    public static final int APPLICATION = 0x40;
+    public static final int CONTEXT_SPECIFIC = 0x80;
+    public static final int PRIVATE = 0xC0;
+
+    public static final int BOOLEAN = 1;
+    public static final int INTEGER = 2;
+    public static final int BIT_STRING = 3;
+    public static final int OCTET_STRING = 4;
+    public static final int NULL = 5;
+    public static final int OBJECT = 6;
+    public static final int ENUMERATED = 10;
+    public static final int SEQUENCE = 16;
+    public static final int SET = 17;
+    public static final int UTCTIME = 23;
+    public static final int GENERALIZEDTIME = 24;
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+
+    private int tagClass;
+    private int tag;
+    private boolean constructed;
+    private int offset;
+    private int length;
+
+    public ASN1Reader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    public ASN1Reader(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.pos = off;
+        this.end = off + len;
+    }
+
+    public boolean hasNext() {
+        return pos < end;
+    }
+
+    /**
+     * Reads the header of the next element and moves past it.
+     */
+    public void next() throws IOException {
+        if(pos >= end) {
+            throw new IOException("unexpected end of data");
+        }
+        int b = buf[pos++] & 0xFF;
+        tagClass = b & 0xC0;
+        constructed = (b & 0x20) != 0;
+        tag = b & 0x1F;
+        if(tag == 0x1F) {
+            tag = 0;
+            do {
+                if(pos >= end) {
+                    throw new IOException("unexpected end of data in tag");
+                }
+                if(tag > (Integer.MAX_VALUE >> 7)) {
+                    throw new IOException("tag number too large");
+                }
+                b = buf[pos++] & 0xFF;
+                tag = (tag << 7) | (b & 0x7F);
+            } while((b & 0x80) != 0);
+        }
+        if(pos >= end) {
+            throw new IOException("unexpected end of data in length");
+        }
+        int len = buf[pos++] & 0xFF;
+        if(len == 0x80) {
+            if(!constructed) {
+                throw new IOException("indefinite length for primitive encoding");
+            }
+            offset = pos;
+            length = endOfContents(pos) - pos;
+            pos += length + 2;
+            return;
+        }
+        if(len > 0x7F) {
+            int n = len & 0x7F;
+            if(n > 4 || end - pos < n) {
+                throw new IOException("corrupted stream - invalid length field");
+            }
+            len = 0;
+            while(n-- > 0) {
+                len = (len << 8) | (buf[pos++] & 0xFF);
+            }
+            if(len < 0) {
+                throw new IOException("corrupted stream - negative length found");
+            }
+        }
+        if(len > end - pos) {
+            throw new IOException("corrupted stream - out of bounds length found");
+        }
+        offset = pos;
+        length = len;
+        pos += len;
+    }
+
+    // finds the end-of-contents octets closing the contents starting at start
+    private int endOfContents(int start) throws IOException {
+        ASN1Reader r = new ASN1Reader(buf, start, end - start);
+        while(r.hasNext()) {
+            if(buf[r.pos] == 0 && r.pos + 1 < end && buf[r.pos + 1] == 0) {
+                return r.pos;
+            }
+            r.next();
+        }
+        throw new IOException("unexpected end of data, missing end-of-contents");
+    }
+
+    public int tagClass() {
+        return tagClass;
+    }
+
+    public int tag() {
+        return tag;
+    }
+
+    public boolean isConstructed() {
+        return constructed;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * A reader over the contents of the current element.
+     */
+    public ASN1Reader contents() {
+        return new ASN1Reader(buf, offset, length);
+    }
+
+    public byte[] bytes() {
+        byte[] out = new byte[length];
+        System.arraycopy(buf, offset, out, 0, length);
+        return out;
+    }
+
+    /**
+     * The contents of a string type, joining the segments of a BER
+     * constructed encoding.
+     */
+    public byte[] stringBytes() throws IOException {
+        if(!constructed) {
+            return bytes();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        for(ASN1Reader r = contents(); r.hasNext(); ) {
+            r.next();
+            out.write(r.stringBytes());
+        }
+        return out.toByteArray();
+    }
+
+    public boolean booleanValue() throws IOException {
+        if(length != 1) {
+            throw new IOException("malformed boolean");
+        }
+        return buf[offset] != 0;
+    }
+
+    /**
+     * Whether the current INTEGER or ENUMERATED fits longValue().
+     */
+    public boolean isLong() {
+        return length <= 8;
+    }
+
+    public long longValue() throws IOException {
+        if(length == 0) {
+            throw new IOException("malformed integer");
+        }
+        long v = buf[offset];
+        for(int i = offset + 1, e = offset + length; i < e; i++) {
+            v = (v << 8) | (buf[i] & 0xFF);
+        }
+        return v;
+    }
+
+    public BigInteger bigIntegerValue() throws IOException {
+        if(length == 0) {
+            throw new IOException("malformed integer");
+        }
+        return new BigInteger(bytes());
+    }
+
+    /**
+     * The number of unused bits in the final octet of a BIT STRING.
+     */
+    public int unusedBits() throws IOException {
+        if(length == 0) {
+            throw new IOException("malformed bit string");
+        }
+        return buf[offset] & 0xFF;
+    }
+
+    /**
+     * The octets of a BIT STRING, without the unused bits count.
+     */
+    public byte[] bitStringBytes() throws IOException {
+        if(length == 0) {
+            throw new IOException("malformed bit string");
+        }
+        byte[] out = new byte[length - 1];
+        System.arraycopy(buf, offset + 1, out, 0, length - 1);
+        return out;
+    }
+
+    /**
+     * The dotted form of an OBJECT IDENTIFIER.
+     */
+    public String oidValue() throws IOException {
+        if(length == 0 || (buf[offset + length - 1] & 0x80) != 0) {
+            throw new IOException("malformed object identifier");
+        }
+        StringBuilder sb = new StringBuilder(length * 3);
+        boolean first = true;
+        long v = 0;
+        BigInteger big = null;
+        for(int i = offset, e = offset + length; i < e; i++) {
+            int b = buf[i] & 0x7F;
+            if(big == null) {
+                if(v < (1L << 56)) {
+                    v = (v << 7) | b;
+                } else {
+                    big = BigInteger.valueOf(v).shiftLeft(7).or(BigInteger.valueOf(b));
+                }
+            } else {
+                big = big.shiftLeft(7).or(BigInteger.valueOf(b));
+            }
+            if((buf[i] & 0x80) == 0) {
+                if(first) {
+                    first = false;
+                    if(big != null) {
+                        sb.append("2.").append(big.subtract(BigInteger.valueOf(80)));
+                    } else if(v < 80) {
+                        sb.append(v / 40).append('.').append(v % 40);
+                    } else {
+                        sb.append("2.").append(v - 80);
+                    }
+                } else {
+                    sb.append('.');
+                    if(big != null) {
+                        sb.append(big);
+                    } else {
+                        sb.append(v);
+                    }
+                }
+                v = 0;
+                big = null;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Milliseconds since the epoch for a UTCTime or GeneralizedTime.
+     * A GeneralizedTime without a zone is taken as UTC, which is what DER
+     * requires anyway.
+     */
+    public long timeValue() throws IOException {
+        int i = offset;
+        int e = offset + length;
+        int year;
+        if(tag == UTCTIME) {
+            year = digits(i, 2, e);
+            year += year < 50 ? 2000 : 1900;
+            i += 2;
+        } else {
+            year = digits(i, 4, e);
+            i += 4;
+        }
+        int month = digits(i, 2, e);
+        int day = digits(i + 2, 2, e);
+        int hour = digits(i + 4, 2, e);
+        i += 6;
+        int minute = 0;
+        int second = 0;
+        int millis = 0;
+        if(i < e && isDigit(buf[i])) {
+            minute = digits(i, 2, e);
+            i += 2;
+            if(i < e && isDigit(buf[i])) {
+                second = digits(i, 2, e);
+                i += 2;
+                if(i < e && (buf[i] == '.' || buf[i] == ',')) {
+                    int scale = 100;
+                    for(i++; i < e && isDigit(buf[i]); i++) {
+                        millis += (buf[i] - '0') * scale;
+                        scale /= 10;
+                    }
+                }
+            }
+        }
+        if(month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new IOException("malformed time");
+        }
+        int zone = 0;
+        if(i < e) {
+            byte z = buf[i++];
+            if(z == '+' || z == '-') {
+                zone = digits(i, 2, e) * 60 + digits(i + 2, 2, e);
+                if(z == '-') {
+                    zone = -zone;
+                }
+                i += 4;
+            } else if(z != 'Z') {
+                throw new IOException("malformed time");
+            }
+        }
+        if(i != e) {
+            throw new IOException("malformed time");
+        }
+        return ((((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute - zone) * 60) + second) * 1000L + millis;
+    }
+
+    /**
+     * Reads the complete encoding of the next element from in, following
+     * indefinite lengths down to their end-of-contents octets, so that
+     * only one element at a time has to be held in memory. Never reads
+     * past the element, so in need not be buffered. Returns null if in is
+     * at its end before the element starts.
+     */
+    public static byte[] readEncoding(InputStream in) throws IOException {
+        int b = in.read();
+        if(b == -1) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(b);
+        copyElement(in, out, b);
+        return out.toByteArray();
+    }
+
+    // copies the rest of an element whose identifier octet was first
+    private static void copyElement(InputStream in, ByteArrayOutputStream out, int first) throws IOException {
+        if((first & 0x1F) == 0x1F) {
+            int b;
+            do {
+                b = readByte(in, out);
+            } while((b & 0x80) != 0);
+        }
+        int len = readByte(in, out);
+        if(len == 0x80) {
+            if((first & 0x20) == 0) {
+                throw new IOException("indefinite length for primitive encoding");
+            }
+            for(;;) {
+                int tag = readByte(in, out);
+                if(tag == 0) {
+                    if(readByte(in, out) != 0) {
+                        throw new IOException("malformed end-of-contents");
+                    }
+                    return;
+                }
+                copyElement(in, out, tag);
+            }
+        }
+        if(len > 0x7F) {
+            int n = len & 0x7F;
+            if(n > 4) {
+                throw new IOException("corrupted stream - invalid length field");
+            }
+            len = 0;
+            while(n-- > 0) {
+                len = (len << 8) | readByte(in, out);
+            }
+            if(len < 0) {
+                throw new IOException("corrupted stream - negative length found");
+            }
+        }
+        byte[] chunk = new byte[Math.min(len, 8192)];
+        while(len > 0) {
+            int n = in.read(chunk, 0, Math.min(len, chunk.length));
+            if(n == -1) {
+                throw new EOFException("unexpected end of data");
+            }
+            out.write(chunk, 0, n);
+            len -= n;
+        }
+    }
+
+    private static int readByte(InputStream in, ByteArrayOutputStream out) throws IOException {
+        int b = in.read();
+        if(b == -1) {
+            throw new EOFException("unexpected end of data");
+        }
+        out.write(b);
+        return b;
+    }
+
+    private int digits(int i, int n, int e) throws IOException {
+        if(i + n > e) {
+            throw new IOException("malformed time");
+        }
+        int v = 0;
+        for(int j = i; j < i + n; j++) {
+            if(!isDigit(buf[j])) {
+                throw new IOException("malformed time");
+            }
+            v = v * 10 + (buf[j] - '0');
+        }
+        return v;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysFromCivil(int y, int m, int d) {
+        if(m <= 2) {
+            y--;
+        }
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}// ASN1Reader
@@ -27,34 +27,33 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.impl;
 
-import java.util.HashMap;
-import java.util.Map;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 
 /**
+ * The standard object table, compiled from the constants below into an
+ * immutable OIDTable when the class loads and shared by all runtimes.
  *
  * @author <a href="mailto:ola.bini@gmail.com">Ola Bini</a>
  */
 public class ASN1Registry {
-    @SuppressWarnings("unchecked")
-    private static Map<String, DERObjectIdentifier> SYM_TO_OID = new HashMap<String, DERObjectIdentifier>(org.bouncycastle.asn1.x509.X509Name.DefaultLookUp);
-    @SuppressWarnings("unchecked")
-    private static Map<DERObjectIdentifier, String> OID_TO_SYM = new HashMap<DERObjectIdentifier, String>(org.bouncycastle.asn1.x509.X509Name.DefaultSymbols);
-    private static Map<DERObjectIdentifier, Integer> OID_TO_NID = new HashMap<DERObjectIdentifier, Integer>();
-    private static Map<Integer, DERObjectIdentifier> NID_TO_OID = new HashMap<Integer, DERObjectIdentifier>();
-    private static Map<Integer, String> NID_TO_SN = new HashMap<Integer, String>();
-    private static Map<Integer, String> NID_TO_LN = new HashMap<Integer, String>();
-    
+    private static OIDTable.Builder builder = new OIDTable.Builder(org.bouncycastle.asn1.x509.X509Name.DefaultLookUp, org.bouncycastle.asn1.x509.X509Name.DefaultSymbols);
+    private static final OIDTable TABLE;
+
+    public static OIDTable getTable() {
+        return TABLE;
+    }
+
     public static Integer obj2nid(String oid) {
         return obj2nid(new DERObjectIdentifier(oid));
     }
 
     public static String ln2oid(String ln) {
-        return SYM_TO_OID.get(ln.toLowerCase()).getId();
+        return TABLE.sym2oid(ln.toLowerCase()).getId();
     }
 
     public static Integer obj2nid(DERObjectIdentifier oid) {
-        return OID_TO_NID.get(oid);
+        int nid = TABLE.obj2nid(oid);
+        return nid == -1 ? null : Integer.valueOf(nid);
     }
 
     public static String o2a(String oid) {
@@ -62,48 +61,37 @@ public class ASN1Registry {
     }
     
     public static String o2a(DERObjectIdentifier obj) {
-        Integer nid = obj2nid(obj);
-        String one = NID_TO_LN.get(nid);
+        int nid = TABLE.obj2nid(obj);
+        String one = TABLE.nid2ln(nid);
         if(one == null) {
-            one = NID_TO_SN.get(nid);
+            one = TABLE.nid2sn(nid);
         }
         return one;
     }
 
     public static DERObjectIdentifier sym2oid(String name) {
-        return SYM_TO_OID.get(name.toLowerCase());
+        return TABLE.sym2oid(name.toLowerCase());
     }
 
     public static int sym2nid(String name) {
-        return OID_TO_NID.get(SYM_TO_OID.get(name.toLowerCase()));
+        return TABLE.obj2nid(TABLE.sym2oid(name.toLowerCase()));
     }
 
     public static String nid2ln(int nid) {
-        return nid2ln(Integer.valueOf(nid));
+        return TABLE.nid2ln(nid);
     }
 
     public static DERObjectIdentifier nid2obj(int nid) {
-        return NID_TO_OID.get(nid);
+        return TABLE.nid2obj(nid);
     }
 
     public static String nid2ln(Integer nid) {
-        return NID_TO_LN.get(nid);
+        return nid == null ? null : TABLE.nid2ln(nid.intValue());
     }
 
     static void addObject(int nid, String sn, String ln, String oid) {
         if(null != oid && oid.length() > 2 && (null != sn || null != ln)) {
-            DERObjectIdentifier ident = new DERObjectIdentifier(oid);
-            if(sn != null) {
-                SYM_TO_OID.put(sn.toLowerCase(),ident);
-            }
-            if(ln != null) {
-                SYM_TO_OID.put(ln.toLowerCase(),ident);
-            }
-            OID_TO_SYM.put(ident,sn == null ? ln : sn);
-            OID_TO_NID.put(ident,nid);
-            NID_TO_OID.put(nid,ident);
-            NID_TO_SN.put(nid,sn);
-            NID_TO_LN.put(nid,ln);
+            builder.add(nid, sn, ln, oid);
         }        
     }
 
@@ -4110,6 +4098,8 @@ public class ASN1Registry {
         addObject(NID_ipsec4, SN_ipsec4, LN_ipsec4, null); // NID: 750
         addObject(NID_dsa_with_SHA224, SN_dsa_with_SHA224, null, OBJ_dsa_with_SHA224); // NID: 802
         addObject(NID_dsa_with_SHA256, SN_dsa_with_SHA256, null, OBJ_dsa_with_SHA256); // NID: 803
+        TABLE = builder.build();
+        builder = null;
     }
 
 
@@ -0,0 +1,246 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+
+/**
+ * An immutable table of object identifiers with their NIDs, short and
+ * long names. Name and OID lookups go through open addressed arrays
+ * sized to keep probe sequences short, NID lookups index arrays
+ * directly, so a built table is safe to share between threads and
+ * runtimes without any locking.
+ */
+public final class OIDTable {
+
+    /**
+     * Collects entries with the semantics of the HashMaps the tables
+     * used to be: a later entry for the same key replaces an earlier one.
+     */
+    public static final class Builder {
+        private final Map<String, DERObjectIdentifier> symToOid = new HashMap<String, DERObjectIdentifier>();
+        private final Map<DERObjectIdentifier, String> oidToSym = new HashMap<DERObjectIdentifier, String>();
+        private final Map<DERObjectIdentifier, Integer> oidToNid = new HashMap<DERObjectIdentifier, Integer>();
+        private final Map<Integer, DERObjectIdentifier> nidToOid = new HashMap<Integer, DERObjectIdentifier>();
+        private final Map<Integer, String> nidToSn = new HashMap<Integer, String>();
+        private final Map<Integer, String> nidToLn = new HashMap<Integer, String>();
+
+        public Builder() {}
+
+        @SuppressWarnings("unchecked")
+        public Builder(Map lookUp, Map symbols) {
+            symToOid.putAll(lookUp);
+            oidToSym.putAll(symbols);
+        }
+
+        public void add(int nid, String sn, String ln, String oid) {
+            if(null == oid || (null == sn && null == ln)) {
+                return;
+            }
+            DERObjectIdentifier ident = new DERObjectIdentifier(oid);
+            if(sn != null) {
+                symToOid.put(sn.toLowerCase(),ident);
+            }
+            if(ln != null) {
+                symToOid.put(ln.toLowerCase(),ident);
+            }
+            oidToSym.put(ident,sn == null ? ln : sn);
+            oidToNid.put(ident,nid);
+            nidToOid.put(nid,ident);
+            nidToSn.put(nid,sn);
+            nidToLn.put(nid,ln);
+        }
+
+        public OIDTable build() {
+            return new OIDTable(this);
+        }
+    }
+
+    private final Object[] symKeys;
+    private final DERObjectIdentifier[] symValues;
+
+    // per OID: symbol, nid, shortest and longest lower cased name
+    private final DERObjectIdentifier[] oidKeys;
+    private final String[] oidSyms;
+    private final int[] oidNids;
+    private final String[] oidShortest;
+    private final String[] oidLongest;
+
+    private final DERObjectIdentifier[] nidOids;
+    private final String[] nidSns;
+    private final String[] nidLns;
+
+    private OIDTable(Builder b) {
+        int symCap = capacity(b.symToOid.size());
+        symKeys = new Object[symCap];
+        symValues = new DERObjectIdentifier[symCap];
+        for(Map.Entry<String, DERObjectIdentifier> e : b.symToOid.entrySet()) {
+            int i = slot(symKeys, e.getKey());
+            symKeys[i] = e.getKey();
+            symValues[i] = e.getValue();
+        }
+
+        Map<DERObjectIdentifier, String> shortest = new HashMap<DERObjectIdentifier, String>();
+        Map<DERObjectIdentifier, String> longest = new HashMap<DERObjectIdentifier, String>();
+        for(Map.Entry<String, DERObjectIdentifier> e : b.symToOid.entrySet()) {
+            String key = e.getKey();
+            String s = shortest.get(e.getValue());
+            if(s == null || key.length() < s.length()) {
+                shortest.put(e.getValue(), key);
+            }
+            String l = longest.get(e.getValue());
+            if(l == null || key.length() > l.length()) {
+                longest.put(e.getValue(), key);
+            }
+        }
+
+        Set<DERObjectIdentifier> oids = new HashSet<DERObjectIdentifier>();
+        oids.addAll(b.oidToSym.keySet());
+        oids.addAll(b.oidToNid.keySet());
+        oids.addAll(shortest.keySet());
+        int oidCap = capacity(oids.size());
+        oidKeys = new DERObjectIdentifier[oidCap];
+        oidSyms = new String[oidCap];
+        oidNids = new int[oidCap];
+        oidShortest = new String[oidCap];
+        oidLongest = new String[oidCap];
+        for(DERObjectIdentifier oid : oids) {
+            int i = slot(oidKeys, oid);
+            oidKeys[i] = oid;
+            oidSyms[i] = b.oidToSym.get(oid);
+            Integer nid = b.oidToNid.get(oid);
+            oidNids[i] = nid == null ? -1 : nid.intValue();
+            oidShortest[i] = shortest.get(oid);
+            oidLongest[i] = longest.get(oid);
+        }
+
+        int maxNid = -1;
+        for(Integer nid : b.nidToOid.keySet()) {
+            maxNid = Math.max(maxNid, nid.intValue());
+        }
+        nidOids = new DERObjectIdentifier[maxNid + 1];
+        nidSns = new String[maxNid + 1];
+        nidLns = new String[maxNid + 1];
+        for(Integer nid : b.nidToOid.keySet()) {
+            int n = nid.intValue();
+            if(n >= 0) {
+                nidOids[n] = b.nidToOid.get(nid);
+                nidSns[n] = b.nidToSn.get(nid);
+                nidLns[n] = b.nidToLn.get(nid);
+            }
+        }
+    }
+
+    private static int capacity(int size) {
+        int cap = 16;
+        while(cap < size * 2) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private static int hash(Object key, int mask) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & mask;
+    }
+
+    // the slot holding key, or the empty slot where it belongs
+    private static int slot(Object[] keys, Object key) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while(keys[i] != null && !keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Looks up a lower cased short or long name.
+     */
+    public DERObjectIdentifier sym2oid(String name) {
+        if(name == null) {
+            return null;
+        }
+        int i = slot(symKeys, name);
+        return symKeys[i] == null ? null : symValues[i];
+    }
+
+    public String oid2sym(DERObjectIdentifier oid) {
+        int i = oidSlot(oid);
+        return i < 0 ? null : oidSyms[i];
+    }
+
+    /**
+     * Returns the NID of oid, or -1 when it has none.
+     */
+    public int obj2nid(DERObjectIdentifier oid) {
+        int i = oidSlot(oid);
+        return i < 0 ? -1 : oidNids[i];
+    }
+
+    /**
+     * The shortest lower cased name mapping to oid, or null.
+     */
+    public String shortestName(DERObjectIdentifier oid) {
+        int i = oidSlot(oid);
+        return i < 0 ? null : oidShortest[i];
+    }
+
+    /**
+     * The longest lower cased name mapping to oid, or null.
+     */
+    public String longestName(DERObjectIdentifier oid) {
+        int i = oidSlot(oid);
+        return i < 0 ? null : oidLongest[i];
+    }
+
+    public DERObjectIdentifier nid2obj(int nid) {
+        return nid >= 0 && nid < nidOids.length ? nidOids[nid] : null;
+    }
+
+    public String nid2sn(int nid) {
+        return nid >= 0 && nid < nidSns.length ? nidSns[nid] : null;
+    }
+
+    public String nid2ln(int nid) {
+        return nid >= 0 && nid < nidLns.length ? nidLns[nid] : null;
+    }
+
+    private int oidSlot(DERObjectIdentifier oid) {
+        if(oid == null) {
+            return -1;
+        }
+        int i = slot(oidKeys, oid);
+        return oidKeys[i] == null ? -1 : i;
+    }
+}// OIDTable
@@ -0,0 +1,191 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies many certificates against one snapshot of a Store, spread
+ * over a number of worker threads. Results are kept as primitive error
+ * codes and depths; chains are only kept when asked for.
+ *
+ * The store's verify callback is not invoked. A certificate whose
+ * verification throws gets V_ERR_UNSPECIFIED and the exception message,
+ * and does not affect the results of the others.
+ */
+public class BatchVerifier {
+    private final Store store;
+    private final X509ObjectTable objects;
+    private final List<X509AuxCertificate> untrusted;
+    private final Date time;
+    private final boolean keepChains;
+
+    private List<X509AuxCertificate> certificates;
+    private int[] errors;
+    private int[] errorDepths;
+    private String[] messages;
+    private List<X509AuxCertificate>[] chains;
+
+    public BatchVerifier(Store store, List<X509AuxCertificate> untrusted, Date time, boolean keepChains) {
+        this.store = store;
+        this.objects = store.getObjects();
+        this.untrusted = untrusted;
+        this.time = time;
+        this.keepChains = keepChains;
+    }
+
+    /**
+     * Verifies all certificates using up to the given number of threads
+     * (the number of available processors if threads is 0 or less).
+     */
+    @SuppressWarnings("unchecked")
+    public void verify(List<X509AuxCertificate> certs, int threads) throws Exception {
+        int n = certs.size();
+        this.certificates = certs;
+        this.errors = new int[n];
+        this.errorDepths = new int[n];
+        this.messages = new String[n];
+        this.chains = keepChains ? new List[n] : null;
+
+        if(threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.min(threads, n);
+        final AtomicInteger next = new AtomicInteger();
+        if(threads <= 1) {
+            work(next);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, DAEMON_THREADS);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(threads);
+            for(int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            work(next);
+                            return null;
+                        }
+                    }));
+            }
+            for(Future<Object> f : futures) {
+                try {
+                    f.get();
+                } catch(java.util.concurrent.ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof Exception) {
+                        throw (Exception)cause;
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void work(AtomicInteger next) {
+        int n = certificates.size();
+        for(int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+            try {
+                verifyOne(i);
+            } catch(Exception e) {
+                errors[i] = X509Utils.V_ERR_UNSPECIFIED;
+                errorDepths[i] = 0;
+                messages[i] = e.getMessage() != null ? e.getMessage() : e.toString();
+                if(keepChains) {
+                    chains[i] = null;
+                }
+            }
+        }
+    }
+
+    private void verifyOne(int i) throws Exception {
+        StoreContext ctx = new StoreContext();
+        if(ctx.init(store, certificates.get(i), untrusted) != 1) {
+            throw new Exception("StoreContext initialization failed");
+        }
+        ctx.objects = objects;
+        ctx.setVerifyCallback(StoreContext.NullCallback);
+        if(time != null) {
+            ctx.setTime(0, time);
+        }
+        if(ctx.verifyCertificate() < 0 && ctx.getError() == X509Utils.V_OK) {
+            throw new Exception("certificate could not be verified");
+        }
+        errors[i] = ctx.getError();
+        errorDepths[i] = ctx.getErrorDepth();
+        if(keepChains) {
+            chains[i] = ctx.getChain();
+        }
+        ctx.cleanup();
+    }
+
+    public int size() {
+        return errors.length;
+    }
+
+    public int getError(int i) {
+        return errors[i];
+    }
+
+    public int getErrorDepth(int i) {
+        return errorDepths[i];
+    }
+
+    /**
+     * The message of the exception thrown while verifying certificate i,
+     * or null if its verification completed.
+     */
+    public String getMessage(int i) {
+        return messages[i];
+    }
+
+    /**
+     * The chain built for certificate i, or null if chains were not
+     * kept.
+     */
+    public List<X509AuxCertificate> getChain(int i) {
+        return chains == null ? null : chains[i];
+    }
+
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "x509store-verify-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+}// BatchVerifier
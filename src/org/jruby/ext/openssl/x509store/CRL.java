@@ -36,6 +36,7 @@ import java.security.cert.X509CRL;
  */
 public class CRL extends X509Object {
     public java.security.cert.CRL crl;
+    public RevocationIndex index;
 
     public int type() {
         return X509Utils.X509_LU_CRL;
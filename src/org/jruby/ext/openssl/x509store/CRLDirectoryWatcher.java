@@ -0,0 +1,160 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls a directory of CRL files and feeds new or modified ones to
+ * Store.updateCRL. A file is reloaded when its modification time or
+ * size changes, or when it reappears after being deleted; a file that
+ * fails to parse is retried on its next change. When a file is deleted,
+ * the CRLs it supplied are removed from the store unless something has
+ * replaced them since. Files are read into memory, never mapped, since
+ * they are rewritten while watched.
+ *
+ * The watcher holds its store weakly and stops by itself once the store
+ * is collected.
+ */
+public class CRLDirectoryWatcher implements Runnable {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "x509store-crl-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    final String dir;
+    private final WeakReference<Store> store;
+    private final Map<String, long[]> seen = new HashMap<String, long[]>();
+    /* the CRLs each file put in the store that may still be there */
+    private final Map<String, List<X509CRL>> supplied = new HashMap<String, List<X509CRL>>();
+    private volatile ScheduledFuture<?> task;
+
+    private CRLDirectoryWatcher(Store store, String dir) {
+        this.store = new WeakReference<Store>(store);
+        this.dir = dir;
+    }
+
+    /**
+     * Scans dir once right away and then every interval milliseconds.
+     */
+    public static CRLDirectoryWatcher start(Store store, String dir, long interval) {
+        CRLDirectoryWatcher w = new CRLDirectoryWatcher(store, dir);
+        w.task = TIMER.scheduleWithFixedDelay(w, 0, interval, TimeUnit.MILLISECONDS);
+        return w;
+    }
+
+    public void stop() {
+        ScheduledFuture<?> t = task;
+        if(t != null) {
+            t.cancel(false);
+        }
+    }
+
+    public void run() {
+        Store s = store.get();
+        if(s == null) {
+            stop();
+            return;
+        }
+        File[] files = new File(dir).listFiles();
+        if(files == null) {
+            return;
+        }
+        Set<String> present = new HashSet<String>();
+        for(File f : files) {
+            if(!f.isFile()) {
+                continue;
+            }
+            present.add(f.getPath());
+            long[] stamp = new long[]{f.lastModified(), f.length()};
+            long[] last = seen.get(f.getPath());
+            if(last != null && last[0] == stamp[0] && last[1] == stamp[1]) {
+                continue;
+            }
+            seen.put(f.getPath(), stamp);
+            try {
+                supplied.put(f.getPath(), load(s, f, supplied.get(f.getPath())));
+            } catch(Exception e) {
+                // not a CRL file, or caught mid-write; picked up again when it changes
+            }
+        }
+        // forget deleted files, so one re-created with the same stamp
+        // loads, and take back what they supplied
+        seen.keySet().retainAll(present);
+        for(Iterator<Map.Entry<String, List<X509CRL>>> it = supplied.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, List<X509CRL>> e = it.next();
+            if(!present.contains(e.getKey())) {
+                for(X509CRL crl : e.getValue()) {
+                    s.removeCRL(crl);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /* loads f into s; returns the CRLs it stored, plus those an earlier
+     * version of f stored that nothing from this version replaced */
+    private static List<X509CRL> load(Store s, File f, List<X509CRL> before) throws Exception {
+        List<X509CRL> stored = new ArrayList<X509CRL>();
+        for(StreamingCRL crl : StreamingCRL.loadAll(StreamingCRL.read(f), null)) {
+            if(s.updateCRL(crl) == 1) {
+                stored.add(crl);
+            }
+        }
+        if(before != null) {
+            for(X509CRL old : before) {
+                boolean replaced = false;
+                for(X509CRL crl : stored) {
+                    if(crl.getIssuerX500Principal().equals(old.getIssuerX500Principal())) {
+                        replaced = true;
+                        break;
+                    }
+                }
+                if(!replaced) {
+                    stored.add(old);
+                }
+            }
+        }
+        return stored;
+    }
+}// CRLDirectoryWatcher
@@ -27,31 +27,135 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.x509store;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.TBSCertificateStructure;
+import org.bouncycastle.asn1.x509.X509CertificateStructure;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.asn1.x509.X509Extensions;
+
 /**
  * c: X509_OBJECT
  *
+ * Keeps a certificate as its DER encoding along with the subject, key
+ * identifier and fingerprint the store indexes it by. The decoded
+ * X509AuxCertificate is only softly reachable and is rebuilt from the
+ * encoding when needed again, unless it carries auxiliary trust
+ * settings, which the encoding does not hold.
+ *
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class Certificate extends X509Object {
-    public X509AuxCertificate x509;
+    private final byte[] der;
+    private final Name subject;
+    private final byte[] keyIdentifier;
+    private final byte[] fingerprint;
+    private final X509AuxCertificate pinned;
+    private volatile SoftReference<X509AuxCertificate> decoded;
+
+    public Certificate(X509AuxCertificate x509) throws CertificateEncodingException {
+        this.der = x509.getEncoded();
+        this.subject = new Name(x509.getSubjectX500Principal());
+        this.keyIdentifier = x509.getSubjectKeyIdentifier();
+        this.fingerprint = sha1(der);
+        this.pinned = x509.getAux() != null ? x509 : null;
+        this.decoded = new SoftReference<X509AuxCertificate>(x509);
+    }
+
+    private Certificate(byte[] der, Name subject, byte[] keyIdentifier) {
+        this.der = der;
+        this.subject = subject;
+        this.keyIdentifier = keyIdentifier;
+        this.fingerprint = sha1(der);
+        this.pinned = null;
+    }
+
+    /**
+     * An entry for the encoded certificate der that is not decoded
+     * into a provider certificate until getX509 is called.
+     */
+    public static Certificate fromDER(byte[] der) throws IOException {
+        TBSCertificateStructure tbs = X509CertificateStructure.getInstance(new ASN1InputStream(der).readObject()).getTBSCertificate();
+        byte[] skid = null;
+        X509Extensions exts = tbs.getExtensions();
+        X509Extension ext = exts == null ? null : exts.getExtension(X509Extensions.SubjectKeyIdentifier);
+        if(ext != null) {
+            skid = ((ASN1OctetString)new ASN1InputStream(ext.getValue().getOctets()).readObject()).getOctets();
+        }
+        return new Certificate(der, new Name(tbs.getSubject()), skid);
+    }
+
+    /**
+     * The decoded certificate, decoded again if it was collected.
+     */
+    public X509AuxCertificate getX509() {
+        if(pinned != null) {
+            return pinned;
+        }
+        SoftReference<X509AuxCertificate> ref = decoded;
+        X509AuxCertificate x = ref == null ? null : ref.get();
+        if(x == null) {
+            try {
+                x = StoreContext.ensureAux((X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der)));
+            } catch(Exception e) {
+                throw new IllegalStateException("stored certificate no longer decodes: " + e.getMessage(), e);
+            }
+            decoded = new SoftReference<X509AuxCertificate>(x);
+        }
+        return x;
+    }
+
+    public Name getSubject() {
+        return subject;
+    }
+
+    public byte[] getKeyIdentifier() {
+        return keyIdentifier;
+    }
+
+    byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    public byte[] getEncoded() {
+        return der.clone();
+    }
 
     public int type() {
         return X509Utils.X509_LU_X509;
     }
 
     public boolean isName(Name nm) {
-        return nm.isEqual(x509.getSubjectX500Principal());
+        return subject.equals(nm);
     }
 
     public boolean matches(X509Object o) {
-        return o instanceof Certificate && x509.getSubjectX500Principal().equals(((Certificate)o).x509.getSubjectX500Principal());
+        return o instanceof Certificate && Arrays.equals(fingerprint, ((Certificate)o).fingerprint);
     }
 
     public int compareTo(X509Object oth) {
         int ret1 = super.compareTo(oth);
         if(ret1 == 0) {
-            ret1 = x509.equals(((Certificate)oth).x509) ? 0 : -1;
+            ret1 = matches(oth) ? 0 : -1;
         }
         return ret1;
     }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }// X509_OBJECT_CERT
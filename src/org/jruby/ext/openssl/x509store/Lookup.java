@@ -28,23 +28,37 @@
 package org.jruby.ext.openssl.x509store;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.InputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.cert.CRL;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.jruby.Ruby;
 import org.jruby.ext.openssl.OpenSSLReal;
 import org.jruby.util.io.ChannelDescriptor;
@@ -93,6 +107,14 @@ public class Lookup {
         return control(X509Utils.X509_L_ADD_DIR,dir.name,dir.type,null);
     }
 
+    /**
+     * Adds the compiled trust bundle file (see TrustBundle) to a
+     * bundle lookup.
+     */
+    public int addBundle(String file) throws Exception {
+        return control(X509Utils.X509_L_ADD_BUNDLE,file,0,null);
+    }
+
     /**
      * c: X509_LOOKUP_hash_dir
      */
@@ -107,6 +129,14 @@ public class Lookup {
         return x509FileLookup;
     }
 
+    /**
+     * Looks certificates up in compiled trust bundles, decoding
+     * only the ones asked for.
+     */
+    public static LookupMethod bundleLookup() { 
+        return x509BundleLookup;
+    }
+
     /**
      * c: X509_LOOKUP_ctrl
      */
@@ -183,51 +213,18 @@ public class Lookup {
         if (file == null) {
             return 1;
         }
+        if (type != X509Utils.X509_FILETYPE_PEM && type != X509Utils.X509_FILETYPE_ASN1) {
+            X509Error.addError(X509Utils.X509_R_BAD_X509_FILETYPE);
+            return 0;
+        }
         int count = 0;
-        int ret = 0;
-        Reader reader = null;
-        try {
-            InputStream in = wrapJRubyNormalizedInputStream(file);
-            CRL x = null;
-            if (type == X509Utils.X509_FILETYPE_PEM) {
-                reader = new BufferedReader(new InputStreamReader(in));
-                for (;;) {
-                    x = OpenSSLReal.getFormatHandler().readX509CRL(reader, null);
-                    if (null == x) {
-                        break;
-                    }
-                    int i = store.addCRL(x);
-                    if (i == 0) {
-                        return ret;
-                    }
-                    count++;
-                    x = null;
-                }
-                ret = count;
-            } else if (type == X509Utils.X509_FILETYPE_ASN1) {
-                CertificateFactory cf = CertificateFactory.getInstance("X.509");
-                x = cf.generateCRL(in);
-                if (x == null) {
-                    X509Error.addError(13);
-                    return ret;
-                }
-                int i = store.addCRL(x);
-                if (i == 0) {
-                    return ret;
-                }
-                ret = i;
-            } else {
-                X509Error.addError(X509Utils.X509_R_BAD_X509_FILETYPE);
-            }
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (Exception ignored) {
-                }
+        for (StreamingCRL x : StreamingCRL.loadAll(readJRubyNormalized(file), null)) {
+            if (store.addCRL(x) == 0) {
+                return count;
             }
+            count++;
         }
-        return ret;
+        return count;
     }
 
     /**
@@ -240,8 +237,19 @@ public class Lookup {
         int count = 0;
         Reader reader = null;
         try {
-            InputStream in = wrapJRubyNormalizedInputStream(file);
-            reader = new BufferedReader(new InputStreamReader(in));
+            // CRLs are parsed in one pass straight from the file's bytes,
+            // everything else goes through the PEM reader
+            ByteBuffer data = readJRubyNormalized(file);
+            if (isDER(data)) {
+                reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining())));
+            } else {
+                StringBuilder others = new StringBuilder();
+                for (StreamingCRL x : StreamingCRL.loadAll(data, others)) {
+                    store.addCRL(x);
+                    count++;
+                }
+                reader = new StringReader(others.toString());
+            }
             for (;;) {
                 Object v = OpenSSLReal.getFormatHandler().readPEM(reader, null);
                 if (null == v) {
@@ -266,6 +274,31 @@ public class Lookup {
         return count; 
     }
 
+    private static boolean isDER(ByteBuffer data) {
+        return data.limit() > 0 && data.get(0) == 0x30;
+    }
+
+    static File resolveFile(String file) {
+        File f = new File(file);
+        if (!f.isAbsolute()) {
+            try {
+                f = new File(Ruby.getGlobalRuntime().getCurrentDirectory(), file);
+            } catch (NoSuchMethodError nsme) {
+                // keep it relative to the JVM working directory
+            }
+        }
+        return f;
+    }
+
+    private ByteBuffer readJRubyNormalized(String file) throws IOException {
+        InputStream in = wrapJRubyNormalizedInputStream(file);
+        try {
+            return StreamingCRL.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
     private InputStream wrapJRubyNormalizedInputStream(String file) throws IOException {
         Ruby runtime = Ruby.getGlobalRuntime();
         try {
@@ -316,7 +349,12 @@ public class Lookup {
         if(skip) {
             return 0;
         }
-        return method.getBySubject.call(this,new Integer(type),name,ret);
+        int ok = method.getBySubject.call(this,new Integer(type),name,ret);
+        VerifyStats stats = store == null ? null : store.getStats();
+        if(stats != null) {
+            stats.recordLookup(this, ok > 0);
+        }
+        return ok;
     }
 
     /**
@@ -349,6 +387,20 @@ public class Lookup {
         return method.getByAlias.call(this,new Integer(type),str,ret);
     } 
 
+    /**
+     * Finds a certificate by subject key identifier; lookups that can
+     * do so load every match into the store.
+     */
+    public int byKeyIdentifier(int type, byte[] keyId, X509Object[] ret) throws Exception { 
+        if(method == null || method.getByKeyIdentifier == null || method.getByKeyIdentifier == Function4.EMPTY) {
+            return X509Utils.X509_LU_FAIL;
+        }
+        if(skip) {
+            return 0;
+        }
+        return method.getByKeyIdentifier.call(this,new Integer(type),keyId,ret);
+    } 
+
     /**
      * c: X509_LOOKUP_shutdown
      */
@@ -372,6 +424,8 @@ public class Lookup {
      */
     private final static LookupMethod x509DirectoryLookup = new LookupMethod();
 
+    private final static LookupMethod x509BundleLookup = new LookupMethod();
+
     static {
         x509FileLookup.name = "Load file into cache";
         x509FileLookup.control = new ByFile();
@@ -381,6 +435,13 @@ public class Lookup {
         x509DirectoryLookup.free = new FreeLookupDir();
         x509DirectoryLookup.control = new LookupDirControl();
         x509DirectoryLookup.getBySubject = new GetCertificateBySubject();
+
+        x509BundleLookup.name = "Load certs from compiled trust bundles";
+        x509BundleLookup.newItem = new NewLookupBundle();
+        x509BundleLookup.free = new FreeLookupBundle();
+        x509BundleLookup.control = new LookupBundleControl();
+        x509BundleLookup.getBySubject = new GetBundleCertificateBySubject();
+        x509BundleLookup.getByKeyIdentifier = new GetBundleCertificateByKeyIdentifier();
     }
     
     /**
@@ -429,8 +490,116 @@ public class Lookup {
      * c: BY_DIR, lookup_dir_st
      */
     private static class LookupDir {
-        List<String> dirs;
-        List<Integer> dirsType;
+        List<HashDirectory> dirs;
+    }
+
+    /**
+     * c: BY_DIR_ENTRY
+     *
+     * In-memory index of a c_rehash style directory, mapping subject
+     * hashes to the hash.N (certificates) and hash.rN (CRLs) files in
+     * it. Files are only loaded the first time their hash is looked
+     * up, and the directory is rescanned only when its mtime changes.
+     */
+    private static class HashDirectory {
+        /**
+         * Minimum interval between mtime checks, so that a busy server
+         * doesn't stat the directory on every lookup.
+         */
+        private static final long CHECK_INTERVAL = 1000;
+
+        private static final Pattern HASH_FILE = Pattern.compile("([0-9a-fA-F]{8})\\.(r?)([0-9]+)");
+
+        final String dir;
+        final int type;
+
+        private long lastModified = -1;
+        private long lastChecked = 0;
+        private Map<Long, List<String>> certificates = new HashMap<Long, List<String>>();
+        private Map<Long, List<String>> crls = new HashMap<Long, List<String>>();
+        private final Set<String> loaded = new HashSet<String>();
+
+        HashDirectory(String dir, int type) {
+            this.dir = dir;
+            this.type = type;
+        }
+
+        /**
+         * Returns the files for hash h that have not been loaded yet.
+         * Each is only taken as loaded once markLoaded says so, so one
+         * that failed is tried again on the next lookup.
+         */
+        synchronized List<String> unloaded(int lookupType, long h) {
+            checkModified();
+            Map<Long, List<String>> index = lookupType == X509Utils.X509_LU_CRL ? crls : certificates;
+            List<String> files = index.get(h);
+            if(files == null) {
+                return Collections.emptyList();
+            }
+            List<String> unloaded = new ArrayList<String>(files.size());
+            for(String f : files) {
+                if(!loaded.contains(f)) {
+                    unloaded.add(f);
+                }
+            }
+            return unloaded;
+        }
+
+        synchronized void markLoaded(String file) {
+            loaded.add(file);
+        }
+
+        private void checkModified() {
+            long now = System.currentTimeMillis();
+            if(lastModified != -1 && now - lastChecked < CHECK_INTERVAL) {
+                return;
+            }
+            lastChecked = now;
+            long mtime = new File(dir).lastModified();
+            if(mtime != lastModified) {
+                scan();
+                lastModified = mtime;
+            }
+        }
+
+        private void scan() {
+            Map<Long, List<String>> newCertificates = new HashMap<Long, List<String>>();
+            Map<Long, List<String>> newCrls = new HashMap<Long, List<String>>();
+            Set<String> present = new HashSet<String>();
+            String[] names = new File(dir).list();
+            if(names != null) {
+                Arrays.sort(names, SUFFIX_ORDER);
+                for(String n : names) {
+                    Matcher m = HASH_FILE.matcher(n);
+                    if(!m.matches()) {
+                        continue;
+                    }
+                    Long h = Long.valueOf(m.group(1), 16);
+                    Map<Long, List<String>> index = m.group(2).length() == 0 ? newCertificates : newCrls;
+                    List<String> files = index.get(h);
+                    if(files == null) {
+                        files = new ArrayList<String>(1);
+                        index.put(h, files);
+                    }
+                    String path = dir + File.separator + n;
+                    files.add(path);
+                    present.add(path);
+                }
+            }
+            certificates = newCertificates;
+            crls = newCrls;
+            loaded.retainAll(present);
+        }
+
+        /**
+         * Orders hash.0, hash.1, ..., hash.10 numerically.
+         */
+        private static final Comparator<String> SUFFIX_ORDER = new Comparator<String>() {
+                public int compare(String a, String b) {
+                    int c = a.length() - b.length();
+                    return c != 0 ? c : a.compareTo(b);
+                }
+            };
     }
 
     /**
@@ -440,8 +609,7 @@ public class Lookup {
         public int call(Object _lu) {
             Lookup lu = (Lookup)_lu;
             LookupDir a = new LookupDir();
-            a.dirs = new ArrayList<String>();
-            a.dirsType = new ArrayList<Integer>();
+            a.dirs = new CopyOnWriteArrayList<HashDirectory>();
             lu.methodData = a;
             return 1;
         }
@@ -455,7 +623,6 @@ public class Lookup {
             Lookup lu = (Lookup)_lu;
             LookupDir a = (LookupDir)lu.methodData;
             a.dirs = null;
-            a.dirsType = null;
             lu.methodData = null;
             return -1;
         }
@@ -511,11 +678,17 @@ public class Lookup {
                 if(dirs[i].length() == 0) {
                     continue;
                 }
-                if(ctx.dirs.contains(dirs[i])) {
+                boolean present = false;
+                for(HashDirectory hd : ctx.dirs) {
+                    if(hd.dir.equals(dirs[i])) {
+                        present = true;
+                        break;
+                    }
+                }
+                if(present) {
                     continue;
                 }
-                ctx.dirsType.add(type);
-                ctx.dirs.add(dirs[i]);
+                ctx.dirs.add(new HashDirectory(dirs[i], type));
             }
 
             return 1;
@@ -533,54 +706,40 @@ public class Lookup {
             X509Object[] ret = (X509Object[])_ret;
 
             int ok = 0;
-            StringBuffer b = new StringBuffer();
 
             if(null == name) {
                 return 0;
             }
 
-            String postfix = "";
-            if(type == X509Utils.X509_LU_X509) {
-            } else if(type == X509Utils.X509_LU_CRL) {
-                postfix = "r";
-            } else {
+            if(type != X509Utils.X509_LU_X509 && type != X509Utils.X509_LU_CRL) {
                 X509Error.addError(X509Utils.X509_R_WRONG_LOOKUP_TYPE);
                 return ok;
             }
             
             LookupDir ctx = (LookupDir)x1.methodData;
 
-            long h = name.hash();
+            // c_rehash from OpenSSL 1.0 on names files by the canonical
+            // SHA-1 hash, older versions by the MD5 hash of the encoding
+            long[] hashes = new long[]{ name.canonicalHash(), name.hash() };
             
-            Iterator<Integer> iter = ctx.dirsType.iterator();
-            for(String cdir : ctx.dirs) {
-                int tp = iter.next();
-                int k = 0;
-                for(;;) {
-                    b.append(String.format("%s/%08x.%s%d", cdir, h, postfix, k));
-                    k++;
-                    if(!(new File(b.toString()).exists())) {
-                        break;
-                    }
-                    if(type == X509Utils.X509_LU_X509) {
-                        if((x1.loadCertificateFile(b.toString(),tp)) == 0) {
-                            break;
-                        }
-                    } else if(type == X509Utils.X509_LU_CRL) {
-                        if((x1.loadCRLFile(b.toString(),tp)) == 0) {
-                            break;
-                        }
-                    }
-                }
-                X509Object tmp = null;
-                synchronized(X509Utils.CRYPTO_LOCK_X509_STORE) {
-                    for(X509Object o : x1.store.objs) {
-                        if(o.type() == type && o.isName(name)) {
-                            tmp = o;
-                            break;
+            for(HashDirectory hd : ctx.dirs) {
+                for(long h : hashes) {
+                    for(String file : hd.unloaded(type, h)) {
+                        try {
+                            if(type == X509Utils.X509_LU_X509) {
+                                x1.loadCertificateFile(file, hd.type);
+                            } else {
+                                x1.loadCRLFile(file, hd.type);
+                            }
+                        } catch(Exception e) {
+                            // a bad file must not hide the rest of its bucket
+                            X509Error.addError(X509Utils.X509_R_LOADING_CERT_DIR);
+                            continue;
                         }
+                        hd.markLoaded(file);
                     }
                 }
+                X509Object tmp = x1.store.getObjects().retrieveBySubject(type, name);
                 if(tmp != null) {
                     ok = 1;
                     ret[0] = tmp;
@@ -591,4 +750,117 @@ public class Lookup {
             return ok;
         }
     }
+
+    /**
+     * The bundles of a bundle lookup, and the certificates from them
+     * already handed to the store.
+     */
+    private static class LookupBundle {
+        List<TrustBundle> bundles;
+        Map<Certificate, Boolean> loaded;
+    }
+
+    private static class NewLookupBundle implements LookupMethod.NewItemFunction {
+        public int call(Object _lu) {
+            Lookup lu = (Lookup)_lu;
+            LookupBundle a = new LookupBundle();
+            a.bundles = new CopyOnWriteArrayList<TrustBundle>();
+            a.loaded = new IdentityHashMap<Certificate, Boolean>();
+            lu.methodData = a;
+            return 1;
+        }
+    }
+
+    private static class FreeLookupBundle implements LookupMethod.FreeFunction {
+        public int call(Object _lu) {
+            Lookup lu = (Lookup)_lu;
+            LookupBundle a = (LookupBundle)lu.methodData;
+            a.bundles = null;
+            a.loaded = null;
+            lu.methodData = null;
+            return -1;
+        }
+    }
+
+    private static class LookupBundleControl implements LookupMethod.ControlFunction {
+        public int call(Object _ctx, Object _cmd, Object _argp, Object _argl, Object _retp) throws Exception {
+            Lookup ctx = (Lookup)_ctx;
+            int cmd = ((Integer)_cmd).intValue();
+            String argp = (String)_argp;
+            LookupBundle lb = (LookupBundle)ctx.methodData;
+            if(cmd != X509Utils.X509_L_ADD_BUNDLE) {
+                return 0;
+            }
+            try {
+                lb.bundles.add(TrustBundle.open(resolveFile(argp)));
+            } catch(IOException e) {
+                X509Error.addError(X509Utils.X509_R_BAD_X509_FILETYPE);
+                return 0;
+            }
+            return 1;
+        }
+    }
+
+    private static class GetBundleCertificateBySubject implements LookupMethod.BySubjectFunction {
+        public int call(Object _xl, Object _type, Object _name, Object _ret) throws Exception {
+            Lookup x1 = (Lookup)_xl;
+            int type = ((Integer)_type).intValue();
+            Name name = (Name)_name;
+            X509Object[] ret = (X509Object[])_ret;
+
+            if(null == name || type != X509Utils.X509_LU_X509) {
+                return 0;
+            }
+
+            LookupBundle ctx = (LookupBundle)x1.methodData;
+            for(TrustBundle b : ctx.bundles) {
+                loadBundleEntries(x1, ctx, b.entriesBySubject(name));
+            }
+            X509Object tmp = x1.store.getObjects().retrieveBySubject(type, name);
+            if(tmp != null) {
+                ret[0] = tmp;
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    private static class GetBundleCertificateByKeyIdentifier implements LookupMethod.ByKeyIdentifierFunction {
+        public int call(Object _xl, Object _type, Object _keyId, Object _ret) throws Exception {
+            Lookup x1 = (Lookup)_xl;
+            int type = ((Integer)_type).intValue();
+            byte[] keyId = (byte[])_keyId;
+            X509Object[] ret = (X509Object[])_ret;
+
+            if(null == keyId || type != X509Utils.X509_LU_X509) {
+                return 0;
+            }
+
+            LookupBundle ctx = (LookupBundle)x1.methodData;
+            for(TrustBundle b : ctx.bundles) {
+                loadBundleEntries(x1, ctx, b.entriesByKeyIdentifier(keyId));
+            }
+            List<X509Object> found = x1.store.getObjects().retrieveByKeyIdentifier(keyId);
+            if(!found.isEmpty()) {
+                ret[0] = found.get(0);
+                return 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Hands the bundle entries not handed over before to the store.
+     */
+    private static void loadBundleEntries(Lookup x1, LookupBundle ctx, List<Certificate> entries) throws Exception {
+        for(Certificate c : entries) {
+            boolean fresh;
+            synchronized(ctx.loaded) {
+                fresh = ctx.loaded.put(c, Boolean.TRUE) == null;
+            }
+            if(fresh) {
+                x1.store.add(c);
+            }
+        }
+    }
 }// X509_LOOKUP
@@ -44,6 +44,7 @@ public class LookupMethod {
     public static interface ByIssuerSerialNumberFunction extends Function5 {}
     public static interface ByFingerprintFunction extends Function4 {}
     public static interface ByAliasFunction extends Function4 {}
+    public static interface ByKeyIdentifierFunction extends Function4 {}
 
     /**
      * c: new_item
@@ -81,4 +82,9 @@ public class LookupMethod {
      * c: get_by_alias
      */
     public ByAliasFunction getByAlias;
+    /**
+     * No C counterpart: finds certificates by subject key identifier,
+     * for issuer selection through the authority key identifier.
+     */
+    public ByKeyIdentifierFunction getByKeyIdentifier;
 }// X509_LOOKUP_METHOD
@@ -27,59 +27,250 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.x509store;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.security.auth.x500.X500Principal;
 
+import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERBMPString;
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERString;
+import org.bouncycastle.asn1.DERT61String;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.DERUniversalString;
+import org.bouncycastle.asn1.DERVisibleString;
 import org.bouncycastle.asn1.x509.X509Name;
 
 /**
  * c: X509_NAME
  *
+ * Names compare and hash on their canonical encoding (see
+ * x509_name_canon in OpenSSL 1.0), which is computed once, so a Name
+ * can be used as a cheap hash key. Names whose values cannot be
+ * canonicalized fall back to comparing their DER encoding.
+ *
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class Name {
-    public X509Name name;
+    public final X509Name name;
+
+    private final byte[] canonical;
+    private final byte[] der;
+    private final int canonicalHashCode;
+    private volatile long hash = -1;
+    private volatile long canonicalHash = -1;
+
+    /* Names for the principals compared against most recently, keyed
+     * by their encoding */
+    private static final int PRINCIPAL_CACHE_SIZE = 1024;
+    private static final ConcurrentHashMap<ByteBuffer, Name> BY_PRINCIPAL = new ConcurrentHashMap<ByteBuffer, Name>();
 
     public Name(X500Principal nm) {
-        try {
-            this.name = new X509Name((ASN1Sequence)new ASN1InputStream(nm.getEncoded()).readObject());
-        } catch(Exception e) {
-            this.name = null;
-        }
+        this(nm.getEncoded());
+    }
+
+    private Name(byte[] der) {
+        this(toX509Name(der), der);
     }
 
     public Name(X509Name nm) {
+        this(nm, null);
+    }
+
+    private Name(X509Name nm, byte[] der) {
         this.name = nm;
+        byte[] canon;
+        try {
+            canon = canonicalEncoding(nm);
+        } catch(Exception e) {
+            canon = null;
+        }
+        if(canon == null && der == null && nm != null) {
+            try {
+                der = nm.getEncoded();
+            } catch(Exception e) {
+                der = null;
+            }
+        }
+        this.canonical = canon;
+        // names that cannot be canonicalized compare on their encoding
+        this.der = canon == null ? der : null;
+        this.canonicalHashCode = Arrays.hashCode(canon == null ? this.der : canon);
     }
 
     /**
-     * c: X509_NAME_hash
+     * The Name for nm, reusing the one made for an earlier principal with
+     * the same encoding, so that repeated comparisons against the names of
+     * the same certificates and CRLs canonicalize them only once.
      */
-    public long hash() { 
+    public static Name of(X500Principal nm) {
+        byte[] der = nm.getEncoded();
+        ByteBuffer key = ByteBuffer.wrap(der);
+        Name result = BY_PRINCIPAL.get(key);
+        if(result == null) {
+            result = new Name(der);
+            if(BY_PRINCIPAL.size() >= PRINCIPAL_CACHE_SIZE) {
+                BY_PRINCIPAL.clear();
+            }
+            BY_PRINCIPAL.put(key, result);
+        }
+        return result;
+    }
+
+    private static X509Name toX509Name(byte[] der) {
         try {
-            byte[] bytes = name.getEncoded();
-            byte[] md = null;
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md = md5.digest(bytes);
-            long result = 0;
-            result |= md[3] & 0xff; result <<= 8;
-            result |= md[2] & 0xff; result <<= 8;
-            result |= md[1] & 0xff; result <<= 8;
-            result |= md[0] & 0xff;
-            return result & 0xffffffff;
+            return new X509Name((ASN1Sequence)new ASN1InputStream(der).readObject());
         } catch(Exception e) {
-            return 0;
+            return null;
+        }
+    }
+
+    /**
+     * c: X509_NAME_hash_old (X509_NAME_hash before OpenSSL 1.0)
+     */
+    public long hash() { 
+        long result = hash;
+        if(result == -1) {
+            try {
+                result = digestHash("MD5", name.getEncoded());
+            } catch(Exception e) {
+                result = 0;
+            }
+            hash = result;
         }
+        return result;
+    }
+
+    /**
+     * c: X509_NAME_hash (OpenSSL 1.0 and later, as used by c_rehash)
+     */
+    public long canonicalHash() {
+        long result = canonicalHash;
+        if(result == -1) {
+            try {
+                result = digestHash("SHA-1", canonical);
+            } catch(Exception e) {
+                result = 0;
+            }
+            canonicalHash = result;
+        }
+        return result;
+    }
+
+    private static long digestHash(String algorithm, byte[] bytes) throws Exception {
+        byte[] md = MessageDigest.getInstance(algorithm).digest(bytes);
+        long result = 0;
+        result |= md[3] & 0xff; result <<= 8;
+        result |= md[2] & 0xff; result <<= 8;
+        result |= md[1] & 0xff; result <<= 8;
+        result |= md[0] & 0xff;
+        return result & 0xffffffffL;
     }
 
     public boolean isEqual(X500Principal oname) {
-        try {
-            return new X500Principal(name.getEncoded()).equals(oname);
-        } catch(Exception e) {
+        return equals(of(oname));
+    }
+
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(!(other instanceof Name)) {
+            return false;
+        }
+        Name o = (Name)other;
+        if(canonicalHashCode != o.canonicalHashCode) {
             return false;
         }
+        if(canonical == null || o.canonical == null) {
+            return canonical == o.canonical && der != null && Arrays.equals(der, o.der);
+        }
+        return Arrays.equals(canonical, o.canonical);
+    }
+
+    public int hashCode() {
+        return canonicalHashCode;
+    }
+
+    /**
+     * c: x509_name_canon
+     *
+     * Concatenation of the RDN sets, with string values converted to
+     * UTF8String, trimmed, with inner whitespace collapsed and ASCII
+     * lowercased.
+     */
+    private static byte[] canonicalEncoding(X509Name nm) throws IOException {
+        ASN1Sequence seq = (ASN1Sequence)new ASN1InputStream(nm.getEncoded()).readObject();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(Enumeration<?> rdns = seq.getObjects(); rdns.hasMoreElements();) {
+            ASN1Set rdn = (ASN1Set)rdns.nextElement();
+            ASN1EncodableVector entries = new ASN1EncodableVector();
+            for(Enumeration<?> avas = rdn.getObjects(); avas.hasMoreElements();) {
+                ASN1Sequence ava = (ASN1Sequence)avas.nextElement();
+                ASN1EncodableVector entry = new ASN1EncodableVector();
+                entry.add(ava.getObjectAt(0));
+                entry.add(canonicalValue(ava.getObjectAt(1)));
+                entries.add(new DERSequence(entry));
+            }
+            out.write(new DERSet(entries).getDEREncoded());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * c: asn1_string_canon
+     */
+    private static DEREncodable canonicalValue(DEREncodable value) {
+        String str;
+        if(value instanceof DERUniversalString) {
+            byte[] b = ((DERUniversalString)value).getOctets();
+            StringBuilder sb = new StringBuilder(b.length / 4);
+            for(int i = 0; i + 3 < b.length; i += 4) {
+                sb.appendCodePoint(((b[i] & 0xff) << 24) | ((b[i+1] & 0xff) << 16) | ((b[i+2] & 0xff) << 8) | (b[i+3] & 0xff));
+            }
+            str = sb.toString();
+        } else if(value instanceof DERUTF8String || value instanceof DERPrintableString ||
+                  value instanceof DERIA5String || value instanceof DERVisibleString ||
+                  value instanceof DERT61String || value instanceof DERBMPString) {
+            str = ((DERString)value).getString();
+        } else {
+            return value;
+        }
+
+        StringBuilder sb = new StringBuilder(str.length());
+        boolean space = false;
+        for(int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if(isSpace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if(space) {
+                sb.append(' ');
+                space = false;
+            }
+            if(c >= 'A' && c <= 'Z') {
+                c = (char)(c + ('a' - 'A'));
+            }
+            sb.append(c);
+        }
+        return new DERUTF8String(sb.toString());
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
     }
 }// X509_NAME
@@ -0,0 +1,510 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERObject;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPRequest;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.ocsp.Request;
+import org.bouncycastle.asn1.ocsp.ResponseBytes;
+import org.bouncycastle.asn1.ocsp.SingleResponse;
+import org.bouncycastle.asn1.ocsp.TBSRequest;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+
+/**
+ * A Store.CheckRevocationFunction asking OCSP responders for the
+ * status of each certificate instead of consulting CRLs. Like the CRL
+ * check it runs only when V_FLAG_CRL_CHECK is set, and covers the
+ * whole chain with V_FLAG_CRL_CHECK_ALL.
+ *
+ * Responses stapled to the context (see
+ * StoreContext.setStapledOCSPResponses) are looked at first. Answers
+ * are cached per CertID until their nextUpdate, in a cache bounded by
+ * setCacheSize that drops the least recently used, and concurrent lookups
+ * of the same certificate share one request to the responder.
+ * Responses without a nextUpdate are used once and not cached.
+ */
+public class OCSPChecker implements Store.CheckRevocationFunction {
+    /**
+     * Sends a DER encoded OCSPRequest to the responder at url and
+     * returns the DER encoded OCSPResponse.
+     */
+    public static interface Transport {
+        byte[] send(String url, byte[] request) throws IOException;
+    }
+
+    /**
+     * Posts requests over HTTP as described in RFC 2560, appendix A.
+     */
+    public static final Transport HTTP = new Transport() {
+            public byte[] send(String url, byte[] request) throws IOException {
+                HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+                conn.setConnectTimeout(TIMEOUT);
+                conn.setReadTimeout(TIMEOUT);
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type", "application/ocsp-request");
+                conn.setRequestProperty("Accept", "application/ocsp-response");
+                OutputStream out = conn.getOutputStream();
+                try {
+                    out.write(request);
+                } finally {
+                    out.close();
+                }
+                if(conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("OCSP responder " + url + " answered " + conn.getResponseCode());
+                }
+                InputStream in = conn.getInputStream();
+                try {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while((n = in.read(buf)) != -1) {
+                        body.write(buf, 0, n);
+                    }
+                    return body.toByteArray();
+                } finally {
+                    in.close();
+                }
+            }
+        };
+
+    private static final int TIMEOUT = 10000;
+
+    public static final int GOOD = 0;
+    public static final int REVOKED = 1;
+    public static final int UNKNOWN = 2;
+
+    private final static String AIA_OID = "1.3.6.1.5.5.7.1.1";
+    private final static AlgorithmIdentifier SHA1 = new AlgorithmIdentifier(X509ObjectIdentifiers.id_SHA1, new DERNull());
+
+    private final Transport transport;
+    private String responderURL;
+    private boolean fallbackToCRL;
+    private long clockSkew = 5 * 60 * 1000L;
+
+    private volatile int cacheSize = 4096;
+
+    /* statuses by CertID, least recently used first; when it outgrows
+     * cacheSize the expired entries go, then the least recently used */
+    @SuppressWarnings("serial")
+    private final Map<ByteBuffer, Status> cache = Collections.synchronizedMap(new LinkedHashMap<ByteBuffer, Status>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Status> eldest) {
+                if(size() <= cacheSize) {
+                    return false;
+                }
+                long now = System.currentTimeMillis();
+                for(Iterator<Status> iter = values().iterator(); iter.hasNext();) {
+                    if(iter.next().isExpired(now)) {
+                        iter.remove();
+                    }
+                }
+                if(size() > cacheSize) {
+                    remove(eldest.getKey());
+                }
+                return false;
+            }
+        });
+    private final ConcurrentMap<ByteBuffer, FutureTask<Status>> pending = new ConcurrentHashMap<ByteBuffer, FutureTask<Status>>();
+
+    public OCSPChecker() {
+        this(HTTP);
+    }
+
+    public OCSPChecker(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Asks url for every certificate, ignoring the responders named in
+     * their authority information access extensions.
+     */
+    public void setResponderURL(String url) {
+        this.responderURL = url;
+    }
+
+    /**
+     * When set, certificates no responder could vouch for are checked
+     * against CRLs instead of failing.
+     */
+    public void setFallbackToCRL(boolean fallback) {
+        this.fallbackToCRL = fallback;
+    }
+
+    /**
+     * How far, in milliseconds, thisUpdate may lie in the future and
+     * nextUpdate in the past before a response is refused.
+     */
+    public void setClockSkew(long skew) {
+        this.clockSkew = skew;
+    }
+
+    /**
+     * The most statuses kept in the cache, 4096 by default.
+     */
+    public void setCacheSize(int size) {
+        this.cacheSize = size;
+    }
+
+    public void clearCache() {
+        cache.clear();
+    }
+
+    public int call(Object a1) throws Exception {
+        StoreContext ctx = (StoreContext)a1;
+        int last;
+        if((ctx.param.flags & X509Utils.V_FLAG_CRL_CHECK) == 0) {
+            return 1;
+        }
+        if((ctx.param.flags & X509Utils.V_FLAG_CRL_CHECK_ALL) != 0) {
+            last = ctx.chain.size() - 1;
+        } else {
+            last = 0;
+        }
+        for(int i=0;i<=last;i++) {
+            ctx.errorDepth = i;
+            if(checkCertificate(ctx, i) == 0) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+
+    private int checkCertificate(StoreContext ctx, int depth) throws Exception {
+        X509AuxCertificate x = ctx.chain.get(depth);
+        ctx.currentCertificate = x;
+        if(depth + 1 >= ctx.chain.size()) {
+            /* the trust anchor; nobody above it to ask */
+            return 1;
+        }
+        X509AuxCertificate issuer = ctx.chain.get(depth + 1);
+
+        Status st;
+        try {
+            st = getStatus(ctx, x, issuer);
+        } catch(Exception e) {
+            st = null;
+        }
+        if(st == null || st.code == UNKNOWN) {
+            if(fallbackToCRL) {
+                return ctx.checkCertificate();
+            }
+            ctx.error = st == null ? X509Utils.V_ERR_OCSP_VERIFY_FAILED : X509Utils.V_ERR_OCSP_CERT_UNKNOWN;
+            return ctx.verifyCallback.verify(0, ctx);
+        }
+        if(st.code == REVOKED) {
+            ctx.error = X509Utils.V_ERR_CERT_REVOKED;
+            return ctx.verifyCallback.verify(0, ctx);
+        }
+        return 1;
+    }
+
+    /**
+     * The status of x, issued by issuer, at the context's check time:
+     * from the cache, a stapled response or the responder, in that
+     * order. A stapled response that cannot be parsed or verified is
+     * skipped. Returns null if no acceptable response could be had.
+     */
+    public Status getStatus(StoreContext ctx, final X509AuxCertificate x, final X509AuxCertificate issuer) throws Exception {
+        final Date now = checkTime(ctx);
+        final byte[] id = certID(issuer, x.getSerialNumber());
+        ByteBuffer key = ByteBuffer.wrap(id);
+
+        Status cached = cache.get(key);
+        if(cached != null) {
+            if(cached.isCurrent(now, 0)) {
+                return cached;
+            }
+            if(cached.isExpired(System.currentTimeMillis())) {
+                cache.remove(key);
+            }
+        }
+
+        if(ctx.stapledOCSPResponses != null) {
+            for(byte[] stapled : ctx.stapledOCSPResponses) {
+                Status st;
+                try {
+                    st = accept(stapled, issuer, id, now);
+                } catch(Exception e) {
+                    continue;
+                }
+                if(st != null) {
+                    return st;
+                }
+            }
+        }
+
+        FutureTask<Status> task = new FutureTask<Status>(new Callable<Status>() {
+                public Status call() throws Exception {
+                    return fetch(x, issuer, id, now);
+                }
+            });
+        FutureTask<Status> running = pending.putIfAbsent(key, task);
+        if(running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch(ExecutionException e) {
+            return null;
+        }
+    }
+
+    private Status fetch(X509AuxCertificate x, X509AuxCertificate issuer, byte[] id, Date now) throws Exception {
+        String url = responderURL != null ? responderURL : responderOf(x);
+        if(url == null) {
+            return null;
+        }
+        CertID certID = CertID.getInstance(new ASN1InputStream(id).readObject());
+        OCSPRequest req = new OCSPRequest(new TBSRequest(null, new DERSequence(new Request(certID, null)), null), null);
+        return accept(transport.send(url, req.getEncoded()), issuer, id, now);
+    }
+
+    /**
+     * Checks the signature and validity of the OCSPResponse der,
+     * caches the statuses it carries for certificates of issuer and
+     * returns the one for id, if any.
+     */
+    private Status accept(byte[] der, X509AuxCertificate issuer, byte[] id, Date now) throws Exception {
+        OCSPResponse resp = OCSPResponse.getInstance(new ASN1InputStream(der).readObject());
+        if(resp.getResponseStatus().getValue().intValue() != OCSPResponseStatus.SUCCESSFUL) {
+            return null;
+        }
+        ResponseBytes bytes = resp.getResponseBytes();
+        if(bytes == null || !OCSPObjectIdentifiers.id_pkix_ocsp_basic.equals(bytes.getResponseType())) {
+            return null;
+        }
+        BasicOCSPResponse basic = BasicOCSPResponse.getInstance(new ASN1InputStream(bytes.getResponse().getOctets()).readObject());
+        if(!signedFor(basic, issuer, now)) {
+            return null;
+        }
+
+        Status found = null;
+        ASN1Sequence responses = basic.getTbsResponseData().getResponses();
+        for(int i=0;i<responses.size();i++) {
+            SingleResponse single = SingleResponse.getInstance(responses.getObjectAt(i));
+            byte[] sid = certID(issuer, single.getCertID());
+            if(sid == null) {
+                continue;
+            }
+            Date nextUpdate = single.getNextUpdate() == null ? null : single.getNextUpdate().getDate();
+            Status st = new Status(single.getCertStatus().getTagNo(), single.getThisUpdate().getDate(), nextUpdate);
+            if(!st.isCurrent(now, clockSkew)) {
+                continue;
+            }
+            if(nextUpdate != null) {
+                cache.put(ByteBuffer.wrap(sid), st);
+            }
+            if(Arrays.equals(sid, id)) {
+                found = st;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Whether basic is signed by issuer itself or by a responder
+     * certificate issuer delegated OCSP signing to.
+     */
+    private static boolean signedFor(BasicOCSPResponse basic, X509AuxCertificate issuer, Date now) throws Exception {
+        String alg = StreamingCRL.signatureAlgorithmName(basic.getSignatureAlgorithm().getObjectId().getId());
+        byte[] tbs = basic.getTbsResponseData().getEncoded();
+        byte[] signature = basic.getSignature().getBytes();
+        if(verifies(alg, issuer.getPublicKey(), tbs, signature)) {
+            return true;
+        }
+        ASN1Sequence certs = basic.getCerts();
+        if(certs == null) {
+            return false;
+        }
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        for(int i=0;i<certs.size();i++) {
+            X509AuxCertificate responder = StoreContext.ensureAux((X509Certificate)cf.generateCertificate(
+                    new ByteArrayInputStream(((DEREncodable)certs.getObjectAt(i)).getDERObject().getEncoded())));
+            if(X509Utils.checkIfIssuedBy(issuer, responder) != X509Utils.V_OK ||
+               (responder.getExFlags() & X509Utils.EXFLAG_XKUSAGE) == 0 ||
+               responder.extendedKeyUsageRejects(X509Utils.XKU_OCSP_SIGN) ||
+               now.before(responder.getNotBefore()) || now.after(responder.getNotAfter())) {
+                continue;
+            }
+            try {
+                responder.verify(issuer.getPublicKey());
+            } catch(Exception e) {
+                continue;
+            }
+            if(verifies(alg, responder.getPublicKey(), tbs, signature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean verifies(String alg, PublicKey key, byte[] data, byte[] signature) {
+        try {
+            Signature sig = Signature.getInstance(alg);
+            sig.initVerify(key);
+            sig.update(data);
+            return sig.verify(signature);
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * The DER encoding of the SHA-1 CertID of serial under issuer.
+     */
+    static byte[] certID(X509Certificate issuer, BigInteger serial) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] nameHash = sha1.digest(issuer.getSubjectX500Principal().getEncoded());
+        byte[] keyHash = sha1.digest(issuerKey(issuer));
+        return new CertID(SHA1, new DEROctetString(nameHash), new DEROctetString(keyHash), new DERInteger(serial)).getEncoded();
+    }
+
+    /**
+     * id normalized to the encoding certID(issuer, serial) gives, or
+     * null if it is not about a certificate of issuer.
+     */
+    private static byte[] certID(X509Certificate issuer, CertID id) throws Exception {
+        if(!X509ObjectIdentifiers.id_SHA1.equals(id.getHashAlgorithm().getObjectId())) {
+            return null;
+        }
+        byte[] ours = certID(issuer, id.getSerialNumber().getValue());
+        CertID mine = CertID.getInstance(new ASN1InputStream(ours).readObject());
+        if(!Arrays.equals(mine.getIssuerNameHash().getOctets(), id.getIssuerNameHash().getOctets()) ||
+           !Arrays.equals(mine.getIssuerKeyHash().getOctets(), id.getIssuerKeyHash().getOctets())) {
+            return null;
+        }
+        return ours;
+    }
+
+    private static byte[] issuerKey(X509Certificate issuer) throws IOException {
+        SubjectPublicKeyInfo spki = SubjectPublicKeyInfo.getInstance(new ASN1InputStream(issuer.getPublicKey().getEncoded()).readObject());
+        return spki.getPublicKeyData().getBytes();
+    }
+
+    /**
+     * The first OCSP responder URL in x's authority information
+     * access extension, or null.
+     */
+    static String responderOf(X509Certificate x) throws IOException {
+        byte[] ext = x.getExtensionValue(AIA_OID);
+        if(ext == null) {
+            return null;
+        }
+        DERObject value = new ASN1InputStream(((ASN1OctetString)new ASN1InputStream(ext).readObject()).getOctets()).readObject();
+        for(AccessDescription ad : AuthorityInformationAccess.getInstance(value).getAccessDescriptions()) {
+            GeneralName location = ad.getAccessLocation();
+            if(AccessDescription.id_ad_ocsp.equals(ad.getAccessMethod()) && location.getTagNo() == GeneralName.uniformResourceIdentifier) {
+                return ((DERIA5String)location.getName()).getString();
+            }
+        }
+        return null;
+    }
+
+    private static Date checkTime(StoreContext ctx) {
+        if((ctx.param.flags & X509Utils.V_FLAG_USE_CHECK_TIME) != 0) {
+            return ctx.param.checkTime;
+        }
+        return Calendar.getInstance().getTime();
+    }
+
+    /**
+     * One certificate's status as vouched for by a responder.
+     */
+    public static final class Status {
+        public final int code;
+        public final Date thisUpdate;
+        public final Date nextUpdate;
+
+        Status(int code, Date thisUpdate, Date nextUpdate) {
+            this.code = code;
+            this.thisUpdate = thisUpdate;
+            this.nextUpdate = nextUpdate;
+        }
+
+        boolean isCurrent(Date now, long skew) {
+            if(thisUpdate.getTime() > now.getTime() + skew) {
+                return false;
+            }
+            return nextUpdate == null || nextUpdate.getTime() >= now.getTime() - skew;
+        }
+
+        boolean isExpired(long now) {
+            return nextUpdate != null && nextUpdate.getTime() < now;
+        }
+    }
+}// OCSPChecker
@@ -37,14 +37,6 @@ import java.util.List;
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class Purpose {
-    private static final String XKU_EMAIL_PROTECT = "1.3.6.1.5.5.7.3.4";    // Email protection
-    private static final String XKU_SSL_CLIENT = "1.3.6.1.5.5.7.3.2";       // SSL Client Authentication
-    private static final String[] XKU_SSL_SERVER = new String[]{
-        "1.3.6.1.5.5.7.3.1",        // SSL Server Authentication
-        "2.16.840.1.113730.4.1",    // Netscape Server Gated Crypto
-        "1.3.6.1.4.1.311.10.3.3"    // Microsoft Server Gated Crypto
-    };
-
     public static interface CheckPurposeFunction extends Function3 {
         public static final CheckPurposeFunction EMPTY = new CheckPurposeFunction(){
                 public int call(Object arg0, Object arg1, Object arg2) {
@@ -53,6 +45,18 @@ public class Purpose {
             };
     }
 
+    /**
+     * Typed form of CheckPurposeFunction, called by checkPurpose
+     * without boxing the CA flag.
+     */
+    public static abstract class CheckPurpose implements CheckPurposeFunction {
+        public abstract int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception;
+
+        public final int call(Object arg0, Object arg1, Object arg2) throws Exception {
+            return check((Purpose)arg0, (X509AuxCertificate)arg1, ((Integer)arg2).intValue());
+        }
+    }
+
     public int purpose;
     public int trust;		/* Default trust ID */
     public int flags;
@@ -82,7 +86,10 @@ public class Purpose {
             return -1;
         }
         Purpose pt = getFirst(idx);
-        return pt.checkPurpose.call(pt,x,new Integer(ca));
+        if(pt.checkPurpose instanceof CheckPurpose) {
+            return ((CheckPurpose)pt.checkPurpose).check(pt,x,ca);
+        }
+        return pt.checkPurpose.call(pt,x,Integer.valueOf(ca));
     }
 
     /**
@@ -215,24 +222,24 @@ public class Purpose {
      * c: X509_check_ca
      */
     public static int checkCA(X509AuxCertificate x) throws Exception {
-        if(x.getKeyUsage() != null && !x.getKeyUsage()[5]) { // KEY_CERT_SIGN
+        if(x.keyUsageRejects(X509Utils.KU_KEY_CERT_SIGN)) {
             return 0;
         }
-        if(x.getExtensionValue("2.5.29.19") != null) { // BASIC_CONSTRAINTS
-            if(x.getBasicConstraints() != -1) { // is CA.
+        int flags = x.getExFlags();
+        if((flags & X509Utils.EXFLAG_BCONS) != 0) {
+            if((flags & X509Utils.EXFLAG_CA) != 0) {
                 return 1;
             } else {
                 return 0;
             }
         } else {
-            if(x.getVersion() == 1 && x.getIssuerX500Principal().equals(x.getSubjectX500Principal())) { // V1_ROOT
+            if((flags & X509Utils.EXFLAG_V1_ROOT) == X509Utils.EXFLAG_V1_ROOT) {
                 return 3;
             }
-            if(x.getKeyUsage() != null) {
+            if((flags & X509Utils.EXFLAG_KUSAGE) != 0) {
                 return 4;
             }
-            Integer nsCertType = x.getNsCertType();
-            if (nsCertType != null && (nsCertType & X509Utils.NS_ANY_CA) != 0) {
+            if((flags & X509Utils.EXFLAG_NSCERT) != 0 && (x.getNsCertTypeBits() & X509Utils.NS_ANY_CA) != 0) {
                 return 5;
             }
             return 0;
@@ -247,9 +254,7 @@ public class Purpose {
         if(ca_ret == 0) {
             return 0;
         }
-        Integer nsCertType = x.getNsCertType();
-        boolean v2 = nsCertType != null && (nsCertType & X509Utils.NS_SSL_CA) != 0;
-        if(ca_ret != 5 || v2) {
+        if(ca_ret != 5 || !x.nsCertTypeRejects(X509Utils.NS_SSL_CA)) {
             return ca_ret;
         }
         return 0;
@@ -259,11 +264,11 @@ public class Purpose {
      * c: xku_reject: check if the cert must be rejected(true) or not
      */
     public static boolean xkuReject(X509AuxCertificate x, String mustHaveXku) throws Exception {
-        List<String> xku = x.getExtendedKeyUsage();
+        List<String> xku = x.getCachedExtendedKeyUsage();
         return (xku != null) && !xku.contains(mustHaveXku);
     }
     public static boolean xkuReject(X509AuxCertificate x, String[] mustHaveOneOfXku) throws Exception {
-        List<String> xku = x.getExtendedKeyUsage();
+        List<String> xku = x.getCachedExtendedKeyUsage();
         if(xku == null) {
             return false;
         }
@@ -279,15 +284,14 @@ public class Purpose {
      * c: ns_reject
      */
     public static boolean nsReject(X509AuxCertificate x, int mustHaveCertType) throws Exception {
-        Integer nsCertType = x.getNsCertType();
-        return (nsCertType != null) && (nsCertType & mustHaveCertType) == 0;
+        return x.nsCertTypeRejects(mustHaveCertType);
     }
 
      /**
      * c: purpose_smime
      */
     public static int purposeSMIME(X509AuxCertificate x, int ca) throws Exception {
-        if(xkuReject(x,XKU_EMAIL_PROTECT)) {
+        if(x.extendedKeyUsageRejects(X509Utils.XKU_SMIME)) {
             return 0; // must allow email protection
         }
         if(ca != 0) {
@@ -295,20 +299,18 @@ public class Purpose {
             if(ca_ret == 0) {
                 return 0;
             }
-            Integer nsCertType = x.getNsCertType();
-            boolean v2 = nsCertType != null && (nsCertType & X509Utils.NS_SMIME_CA) != 0;
-            if(ca_ret != 5 || v2) {
+            if(ca_ret != 5 || !x.nsCertTypeRejects(X509Utils.NS_SMIME_CA)) {
                 return ca_ret;
             } else {
                 return 0;
             }
         }
-        Integer nsCertType = x.getNsCertType();
-        if (nsCertType != null) {
-            if ((nsCertType & X509Utils.NS_SMIME) != 0) {
+        if((x.getExFlags() & X509Utils.EXFLAG_NSCERT) != 0) {
+            int nsCertType = x.getNsCertTypeBits();
+            if((nsCertType & X509Utils.NS_SMIME) != 0) {
                 return 1;
             }
-            if ((nsCertType & X509Utils.NS_SSL_CLIENT) != 0) {
+            if((nsCertType & X509Utils.NS_SSL_CLIENT) != 0) {
                 return 2;
             }
             return 0;
@@ -319,17 +321,15 @@ public class Purpose {
     /**
      * c: check_purpose_ssl_client
      */
-     public final static CheckPurposeFunction checkPurposeSSLClient = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                if(xkuReject(x, XKU_SSL_CLIENT)) {
+     public final static CheckPurpose checkPurposeSSLClient = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
+                if(x.extendedKeyUsageRejects(X509Utils.XKU_SSL_CLIENT)) {
                     return 0;
                 }
-                int ca = ((Integer)_ca).intValue();
                 if(ca != 0) {
                     return checkSSLCA(x);
                 }
-                if(x.getKeyUsage() != null && !x.getKeyUsage()[0]) {
+                if(x.keyUsageRejects(X509Utils.KU_DIGITAL_SIGNATURE)) {
                     return 0;
                 }
                 if(nsReject(x, X509Utils.NS_SSL_CLIENT)) {
@@ -343,11 +343,9 @@ public class Purpose {
     /**
      * c: check_purpose_ssl_server
      */
-    public final static CheckPurposeFunction checkPurposeSSLServer =  new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                int ca = ((Integer)_ca).intValue();
-                if(xkuReject(x, XKU_SSL_SERVER)) {
+    public final static CheckPurpose checkPurposeSSLServer = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
+                if(x.extendedKeyUsageRejects(X509Utils.XKU_SSL_SERVER|X509Utils.XKU_SGC)) {
                     return 0;
                 }
                 if(ca != 0) {
@@ -357,7 +355,7 @@ public class Purpose {
                     // when the cert has nsCertType, it must include NS_SSL_SERVER
                     return 0;
                 }
-                if(x.getKeyUsage() != null && (!x.getKeyUsage()[0] || !x.getKeyUsage()[2])) {
+                if(x.keyUsageRejects(X509Utils.KU_DIGITAL_SIGNATURE) || x.keyUsageRejects(X509Utils.KU_KEY_ENCIPHERMENT)) {
                     return 0;
                 }
                 return 1;
@@ -367,16 +365,13 @@ public class Purpose {
     /**
      * c: check_purpose_ns_ssl_server
      */
-    public final static CheckPurposeFunction checkPurposeNSSSLServer = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                Purpose xp = (Purpose)_xp;
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                int ca = ((Integer)_ca).intValue();
-                int ret = checkPurposeSSLServer.call(xp,x,_ca);
+    public final static CheckPurpose checkPurposeNSSSLServer = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
+                int ret = checkPurposeSSLServer.check(xp,x,ca);
                 if(ret == 0 || ca != 0) {
                     return ret;
                 }
-                if(x.getKeyUsage() != null && !x.getKeyUsage()[2]) {
+                if(x.keyUsageRejects(X509Utils.KU_KEY_ENCIPHERMENT)) {
                     return 0;
                 }
                 return 1;
@@ -386,15 +381,13 @@ public class Purpose {
     /**
      * c: check_purpose_smime_sign
      */
-    public final static CheckPurposeFunction checkPurposeSMIMESign = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                int ca = ((Integer)_ca).intValue();
+    public final static CheckPurpose checkPurposeSMIMESign = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
                 int ret = purposeSMIME(x,ca);
                 if(ret == 0 || ca != 0) {
                     return ret;
                 }
-                if(x.getKeyUsage() != null && (!x.getKeyUsage()[0] || !x.getKeyUsage()[1])) {
+                if(x.keyUsageRejects(X509Utils.KU_DIGITAL_SIGNATURE) || x.keyUsageRejects(X509Utils.KU_NON_REPUDIATION)) {
                     return 0;
                 }
                 return ret;
@@ -404,15 +397,13 @@ public class Purpose {
     /**
      * c: check_purpose_smime_encrypt
      */
-    public final static CheckPurposeFunction checkPurposeSMIMEEncrypt = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                int ca = ((Integer)_ca).intValue();
+    public final static CheckPurpose checkPurposeSMIMEEncrypt = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
                 int ret = purposeSMIME(x,ca);
                 if(ret == 0 || ca != 0) {
                     return ret;
                 }
-                if(x.getKeyUsage() != null && !x.getKeyUsage()[2]) {
+                if(x.keyUsageRejects(X509Utils.KU_KEY_ENCIPHERMENT)) {
                     return 0;
                 }
                 return ret;
@@ -422,10 +413,8 @@ public class Purpose {
     /**
      * c: check_purpose_crl_sign
      */
-    public final static CheckPurposeFunction checkPurposeCRLSign = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                X509AuxCertificate x = (X509AuxCertificate)_x;
-                int ca = ((Integer)_ca).intValue();
+    public final static CheckPurpose checkPurposeCRLSign = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
                 
                 if(ca != 0) {
                     int ca_ret = checkCA(x);
@@ -434,7 +423,7 @@ public class Purpose {
                     }
                     return 0;
                 }
-                if(x.getKeyUsage() != null && !x.getKeyUsage()[6]) {
+                if(x.keyUsageRejects(X509Utils.KU_CRL_SIGN)) {
                     return 0;
                 }
                 return 1;
@@ -444,8 +433,8 @@ public class Purpose {
     /**
      * c: no_check
      */
-    public final static CheckPurposeFunction noCheck = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) {
+    public final static CheckPurpose noCheck = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) {
                 return 1;
             }
         };
@@ -453,10 +442,10 @@ public class Purpose {
     /**
      * c: ocsp_helper
      */
-    public final static CheckPurposeFunction oscpHelper = new CheckPurposeFunction() {
-            public int call(Object _xp, Object _x, Object _ca) throws Exception {
-                if(((Integer)_ca).intValue() != 0) {
-                    return checkCA((X509AuxCertificate)_x);
+    public final static CheckPurpose oscpHelper = new CheckPurpose() {
+            public int check(Purpose xp, X509AuxCertificate x, int ca) throws Exception {
+                if(ca != 0) {
+                    return checkCA(x);
                 }
                 return 1;
             }
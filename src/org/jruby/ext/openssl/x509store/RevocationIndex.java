@@ -0,0 +1,346 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The revoked serial numbers of one CRL, compiled into a sorted table
+ * of serial encodings held in primitive arrays, with a bloom filter in
+ * front of it so that the common "not revoked" answer usually costs a
+ * few bit tests instead of a binary search.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public class RevocationIndex {
+    private static final int HASHES = 3;
+    private static final int BITS_PER_ENTRY = 10;
+
+    public final X509CRL crl;
+
+    private final byte[] serials;
+    private final int[] offsets;
+    private final int[] positions;
+    private final long[] bloom;
+    private final int bloomBits;
+
+    /* indexes of CRLs that do not carry their own, by CRL identity; the
+     * cached indexes hold no reference to their CRL so that the weak keys
+     * can be cleared */
+    private static final ReferenceQueue<X509CRL> STALE = new ReferenceQueue<X509CRL>();
+    private static final ConcurrentHashMap<CRLKey, RevocationIndex> CACHE = new ConcurrentHashMap<CRLKey, RevocationIndex>();
+
+    private static final class CRLKey extends WeakReference<X509CRL> {
+        private final int hash;
+
+        CRLKey(X509CRL crl, ReferenceQueue<X509CRL> queue) {
+            super(crl, queue);
+            this.hash = System.identityHashCode(crl);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if(this == other) {
+                return true;
+            }
+            if(!(other instanceof CRLKey)) {
+                return false;
+            }
+            X509CRL crl = get();
+            return crl != null && crl == ((CRLKey)other).get();
+        }
+    }
+
+    private RevocationIndex(RevocationIndex shared, X509CRL crl) {
+        this.crl = crl;
+        this.serials = shared.serials;
+        this.offsets = shared.offsets;
+        this.positions = shared.positions;
+        this.bloom = shared.bloom;
+        this.bloomBits = shared.bloomBits;
+    }
+
+    private RevocationIndex(X509CRL crl, Builder b) {
+        this.crl = crl;
+        int n = b.count;
+        int[] order = new int[n];
+        for(int i=0;i<n;i++) {
+            order[i] = i;
+        }
+        sort(b, order, new int[n], 0, n);
+
+        this.serials = new byte[b.used];
+        this.offsets = new int[n + 1];
+        this.positions = new int[n];
+        this.bloomBits = Math.max(64, n * BITS_PER_ENTRY);
+        this.bloom = new long[(bloomBits + 63) >>> 6];
+        int pos = 0;
+        for(int i=0;i<n;i++) {
+            int j = order[i];
+            int len = b.starts[j+1] - b.starts[j];
+            offsets[i] = pos;
+            positions[i] = b.positions[j];
+            System.arraycopy(b.data, b.starts[j], serials, pos, len);
+            addToBloom(serials, pos, len);
+            pos += len;
+        }
+        offsets[n] = pos;
+    }
+
+    /**
+     * Collects serial numbers, in any order, for a RevocationIndex.
+     * Each serial may carry the position of its entry in the encoded
+     * CRL so that the entry can be decoded again later.
+     */
+    public static class Builder {
+        private byte[] data = new byte[256];
+        private int used;
+        private int[] starts = new int[33];
+        private int[] positions = new int[32];
+        private int count;
+
+        public void add(BigInteger serial, int position) {
+            byte[] b = serial.toByteArray();
+            add(ByteBuffer.wrap(b), 0, b.length, position);
+        }
+
+        /**
+         * Adds the INTEGER contents octets at buf[off, off+len).
+         * Redundant leading octets are dropped so that the stored form
+         * equals BigInteger.toByteArray().
+         */
+        public void add(ByteBuffer buf, int off, int len, int position) {
+            while(len > 1 && ((buf.get(off) == 0 && buf.get(off+1) >= 0) || (buf.get(off) == -1 && buf.get(off+1) < 0))) {
+                off++;
+                len--;
+            }
+            if(count + 1 >= positions.length) {
+                int[] ns = new int[positions.length * 2 + 1];
+                System.arraycopy(starts, 0, ns, 0, count + 1);
+                starts = ns;
+                int[] np = new int[positions.length * 2];
+                System.arraycopy(positions, 0, np, 0, count);
+                positions = np;
+            }
+            if(used + len > data.length) {
+                byte[] nd = new byte[Math.max(data.length * 2, used + len)];
+                System.arraycopy(data, 0, nd, 0, used);
+                data = nd;
+            }
+            for(int i=0;i<len;i++) {
+                data[used++] = buf.get(off + i);
+            }
+            positions[count++] = position;
+            starts[count] = used;
+        }
+
+        public RevocationIndex build(X509CRL crl) {
+            return new RevocationIndex(crl, this);
+        }
+    }
+
+    /**
+     * The index of crl, compiled on first use and then kept for as long
+     * as crl itself is reachable, so CRLs handed to each verification
+     * are not indexed again every time. Returns null if crl has no
+     * readable entry list.
+     */
+    public static RevocationIndex of(X509CRL crl) {
+        if(crl instanceof StreamingCRL) {
+            return ((StreamingCRL)crl).getRevocationIndex();
+        }
+        for(Object stale = STALE.poll(); stale != null; stale = STALE.poll()) {
+            CACHE.remove(stale);
+        }
+        RevocationIndex shared = CACHE.get(new CRLKey(crl, null));
+        if(shared == null) {
+            RevocationIndex built = build(crl);
+            if(built == null) {
+                return null;
+            }
+            shared = new RevocationIndex(built, null);
+            RevocationIndex prev = CACHE.putIfAbsent(new CRLKey(crl, STALE), shared);
+            if(prev != null) {
+                shared = prev;
+            }
+        }
+        return new RevocationIndex(shared, crl);
+    }
+
+    /**
+     * Compiles the revoked entries of crl. Returns null if crl has no
+     * readable entry list.
+     */
+    public static RevocationIndex build(X509CRL crl) {
+        if(crl instanceof StreamingCRL) {
+            return ((StreamingCRL)crl).getRevocationIndex();
+        }
+        Set<? extends X509CRLEntry> revoked;
+        try {
+            revoked = crl.getRevokedCertificates();
+        } catch(RuntimeException e) {
+            return null;
+        }
+        Builder b = new Builder();
+        if(revoked != null) {
+            for(X509CRLEntry entry : revoked) {
+                b.add(entry.getSerialNumber(), -1);
+            }
+        }
+        return b.build(crl);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Returns true if serial is listed in this CRL.
+     */
+    public boolean isRevoked(BigInteger serial) {
+        return find(serial) >= 0;
+    }
+
+    /**
+     * c: X509_CRL_get0_by_serial
+     */
+    public X509CRLEntry getRevokedCertificate(BigInteger serial) {
+        if(!isRevoked(serial)) {
+            return null;
+        }
+        return crl.getRevokedCertificate(serial);
+    }
+
+    /**
+     * The position recorded with serial by the Builder, or -1 if
+     * serial is not listed or no position was recorded.
+     */
+    int positionOf(BigInteger serial) {
+        int slot = find(serial);
+        return slot < 0 ? -1 : positions[slot];
+    }
+
+    private int find(BigInteger serial) {
+        byte[] key = serial.toByteArray();
+        int h1 = hash(key, 0, key.length);
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        for(int k=0;k<HASHES;k++) {
+            int bit = ((h1 + k * h2) & 0x7fffffff) % bloomBits;
+            if((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return -1;
+            }
+        }
+
+        int low = 0;
+        int high = size() - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(serials, offsets[mid], offsets[mid+1] - offsets[mid], key, 0, key.length);
+            if(c < 0) {
+                low = mid + 1;
+            } else if(c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void addToBloom(byte[] b, int off, int len) {
+        int h1 = hash(b, off, len);
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        for(int k=0;k<HASHES;k++) {
+            int bit = ((h1 + k * h2) & 0x7fffffff) % bloomBits;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /* Merge sort of order[from, to) by serial, using tmp as scratch. */
+    private static void sort(Builder b, int[] order, int[] tmp, int from, int to) {
+        if(to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(b, order, tmp, from, mid);
+        sort(b, order, tmp, mid, to);
+        if(compare(b, order[mid-1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int i = from, j = mid, k = from;
+        while(i < mid && j < to) {
+            order[k++] = compare(b, tmp[i], tmp[j]) <= 0 ? tmp[i++] : tmp[j++];
+        }
+        while(i < mid) {
+            order[k++] = tmp[i++];
+        }
+        while(j < to) {
+            order[k++] = tmp[j++];
+        }
+    }
+
+    private static int compare(Builder b, int x, int y) {
+        return compare(b.data, b.starts[x], b.starts[x+1] - b.starts[x], b.data, b.starts[y], b.starts[y+1] - b.starts[y]);
+    }
+
+    /* Orders by length first, then by unsigned bytes. Any total order
+     * works since only equality is looked for. */
+    private static int compare(byte[] a, int aoff, int alen, byte[] b, int boff, int blen) {
+        if(alen != blen) {
+            return alen < blen ? -1 : 1;
+        }
+        for(int i=0;i<alen;i++) {
+            int x = a[aoff+i] & 0xff;
+            int y = b[boff+i] & 0xff;
+            if(x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /* FNV-1a */
+    private static int hash(byte[] b, int off, int len) {
+        int h = 0x811c9dc5;
+        for(int i=off;i<off+len;i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+}// RevocationIndex
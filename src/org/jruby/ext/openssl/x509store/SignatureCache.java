@@ -0,0 +1,124 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide memo of successful certificate and CRL signature checks.
+ * Entries are keyed by a digest of the complete signed object (to be
+ * signed part, algorithm and signature value) together with a digest
+ * of the issuer's public key, so the same intermediate or CRL seen on
+ * many connections is only verified once.
+ *
+ * Only successful verifications are remembered.
+ */
+public class SignatureCache {
+    private SignatureCache() {}
+
+    private static final int MAX_ENTRIES = 4096;
+    private static final Map<ByteBuffer, Boolean> verified = new ConcurrentHashMap<ByteBuffer, Boolean>();
+
+    /**
+     * Verifies the signature of x with key, unless that has already
+     * been done successfully.
+     */
+    public static void verify(X509Certificate x, PublicKey key) throws Exception {
+        ByteBuffer k = key(digest(x.getEncoded()), key);
+        if(k != null && verified.containsKey(k)) {
+            return;
+        }
+        x.verify(key);
+        remember(k);
+    }
+
+    /**
+     * Verifies the signature of crl with key, unless that has already
+     * been done successfully.
+     */
+    public static void verify(X509CRL crl, PublicKey key) throws Exception {
+        byte[] d = crl instanceof StreamingCRL ? ((StreamingCRL)crl).getDigest() : digest(crl.getEncoded());
+        ByteBuffer k = key(d, key);
+        if(k != null && verified.containsKey(k)) {
+            return;
+        }
+        crl.verify(key);
+        remember(k);
+    }
+
+    public static void clear() {
+        verified.clear();
+    }
+
+    private static void remember(ByteBuffer k) {
+        if(k == null) {
+            return;
+        }
+        if(verified.size() >= MAX_ENTRIES) {
+            Iterator<ByteBuffer> iter = verified.keySet().iterator();
+            for(int i = 0; i < MAX_ENTRIES / 8 && iter.hasNext(); i++) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        verified.put(k, Boolean.TRUE);
+    }
+
+    private static byte[] digest(byte[] signed) {
+        if(signed == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(signed);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer key(byte[] a, PublicKey key) {
+        byte[] encodedKey = key.getEncoded();
+        if(a == null || encodedKey == null) {
+            return null;
+        }
+        try {
+            byte[] b = MessageDigest.getInstance("SHA-256").digest(encodedKey);
+            byte[] k = new byte[a.length + b.length];
+            System.arraycopy(a, 0, k, 0, a.length);
+            System.arraycopy(b, 0, k, a.length, b.length);
+            return ByteBuffer.wrap(k);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+}// SignatureCache
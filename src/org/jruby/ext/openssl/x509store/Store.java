@@ -27,14 +27,28 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.x509store;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.math.BigInteger;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.X509TrustManager;
 
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.DERInteger;
+
 /**
  * c: X509_STORE
  *
@@ -42,7 +56,6 @@ import javax.net.ssl.X509TrustManager;
  */
 public class Store implements X509TrustManager {
     public int cache;
-    public List<X509Object> objs;
     public List<Lookup> certificateMethods;
     public VerifyParameter param;
 
@@ -110,6 +123,127 @@ public class Store implements X509TrustManager {
             };
     }
 
+    /*
+     * Typed forms of the per-certificate callbacks. StoreContext keeps
+     * these and calls them with primitive arguments; call stays
+     * available for code written against the generic interfaces, and
+     * of adapts such an implementation once per context.
+     */
+
+    public static abstract class VerifyCallback implements VerifyCallbackFunction {
+        public abstract int verify(int ok, StoreContext ctx) throws Exception;
+
+        public final int call(Object arg0, Object arg1) throws Exception {
+            return verify(((Integer)arg0).intValue(), (StoreContext)arg1);
+        }
+
+        public static VerifyCallback of(final VerifyCallbackFunction func) {
+            if(func instanceof VerifyCallback) {
+                return (VerifyCallback)func;
+            }
+            return new VerifyCallback() {
+                    public int verify(int ok, StoreContext ctx) throws Exception {
+                        return func.call(Integer.valueOf(ok), ctx);
+                    }
+                };
+        }
+    }
+
+    public static abstract class GetIssuer implements GetIssuerFunction {
+        public abstract int find(X509AuxCertificate[] issuer, StoreContext ctx, X509AuxCertificate x) throws Exception;
+
+        public final int call(Object arg0, Object arg1, Object arg2) throws Exception {
+            return find((X509AuxCertificate[])arg0, (StoreContext)arg1, (X509AuxCertificate)arg2);
+        }
+
+        public static GetIssuer of(final GetIssuerFunction func) {
+            if(func instanceof GetIssuer) {
+                return (GetIssuer)func;
+            }
+            return new GetIssuer() {
+                    public int find(X509AuxCertificate[] issuer, StoreContext ctx, X509AuxCertificate x) throws Exception {
+                        return func.call(issuer, ctx, x);
+                    }
+                };
+        }
+    }
+
+    public static abstract class CheckIssued implements CheckIssuedFunction {
+        public abstract int check(StoreContext ctx, X509AuxCertificate x, X509AuxCertificate issuer) throws Exception;
+
+        public final int call(Object arg0, Object arg1, Object arg2) throws Exception {
+            return check((StoreContext)arg0, (X509AuxCertificate)arg1, (X509AuxCertificate)arg2);
+        }
+
+        public static CheckIssued of(final CheckIssuedFunction func) {
+            if(func instanceof CheckIssued) {
+                return (CheckIssued)func;
+            }
+            return new CheckIssued() {
+                    public int check(StoreContext ctx, X509AuxCertificate x, X509AuxCertificate issuer) throws Exception {
+                        return func.call(ctx, x, issuer);
+                    }
+                };
+        }
+    }
+
+    public static abstract class GetCRL implements GetCRLFunction {
+        public abstract int find(StoreContext ctx, X509CRL[] crl, X509AuxCertificate x) throws Exception;
+
+        public final int call(Object arg0, Object arg1, Object arg2) throws Exception {
+            return find((StoreContext)arg0, (X509CRL[])arg1, (X509AuxCertificate)arg2);
+        }
+
+        public static GetCRL of(final GetCRLFunction func) {
+            if(func instanceof GetCRL) {
+                return (GetCRL)func;
+            }
+            return new GetCRL() {
+                    public int find(StoreContext ctx, X509CRL[] crl, X509AuxCertificate x) throws Exception {
+                        return func.call(ctx, crl, x);
+                    }
+                };
+        }
+    }
+
+    public static abstract class CheckCRL implements CheckCRLFunction {
+        public abstract int check(StoreContext ctx, X509CRL crl) throws Exception;
+
+        public final int call(Object arg0, Object arg1) throws Exception {
+            return check((StoreContext)arg0, (X509CRL)arg1);
+        }
+
+        public static CheckCRL of(final CheckCRLFunction func) {
+            if(func instanceof CheckCRL) {
+                return (CheckCRL)func;
+            }
+            return new CheckCRL() {
+                    public int check(StoreContext ctx, X509CRL crl) throws Exception {
+                        return func.call(ctx, crl);
+                    }
+                };
+        }
+    }
+
+    public static abstract class CertificateCRL implements CertificateCRLFunction {
+        public abstract int check(StoreContext ctx, X509CRL crl, X509AuxCertificate x) throws Exception;
+
+        public final int call(Object arg0, Object arg1, Object arg2) throws Exception {
+            return check((StoreContext)arg0, (X509CRL)arg1, (X509AuxCertificate)arg2);
+        }
+
+        public static CertificateCRL of(final CertificateCRLFunction func) {
+            if(func instanceof CertificateCRL) {
+                return (CertificateCRL)func;
+            }
+            return new CertificateCRL() {
+                    public int check(StoreContext ctx, X509CRL crl, X509AuxCertificate x) throws Exception {
+                        return func.call(ctx, crl, x);
+                    }
+                };
+        }
+    }
+
     public VerifyFunction verify;
     public VerifyCallbackFunction verifyCallback;
     public GetIssuerFunction getIssuer;
@@ -123,13 +257,79 @@ public class Store implements X509TrustManager {
     public List<Object> extraData;
     public int references;
 
+    /**
+     * Writers serialize on this lock; readers only ever see frozen
+     * snapshots and never take it once a snapshot is published.
+     */
+    private final Object objectsLock = new Object();
+    private final X509ObjectTable objects;
+    private volatile X509ObjectTable snapshot;
+    /* the shared layer loaded from each CA file, by canonical path;
+     * guarded by objectsLock */
+    private final Map<String, X509ObjectTable> sharedLayers = new HashMap<String, X509ObjectTable>();
+
+    private volatile VerifyStats stats;
+
+    /**
+     * Turns collection of verification timings and lookup counts on or
+     * off. Turning it on again keeps what was collected before.
+     */
+    public synchronized void setStatsEnabled(boolean enabled) {
+        if(!enabled) {
+            stats = null;
+        } else if(stats == null) {
+            stats = new VerifyStats();
+        }
+    }
+
+    /**
+     * The statistics collected for this store, or null when collection
+     * is off.
+     */
+    public VerifyStats getStats() {
+        return stats;
+    }
+
+    /**
+     * How long, in milliseconds, a subject that none of the lookup
+     * methods could find is remembered as missing. 0 disables the
+     * negative cache.
+     */
+    public long negativeCacheTimeout = 5000;
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+    private final Map<MissKey, Long> negativeCache = new ConcurrentHashMap<MissKey, Long>();
+    private final AtomicInteger missGeneration = new AtomicInteger();
+
+    private static final class MissKey {
+        private final int type;
+        private final Name name;
+
+        MissKey(int type, Name name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        public boolean equals(Object other) {
+            if(!(other instanceof MissKey)) {
+                return false;
+            }
+            MissKey o = (MissKey)other;
+            return type == o.type && name.equals(o.name);
+        }
+
+        public int hashCode() {
+            return 31 * name.hashCode() + type;
+        }
+    }
+
     /**
      * c: X509_STORE_new
      */
     public Store() {
-        objs = new ArrayList<X509Object>();
+        objects = new X509ObjectTable();
+        snapshot = objects.snapshot();
         cache = 1;
-        certificateMethods = new ArrayList<Lookup>();
+        certificateMethods = new CopyOnWriteArrayList<Lookup>();
 
         verify = VerifyFunction.EMPTY;
         verifyCallback = VerifyCallbackFunction.EMPTY;
@@ -151,6 +351,91 @@ public class Store implements X509TrustManager {
         this.extraData.add(null);this.extraData.add(null);this.extraData.add(null);
     }
 
+    /**
+     * Returns an immutable snapshot of the objects in this store. A
+     * snapshot shares the table's contents instead of copying them (see
+     * X509ObjectTable), so taking one after each lazily loaded file
+     * costs no more than taking one at the end.
+     */
+    public X509ObjectTable getObjects() {
+        X509ObjectTable s = snapshot;
+        if(s == null) {
+            synchronized(objectsLock) {
+                s = snapshot;
+                if(s == null) {
+                    s = objects.snapshot();
+                    snapshot = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Tells whether a lookup of name by the lookup methods failed
+     * recently enough that it isn't worth trying again.
+     */
+    public boolean isKnownMiss(int type, Name name) {
+        if(negativeCacheTimeout <= 0 || name == null || negativeCache.isEmpty()) {
+            return false;
+        }
+        MissKey key = new MissKey(type, name);
+        Long expires = negativeCache.get(key);
+        if(expires == null) {
+            return false;
+        }
+        if(expires.longValue() < System.currentTimeMillis()) {
+            negativeCache.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Bumped by clearMisses; a lookup captures it before taking the
+     * snapshot it searches, so addMiss can tell that objects were added
+     * since.
+     */
+    public int getMissGeneration() {
+        return missGeneration.get();
+    }
+
+    /**
+     * Records that none of the lookup methods could find name, unless
+     * objects were added since generation (see getMissGeneration), when
+     * the miss may already be stale.
+     */
+    public void addMiss(int type, Name name, int generation) {
+        if(negativeCacheTimeout <= 0 || name == null) {
+            return;
+        }
+        MissKey key = new MissKey(type, name);
+        long now = System.currentTimeMillis();
+        if(negativeCache.size() >= NEGATIVE_CACHE_SIZE) {
+            for(Iterator<Long> iter = negativeCache.values().iterator(); iter.hasNext();) {
+                if(iter.next().longValue() < now) {
+                    iter.remove();
+                }
+            }
+            if(negativeCache.size() >= NEGATIVE_CACHE_SIZE) {
+                negativeCache.clear();
+            }
+        }
+        negativeCache.put(key, Long.valueOf(now + negativeCacheTimeout));
+        if(missGeneration.get() != generation) {
+            /* raced with clearMisses */
+            negativeCache.remove(key);
+        }
+    }
+
+    /**
+     * Forgets all recorded misses. Called whenever objects are added.
+     */
+    public void clearMisses() {
+        missGeneration.incrementAndGet();
+        negativeCache.clear();
+    }
+
     /**
      * c: X509_STORE_set_verify_func
      */
@@ -165,10 +450,18 @@ public class Store implements X509TrustManager {
         verifyCallback = func;
     }
 
+    /**
+     * c: X509_STORE_set_check_revocation
+     */
+    public void setCheckRevocationFunction(CheckRevocationFunction func) {
+        checkRevocation = func;
+    }
+
     /**
      * c: X509_STORE_free
      */
     public void free() throws Exception {
+        TrustStoreRegistry.releaseAll(this);
         for(Lookup lu : certificateMethods) {
             lu.shutdown();
             lu.free();
@@ -235,14 +528,16 @@ public class Store implements X509TrustManager {
     public Lookup addLookup(LookupMethod m) throws Exception { 
         Lookup lu;
 
-        for(Lookup l : certificateMethods) {
-            if(l.equals(m)) {
-                return l;
+        synchronized(objectsLock) {
+            for(Lookup l : certificateMethods) {
+                if(l.method == m) {
+                    return l;
+                }
             }
+            lu = new Lookup(m);
+            lu.store = this;
+            certificateMethods.add(lu);
         }
-        lu = new Lookup(m);
-        lu.store = this;
-        certificateMethods.add(lu);
         return lu;
     } 
 
@@ -250,22 +545,37 @@ public class Store implements X509TrustManager {
      * c: X509_STORE_add_cert
      */
     public int addCertificate(X509Certificate x) { 
-        int ret = 1;
         if(x == null) {
             return 0;
         }
 
-        Certificate obj = new Certificate();
-        obj.x509 = StoreContext.ensureAux(x);
+        Certificate obj;
+        try {
+            obj = new Certificate(StoreContext.ensureAux(x));
+        } catch(CertificateEncodingException e) {
+            X509Error.addError(X509Utils.X509_R_BAD_X509_FILETYPE);
+            return 0;
+        }
+        return add(obj);
+    }
 
-        synchronized(X509Utils.CRYPTO_LOCK_X509_STORE) {
-            if(X509Object.retrieveMatch(objs,obj) != null) {
+    /**
+     * Adds the certificate entry obj, which may not have been decoded
+     * yet (see Certificate.fromDER).
+     */
+    int add(Certificate obj) {
+        int ret = 1;
+        synchronized(objectsLock) {
+            if(!objects.add(obj)) {
                 X509Error.addError(X509Utils.X509_R_CERT_ALREADY_IN_HASH_TABLE);
                 ret=0;
             } else {
-                objs.add(obj);
+                snapshot = null;
             }
         }
+        if(ret == 1) {
+            clearMisses();
+        }
         return ret;
     } 
 
@@ -279,25 +589,133 @@ public class Store implements X509TrustManager {
         }
         CRL obj = new CRL();
         obj.crl = x;
+        if(x instanceof X509CRL) {
+            obj.index = RevocationIndex.build((X509CRL)x);
+        }
 
-        synchronized(X509Utils.CRYPTO_LOCK_X509_STORE) {
-            if(X509Object.retrieveMatch(objs,obj) != null) {
+        synchronized(objectsLock) {
+            if(!objects.add(obj)) {
                 X509Error.addError(X509Utils.X509_R_CERT_ALREADY_IN_HASH_TABLE);
                 ret=0;
             } else {
-                objs.add(obj);
+                snapshot = null;
             }
         }
+        if(ret == 1) {
+            clearMisses();
+        }
         return ret;
     } 
 
+    /**
+     * Replaces the CRL held for x's issuer if x is newer, or adds x if
+     * there is none yet. Verifications already running keep the
+     * snapshot they started with. Returns 1 if x was stored, 0 if the
+     * held CRL is the same or newer.
+     */
+    public int updateCRL(X509CRL x) {
+        if(null == x) {
+            return 0;
+        }
+        CRL obj = new CRL();
+        obj.crl = x;
+        obj.index = RevocationIndex.build(x);
+
+        synchronized(objectsLock) {
+            X509Object old = objects.retrieveMatch(obj);
+            if(old != null && !isNewer(x, (X509CRL)((CRL)old).crl)) {
+                return 0;
+            }
+            objects.replace(obj);
+            snapshot = null;
+        }
+        clearMisses();
+        return 1;
+    }
+
+    /**
+     * Removes x if it is still the CRL held for its issuer; one that
+     * replaced it, or a CRL from a shared CA file, is left alone.
+     * Returns 1 if x was removed.
+     */
+    public int removeCRL(X509CRL x) {
+        if(null == x) {
+            return 0;
+        }
+        CRL probe = new CRL();
+        probe.crl = x;
+        synchronized(objectsLock) {
+            X509Object held = objects.retrieveMatch(probe);
+            if(!(held instanceof CRL) || ((CRL)held).crl != x || !objects.removeCRL((CRL)held)) {
+                return 0;
+            }
+            snapshot = null;
+        }
+        clearMisses();
+        return 1;
+    }
+
+    private final static String CRL_NUMBER_OID = "2.5.29.20";
+
+    /* a higher CRL number wins; otherwise the later thisUpdate */
+    private static boolean isNewer(X509CRL x, X509CRL old) {
+        BigInteger n = crlNumber(x);
+        BigInteger o = crlNumber(old);
+        if(n != null && o != null && !n.equals(o)) {
+            return n.compareTo(o) > 0;
+        }
+        return x.getThisUpdate().after(old.getThisUpdate());
+    }
+
+    private static BigInteger crlNumber(X509CRL crl) {
+        byte[] ext = crl.getExtensionValue(CRL_NUMBER_OID);
+        if(ext == null) {
+            return null;
+        }
+        try {
+            ASN1OctetString value = (ASN1OctetString)new ASN1InputStream(ext).readObject();
+            return ((DERInteger)new ASN1InputStream(value.getOctets()).readObject()).getValue();
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private final List<CRLDirectoryWatcher> watchers = new CopyOnWriteArrayList<CRLDirectoryWatcher>();
+
+    /**
+     * Starts reloading the CRL files in dir in the background every
+     * interval milliseconds. New or modified files are parsed and
+     * passed to updateCRL.
+     */
+    public void watchCRLDirectory(String dir, long interval) {
+        unwatchCRLDirectory(dir);
+        watchers.add(CRLDirectoryWatcher.start(this, dir, interval));
+    }
+
+    public void unwatchCRLDirectory(String dir) {
+        for(CRLDirectoryWatcher w : watchers) {
+            if(w.dir.equals(dir)) {
+                w.stop();
+                watchers.remove(w);
+            }
+        }
+    }
+
     /**
      * c: X509_STORE_load_locations
      */
     public int loadLocations(String file, String path) throws Exception { 
         Lookup lookup;
 
-        if(file != null) {
+        clearMisses();
+
+        if(file != null && TrustBundle.isBundle(Lookup.resolveFile(file))) {
+            return loadBundle(file) == 1 && (path == null || loadLocations(null, path) == 1) ? 1 : 0;
+        }
+
+        if(file != null && !Lookup.resolveFile(file).isFile()) {
+            /* a file: or classpath: URL, or a jar entry: only JRuby's
+             * stream can open it, so it is loaded for this store alone */
             lookup = addLookup(Lookup.fileLookup());
             if(lookup == null) {
                 return 0;
@@ -305,6 +723,25 @@ public class Store implements X509TrustManager {
             if(lookup.loadFile(new CertificateFile.Path(file,X509Utils.X509_FILETYPE_PEM)) != 1) {
                 return 0;
             }
+        } else if(file != null) {
+            /* parsed once per JVM and shared with every store loading it;
+             * loading the file again replaces the layer it left before */
+            File f = new File(Lookup.resolveFile(file).getCanonicalPath());
+            X509ObjectTable shared = TrustStoreRegistry.acquire(this, f);
+            if(shared == null) {
+                return 0;
+            }
+            X509ObjectTable previous;
+            synchronized(objectsLock) {
+                previous = sharedLayers.put(f.getPath(), shared);
+                if(previous != shared) {
+                    objects.replaceShared(previous, shared);
+                    snapshot = null;
+                }
+            }
+            if(previous != null) {
+                TrustStoreRegistry.release(this, previous);
+            }
         }
 
         if(path != null) {
@@ -323,6 +760,20 @@ public class Store implements X509TrustManager {
         return 1;
     } 
 
+    /**
+     * Adds the compiled trust bundle file (see TrustBundle). Its
+     * certificates are decoded only when verification looks them up.
+     * loadLocations does the same when handed a bundle.
+     */
+    public int loadBundle(String file) throws Exception {
+        clearMisses();
+        Lookup lookup = addLookup(Lookup.bundleLookup());
+        if(lookup == null) {
+            return 0;
+        }
+        return lookup.addBundle(file);
+    }
+
     /**
      * c: X509_STORE_set_default_paths
      * not used for now: invoking this method causes refering System.getenv("SSL_CERT_DIR") etc.
@@ -367,9 +818,9 @@ public class Store implements X509TrustManager {
 
     public X509Certificate[] getAcceptedIssuers() {
         List<X509Certificate> l = new ArrayList<X509Certificate>();
-        for(X509Object o : objs) {
+        for(X509Object o : getObjects()) {
             if(o instanceof Certificate) {
-                l.add(((Certificate)o).x509);
+                l.add(((Certificate)o).getX509());
             }
         }
         return l.toArray(new X509Certificate[l.size()]);
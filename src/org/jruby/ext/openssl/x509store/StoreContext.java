@@ -32,13 +32,17 @@ import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.security.cert.X509Extension;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.DERSequence;
@@ -53,10 +57,27 @@ public class StoreContext {
     public Store ctx;
     public int currentMethod;
 
+    /**
+     * Snapshot of ctx's objects taken at init, so a verification reads
+     * one consistent view of the store without locking.
+     */
+    public X509ObjectTable objects;
+    /* ctx's miss generation when objects was taken */
+    private int missGeneration;
+
     public X509AuxCertificate certificate;
     public List<X509AuxCertificate> untrusted;
     public List<X509CRL> crls;
 
+    /* DER encoded OCSP responses stapled by the peer; consulted by
+     * OCSPChecker before its cache and responders */
+    public List<byte[]> stapledOCSPResponses;
+
+    /* crls by issuer, and the revocation index of every CRL seen by
+     * this context; built on first use */
+    private Map<Name, List<X509CRL>> crlsByIssuer;
+    private final Map<X509CRL, RevocationIndex> revocationIndexes = new IdentityHashMap<X509CRL, RevocationIndex>();
+
     public VerifyParameter param;
 
     public List<X509AuxCertificate> otherContext;
@@ -70,16 +91,26 @@ public class StoreContext {
     }
 
     public Store.VerifyFunction verify;
-    public Store.VerifyCallbackFunction verifyCallback;
-    public Store.GetIssuerFunction getIssuer;
-    public Store.CheckIssuedFunction checkIssued;
+    public Store.VerifyCallback verifyCallback;
+    public Store.GetIssuer getIssuer;
+    public Store.CheckIssued checkIssued;
     public Store.CheckRevocationFunction checkRevocation;
-    public Store.GetCRLFunction getCRL;
-    public Store.CheckCRLFunction checkCRL;
-    public Store.CertificateCRLFunction certificateCRL;
+    public Store.GetCRL getCRL;
+    public Store.CheckCRL checkCRL;
+    public Store.CertificateCRL certificateCRL;
     public CheckPolicyFunction checkPolicy;
     public Store.CleanupFunction cleanup;
 
+    // out parameters handed to getIssuer and getCRL, reused across steps
+    private final X509AuxCertificate[] issuerOut = new X509AuxCertificate[1];
+    private final X509CRL[] crlOut = new X509CRL[1];
+    // out parameters of getBySubject, and of the lookup methods it asks
+    private final X509Object[] subjectOut = new X509Object[1];
+    private final X509Object[] lookupOut = new X509Object[1];
+
+    // the store's statistics when it collects them, otherwise null
+    private VerifyStats stats;
+
     public boolean isValid;
     public int lastUntrusted;
     
@@ -121,8 +152,9 @@ public class StoreContext {
      * c: X509_STORE_CTX_get1_issuer
      */
     public int getFirstIssuer(X509AuxCertificate[] issuer, X509AuxCertificate x) throws Exception { 
-        Name xn = new Name(x.getIssuerX500Principal());
-        X509Object[] s_obj = new X509Object[1];
+        Name xn = Name.of(x.getIssuerX500Principal());
+        X509Object[] s_obj = subjectOut;
+        s_obj[0] = null;
         int ok = ctx == null ? 0 : getBySubject(X509Utils.X509_LU_X509,xn,s_obj);
         if(ok != X509Utils.X509_LU_X509) {
             if(ok == X509Utils.X509_LU_RETRY) {
@@ -133,34 +165,53 @@ public class StoreContext {
             }
             return 0;
         }
-        X509Object obj = s_obj[0];
-        if(this.checkIssued.call(this,x,((Certificate)obj).x509) != 0) {
-            issuer[0] = ((Certificate)obj).x509;
+        /* Prefer the certificate the authority key identifier points at */
+        byte[] akid = x.getAuthorityKeyIdentifier();
+        if(akid != null && issuerByKeyIdentifier(issuer, x, akid)) {
             return 1;
         }
 
-        int idx = X509Object.indexBySubject(ctx.objs,X509Utils.X509_LU_X509, xn);
-        if(idx == -1) {
-            return 0;
+        X509Object obj = s_obj[0];
+        if(this.checkIssued.check(this,x,((Certificate)obj).getX509()) != 0) {
+            issuer[0] = ((Certificate)obj).getX509();
+            return 1;
         }
 
         /* Look through all matching certificates for a suitable issuer */
-        for(int i = idx; i < ctx.objs.size(); i++) {
-            X509Object pobj = ctx.objs.get(i);
-            if(pobj.type() != X509Utils.X509_LU_X509) {
-                return 0;
-            }
-            if(!xn.isEqual((((Certificate)pobj).x509).getSubjectX500Principal())) {
-                return 0;
-            }
-            if(this.checkIssued.call(this,x,((Certificate)pobj).x509) != 0) {
-                issuer[0] = ((Certificate)pobj).x509;
+        for(X509Object pobj : objects.retrieveAllBySubject(X509Utils.X509_LU_X509, xn)) {
+            if(this.checkIssued.check(this,x,((Certificate)pobj).getX509()) != 0) {
+                issuer[0] = ((Certificate)pobj).getX509();
                 return 1;
             }
         }
         return 0;
     }
 
+    /**
+     * Looks for an issuer of x among the certificates whose subject key
+     * identifier is akid, asking the lookups (trust bundles) only when
+     * the store holds none.
+     */
+    private boolean issuerByKeyIdentifier(X509AuxCertificate[] issuer, X509AuxCertificate x, byte[] akid) throws Exception {
+        List<X509Object> found = objects.retrieveByKeyIdentifier(akid);
+        if(found.isEmpty()) {
+            for(Lookup lu : ctx.certificateMethods) {
+                if(lu.byKeyIdentifier(X509Utils.X509_LU_X509,akid,lookupOut) > 0) {
+                    objects = snapshotObjects(ctx);
+                    found = objects.retrieveByKeyIdentifier(akid);
+                    break;
+                }
+            }
+        }
+        for(X509Object pobj : found) {
+            if(this.checkIssued.check(this,x,((Certificate)pobj).getX509()) != 0) {
+                issuer[0] = ((Certificate)pobj).getX509();
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static List<X509AuxCertificate> ensureAux(Collection<X509Certificate> inp) {
         if (inp == null) {
             return null;
@@ -200,10 +251,15 @@ public class StoreContext {
     public int init(Store store, X509AuxCertificate x509, List<X509AuxCertificate> chain) { 
         int ret = 1;
         this.ctx=store;
+        this.objects = store == null ? null : snapshotObjects(store);
+        this.stats = store == null ? null : store.getStats();
         this.currentMethod=0;
         this.certificate=x509;
         this.untrusted=chain;
         this.crls = null;
+        this.crlsByIssuer = null;
+        this.revocationIndexes.clear();
+        this.stapledOCSPResponses = null;
         this.lastUntrusted=0;
         this.otherContext = null;
         this.isValid=false;
@@ -223,7 +279,6 @@ public class StoreContext {
             param.flags |= X509Utils.X509_VP_FLAG_DEFAULT | X509Utils.X509_VP_FLAG_ONCE;
         }
         if(store != null) {
-            verifyCallback = store.verifyCallback;
             cleanup = store.cleanup;
         } else {
             cleanup = Store.CleanupFunction.EMPTY;
@@ -239,23 +294,19 @@ public class StoreContext {
         }
 
         if(store != null && store.checkIssued != null && store.checkIssued != Store.CheckIssuedFunction.EMPTY) {
-            this.checkIssued = store.checkIssued;
+            this.checkIssued = Store.CheckIssued.of(store.checkIssued);
         } else {
             this.checkIssued = defaultCheckIssued;
         }
 
         if(store != null && store.getIssuer != null && store.getIssuer != Store.GetIssuerFunction.EMPTY) {
-            this.getIssuer = store.getIssuer;
+            this.getIssuer = Store.GetIssuer.of(store.getIssuer);
         } else {
-            this.getIssuer = new Store.GetIssuerFunction() {
-                    public int call(Object arg1, Object arg2, Object arg3) throws Exception {
-                        return ((StoreContext)arg2).getFirstIssuer((X509AuxCertificate[])arg1,(X509AuxCertificate)arg3);
-                    }
-                };
+            this.getIssuer = defaultGetIssuer;
         }
 
         if(store != null && store.verifyCallback != null && store.verifyCallback != Store.VerifyCallbackFunction.EMPTY) {
-            this.verifyCallback = store.verifyCallback;
+            this.verifyCallback = Store.VerifyCallback.of(store.verifyCallback);
         } else {
             this.verifyCallback = NullCallback;
         }
@@ -273,19 +324,19 @@ public class StoreContext {
         }
 
         if(store != null && store.getCRL != null && store.getCRL != Store.GetCRLFunction.EMPTY) {
-            this.getCRL = store.getCRL;
+            this.getCRL = Store.GetCRL.of(store.getCRL);
         } else {
             this.getCRL = defaultGetCRL;
         }
 
         if(store != null && store.checkCRL != null && store.checkCRL != Store.CheckCRLFunction.EMPTY) {
-            this.checkCRL = store.checkCRL;
+            this.checkCRL = Store.CheckCRL.of(store.checkCRL);
         } else {
             this.checkCRL = defaultCheckCRL;
         }
 
         if(store != null && store.certificateCRL != null && store.certificateCRL != Store.CertificateCRLFunction.EMPTY) {
-            this.certificateCRL = store.certificateCRL;
+            this.certificateCRL = Store.CertificateCRL.of(store.certificateCRL);
         } else {
             this.certificateCRL = defaultCertificateCRL;
         }
@@ -323,8 +374,16 @@ public class StoreContext {
      * c: find_issuer
      */
     public X509AuxCertificate findIssuer(List<X509AuxCertificate> sk, X509AuxCertificate x) throws Exception {
+        byte[] akid = x.getAuthorityKeyIdentifier();
+        if(akid != null) {
+            for(X509AuxCertificate issuer : sk) {
+                if(Arrays.equals(akid, issuer.getSubjectKeyIdentifier()) && checkIssued.check(this,x,issuer) != 0) {
+                    return issuer;
+                }
+            }
+        }
         for(X509AuxCertificate issuer : sk) {
-            if(checkIssued.call(this,x,issuer) != 0) {
+            if(checkIssued.check(this,x,issuer) != 0) {
                 return issuer;
             }
         }
@@ -418,8 +477,48 @@ public class StoreContext {
      */
     public void setCRLs(List<X509CRL> sk) {
         this.crls = sk;
+        this.crlsByIssuer = null;
     } 
 
+    /**
+     * Hands OCSP responses stapled to a handshake to the revocation
+     * check, sparing OCSPChecker a trip to the responder.
+     */
+    public void setStapledOCSPResponses(List<byte[]> responses) {
+        this.stapledOCSPResponses = responses;
+    }
+
+    private List<X509CRL> crlsIssuedBy(Name nm) {
+        if(crlsByIssuer == null) {
+            crlsByIssuer = new HashMap<Name, List<X509CRL>>();
+            for(X509CRL crl : crls) {
+                Name issuer = Name.of(crl.getIssuerX500Principal());
+                List<X509CRL> bucket = crlsByIssuer.get(issuer);
+                if(bucket == null) {
+                    bucket = new ArrayList<X509CRL>(1);
+                    crlsByIssuer.put(issuer, bucket);
+                }
+                bucket.add(crl);
+                if(!revocationIndexes.containsKey(crl)) {
+                    revocationIndexes.put(crl, RevocationIndex.of(crl));
+                }
+            }
+        }
+        List<X509CRL> bucket = crlsByIssuer.get(nm);
+        if(bucket == null) {
+            return new ArrayList<X509CRL>(0);
+        }
+        return bucket;
+    }
+
+    /**
+     * The compiled revocation index for crl, if it came from the store
+     * or from setCRLs.
+     */
+    public RevocationIndex getRevocationIndex(X509CRL crl) {
+        return revocationIndexes.get(crl);
+    }
+
     /**
      * c: X509_STORE_CTX_set_purpose
      */
@@ -436,16 +535,14 @@ public class StoreContext {
 
     private void resetSettingsToWithoutStore() {
         ctx = null;
+        objects = null;
+        stats = null;
         this.param = new VerifyParameter();
         this.param.flags |= X509Utils.X509_VP_FLAG_DEFAULT | X509Utils.X509_VP_FLAG_ONCE;
         this.param.inherit(VerifyParameter.lookup("default"));
         this.cleanup = Store.CleanupFunction.EMPTY;
         this.checkIssued = defaultCheckIssued;
-        this.getIssuer = new Store.GetIssuerFunction() {
-                public int call(Object arg1, Object arg2, Object arg3) throws Exception {
-                    return ((StoreContext)arg2).getFirstIssuer((X509AuxCertificate[])arg1,(X509AuxCertificate)arg3);
-                }
-            };
+        this.getIssuer = defaultGetIssuer;
         this.verifyCallback = NullCallback;
         this.verify = internalVerify;
         this.checkRevocation = defaultCheckRevocation;
@@ -467,14 +564,14 @@ public class StoreContext {
                 param.inherit(VerifyParameter.lookup("default"));
                 this.cleanup = ctx.cleanup;
                 if(ctx.checkIssued != null && ctx.checkIssued != Store.CheckIssuedFunction.EMPTY) {
-                    this.checkIssued = ctx.checkIssued;
+                    this.checkIssued = Store.CheckIssued.of(ctx.checkIssued);
                 }
                 if(ctx.getIssuer != null && ctx.getIssuer != Store.GetIssuerFunction.EMPTY) {
-                    this.getIssuer = ctx.getIssuer;
+                    this.getIssuer = Store.GetIssuer.of(ctx.getIssuer);
                 }
 
                 if(ctx.verifyCallback != null && ctx.verifyCallback != Store.VerifyCallbackFunction.EMPTY) {
-                    this.verifyCallback = ctx.verifyCallback;
+                    this.verifyCallback = Store.VerifyCallback.of(ctx.verifyCallback);
                 }
 
                 if(ctx.verify != null && ctx.verify != Store.VerifyFunction.EMPTY) {
@@ -486,20 +583,23 @@ public class StoreContext {
                 }
 
                 if(ctx.getCRL != null && ctx.getCRL != Store.GetCRLFunction.EMPTY) {
-                    this.getCRL = ctx.getCRL;
+                    this.getCRL = Store.GetCRL.of(ctx.getCRL);
                 }
 
                 if(ctx.checkCRL != null && ctx.checkCRL != Store.CheckCRLFunction.EMPTY) {
-                    this.checkCRL = ctx.checkCRL;
+                    this.checkCRL = Store.CheckCRL.of(ctx.checkCRL);
                 }
 
                 if(ctx.certificateCRL != null && ctx.certificateCRL != Store.CertificateCRLFunction.EMPTY) {
-                    this.certificateCRL = ctx.certificateCRL;
+                    this.certificateCRL = Store.CertificateCRL.of(ctx.certificateCRL);
                 }
             }
 
             int ret = ctx.loadLocations(CAfile, CApath);
             if(ret == 0 && reset) resetSettingsToWithoutStore();
+            if(ret != 0) {
+                objects = snapshotObjects(ctx);
+            }
 
             return ret;
         } catch(Exception e) {
@@ -572,7 +672,7 @@ public class StoreContext {
      * c: X509_STORE_CTX_set_verify_cb
      */
     public void setVerifyCallback(Store.VerifyCallbackFunction verifyCallback) {
-        this.verifyCallback = verifyCallback;
+        this.verifyCallback = Store.VerifyCallback.of(verifyCallback);
     } 
 
     /**
@@ -614,28 +714,43 @@ public class StoreContext {
         return param.inherit(p);
     }
 
+    private X509ObjectTable snapshotObjects(Store store) {
+        missGeneration = store.getMissGeneration();
+        return store.getObjects();
+    }
+
     /**
      * c: X509_STORE_get_by_subject (it gets X509_STORE_CTX as the first parameter)
      */
     public int getBySubject(int type,Name name,X509Object[] ret) throws Exception {
         Store c = ctx;
+        if(objects == null) {
+            objects = snapshotObjects(c);
+        }
 
-        X509Object tmp = X509Object.retrieveBySubject(c.objs,type,name);
+        X509Object tmp = objects.retrieveBySubject(type,name);
         if(tmp == null) {
+            if(c.certificateMethods.isEmpty() || c.isKnownMiss(type,name)) {
+                return 0;
+            }
             for(int i=currentMethod; i<c.certificateMethods.size(); i++) {
                 Lookup lu = c.certificateMethods.get(i);
-                X509Object[] stmp = new X509Object[1];
+                X509Object[] stmp = lookupOut;
+                stmp[0] = null;
                 int j = lu.bySubject(type,name,stmp);
                 if(j<0) {
                     currentMethod = i;
                     return j;
                 } else if(j>0) {
                     tmp = stmp[0];
+                    // the lookup may have loaded new objects into the store
+                    objects = snapshotObjects(c);
                     break;
                 }
             }
             currentMethod = 0;
             if(tmp == null) {
+                c.addMiss(type,name,missGeneration);
                 return 0;
             }
         }
@@ -647,18 +762,45 @@ public class StoreContext {
      * c: X509_verify_cert
      */
     public int verifyCertificate() throws Exception {
+        VerifyStats stats = this.stats;
+        if(stats == null) {
+            return buildAndVerifyChain();
+        }
+        long start = System.nanoTime();
+        try {
+            return buildAndVerifyChain();
+        } finally {
+            stats.record(VerifyStats.PHASE_TOTAL, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the time since start against phase when statistics are
+     * being collected, and returns the start of the next phase.
+     */
+    private long mark(int phase, long start) {
+        if(stats == null) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        stats.record(phase, now - start);
+        return now;
+    }
+
+    private int buildAndVerifyChain() throws Exception {
         X509AuxCertificate x,xtmp=null,chain_ss = null;
         //X509_NAME xn;
         int bad_chain = 0;
         int depth,i,ok=0;
         int num;
-        Store.VerifyCallbackFunction cb;
+        Store.VerifyCallback cb;
         List<X509AuxCertificate> sktmp = null;
         if(certificate == null) {
             X509Error.addError(X509Utils.X509_R_NO_CERT_SET_FOR_US_TO_VERIFY);
             return -1;
         }
         cb=verifyCallback;
+        long t = stats != null ? System.nanoTime() : 0L;
 
         if(null == chain) {
             chain = new ArrayList<X509AuxCertificate>();
@@ -677,7 +819,7 @@ public class StoreContext {
                 break;
             }
 
-            if(checkIssued.call(this,x,x) != 0) {
+            if(checkIssued.check(this,x,x) != 0) {
                 break;
             }
 
@@ -698,17 +840,17 @@ public class StoreContext {
         i = chain.size();
         x = chain.get(i-1);
 
-        if(checkIssued.call(this,x,x) != 0) {
+        if(checkIssued.check(this,x,x) != 0) {
             if(chain.size() == 1) {
-                X509AuxCertificate[] p_xtmp = new X509AuxCertificate[]{xtmp};
-                ok = getIssuer.call(p_xtmp,this,x);
-                xtmp = p_xtmp[0];
+                issuerOut[0] = xtmp;
+                ok = getIssuer.find(issuerOut,this,x);
+                xtmp = issuerOut[0];
                 if(ok <= 0 || !x.equals(xtmp)) {
                     error = X509Utils.V_ERR_DEPTH_ZERO_SELF_SIGNED_CERT;
                     currentCertificate = x;
                     errorDepth = i-1;
                     bad_chain = 1;
-                    ok = cb.call(new Integer(0),this);
+                    ok = cb.verify(0,this);
                     if(ok == 0) {
                         return ok;
                     }
@@ -729,12 +871,12 @@ public class StoreContext {
                 break;
             }
             //xn = new X509_NAME(x.getIssuerX500Principal());
-            if(checkIssued.call(this,x,x) != 0) {
+            if(checkIssued.check(this,x,x) != 0) {
                 break;
             }
-            X509AuxCertificate[] p_xtmp = new X509AuxCertificate[]{xtmp};
-            ok = getIssuer.call(p_xtmp,this,x);
-            xtmp = p_xtmp[0];
+            issuerOut[0] = xtmp;
+            ok = getIssuer.find(issuerOut,this,x);
+            xtmp = issuerOut[0];
             if(ok < 0) {
                 return ok;
             }
@@ -747,8 +889,8 @@ public class StoreContext {
         }
 
         //xn = new X509_NAME(x.getIssuerX500Principal());
-        if(checkIssued.call(this,x,x) == 0) {
-            if(chain_ss == null || checkIssued.call(this,x,chain_ss) == 0) {
+        if(checkIssued.check(this,x,x) == 0) {
+            if(chain_ss == null || checkIssued.check(this,x,chain_ss) == 0) {
                 if(lastUntrusted >= num) {
                     error = X509Utils.V_ERR_UNABLE_TO_GET_ISSUER_CERT_LOCALLY;
                 } else {
@@ -765,25 +907,30 @@ public class StoreContext {
             }
             errorDepth = num-1;
             bad_chain = 1;
-            ok = cb.call(new Integer(0),this);
+            ok = cb.verify(0,this);
             if(ok == 0) {
                 return ok;
             }
         }
 
+        t = mark(VerifyStats.PHASE_CHAIN, t);
+
         ok = checkChainExtensions();
+        t = mark(VerifyStats.PHASE_EXTENSIONS, t);
         if(ok == 0) {
             return ok;
         }
 
         if(param.trust > 0) {
             ok = checkTrust();
+            t = mark(VerifyStats.PHASE_TRUST, t);
         }
         if(ok == 0) {
             return ok;
         }
 
         ok = checkRevocation.call(this);
+        t = mark(VerifyStats.PHASE_REVOCATION, t);
         if(ok == 0) {
             return ok;
         }
@@ -793,12 +940,14 @@ public class StoreContext {
         } else {
             ok = internalVerify.call(this);
         }
+        t = mark(VerifyStats.PHASE_SIGNATURE, t);
         if(ok == 0) {
             return ok;
         }
 
         if(bad_chain == 0 && (param.flags & X509Utils.V_FLAG_POLICY_CHECK) != 0) {
             ok = checkPolicy.call(this);
+            mark(VerifyStats.PHASE_POLICY, t);
         }
         return ok;
     }
@@ -836,7 +985,7 @@ public class StoreContext {
     public int checkChainExtensions() throws Exception {
         int ok=0, must_be_ca;
         X509AuxCertificate x;
-        Store.VerifyCallbackFunction cb;
+        Store.VerifyCallback cb;
         int proxy_path_length = 0;
         int allow_proxy_certs = (param.flags & X509Utils.V_FLAG_ALLOW_PROXY_CERTS) != 0 ? 1 : 0;
         cb = verifyCallback;
@@ -857,16 +1006,25 @@ public class StoreContext {
                 error = X509Utils.V_ERR_UNHANDLED_CRITICAL_EXTENSION;
                 errorDepth = i;
                 currentCertificate = x;
-                ok = cb.call(new Integer(0),this);
+                ok = cb.verify(0,this);
                 if(ok == 0) {
                     return ok;
                 }
             }
-            if(allow_proxy_certs == 0 && x.getExtensionValue("1.3.6.1.5.5.7.1.14") != null) {
+            if((x.getExFlags() & X509Utils.EXFLAG_INVALID) != 0) {
+                error = X509Utils.V_ERR_INVALID_EXTENSION;
+                errorDepth = i;
+                currentCertificate = x;
+                ok = cb.verify(0,this);
+                if(ok == 0) {
+                    return ok;
+                }
+            }
+            if(allow_proxy_certs == 0 && (x.getExFlags() & X509Utils.EXFLAG_PROXY) != 0) {
                 error = X509Utils.V_ERR_PROXY_CERTIFICATES_NOT_ALLOWED;
                 errorDepth = i;
                 currentCertificate = x;
-                ok = cb.call(new Integer(0),this);
+                ok = cb.verify(0,this);
                 if(ok == 0) {
                     return ok;
                 }
@@ -902,7 +1060,7 @@ public class StoreContext {
             if(ret == 0) {
                 errorDepth = i;
                 currentCertificate = x;
-                ok = cb.call(new Integer(0),this);
+                ok = cb.verify(0,this);
                 if(ok == 0) {
                     return ok;
                 }
@@ -913,24 +1071,24 @@ public class StoreContext {
                     error = X509Utils.V_ERR_INVALID_PURPOSE;
                     errorDepth = i;
                     currentCertificate = x;
-                    ok = cb.call(new Integer(0),this);
+                    ok = cb.verify(0,this);
                     if(ok == 0) {
                         return ok;
                     }
                 }
             }
 
-            if(i > 1 && x.getBasicConstraints() != -1 && x.getBasicConstraints() != Integer.MAX_VALUE && (i > (x.getBasicConstraints() + proxy_path_length + 1))) {
+            if(i > 1 && x.getPathLength() != -1 && (i > (x.getPathLength() + proxy_path_length + 1))) {
                 error = X509Utils.V_ERR_PATH_LENGTH_EXCEEDED;
                 errorDepth = i;
                 currentCertificate = x;
-                ok = cb.call(new Integer(0),this);
+                ok = cb.verify(0,this);
                 if(ok == 0) {
                     return ok;
                 }
             }
 
-            if(x.getExtensionValue("1.3.6.1.5.5.7.1.14") != null) {
+            if((x.getExFlags() & X509Utils.EXFLAG_PROXY) != 0) {
                 DERSequence pci = (DERSequence)new ASN1InputStream(x.getExtensionValue("1.3.6.1.5.5.7.1.14")).readObject();
                 if(pci.size() > 0 && pci.getObjectAt(0) instanceof DERInteger) {
                     int pcpathlen = ((DERInteger)pci.getObjectAt(0)).getValue().intValue();
@@ -938,7 +1096,7 @@ public class StoreContext {
                         error = X509Utils.V_ERR_PROXY_PATH_LENGTH_EXCEEDED;
                         errorDepth = i;
                         currentCertificate = x;
-                        ok = cb.call(new Integer(0),this);
+                        ok = cb.verify(0,this);
                         if(ok == 0) {
                             return ok;
                         }
@@ -959,7 +1117,7 @@ public class StoreContext {
     public int checkTrust() throws Exception {
         int i,ok;
         X509AuxCertificate x;
-        Store.VerifyCallbackFunction cb;
+        Store.VerifyCallback cb;
         cb = verifyCallback;
         i = chain.size()-1;
         x = chain.get(i);
@@ -974,7 +1132,7 @@ public class StoreContext {
         } else {
             error = X509Utils.V_ERR_CERT_UNTRUSTED;
         }
-        return cb.call(new Integer(0),this);
+        return cb.verify(0,this);
     }
 
     /**
@@ -991,14 +1149,14 @@ public class StoreContext {
         if(!x.getNotBefore().before(ptime)) {
             error = X509Utils.V_ERR_CERT_NOT_YET_VALID;
             currentCertificate = x;
-            if(verifyCallback.call(new Integer(0),this) == 0) {
+            if(verifyCallback.verify(0,this) == 0) {
                 return 0;
             }
         }
         if(!x.getNotAfter().after(ptime)) {
             error = X509Utils.V_ERR_CERT_HAS_EXPIRED;
             currentCertificate = x;
-            if(verifyCallback.call(new Integer(0),this) == 0) {
+            if(verifyCallback.verify(0,this) == 0) {
                 return 0;
             }
         }
@@ -1009,26 +1167,31 @@ public class StoreContext {
      * c: check_cert
      */
     public int checkCertificate() throws Exception {
-        X509CRL[] crl = new X509CRL[1];
+        X509CRL crl;
         X509AuxCertificate x;
         int ok,cnum;
         cnum = errorDepth;
         x = chain.get(cnum);
         currentCertificate = x;
-        ok = getCRL.call(this,crl,x);
+        crlOut[0] = null;
+        long t = stats != null ? System.nanoTime() : 0L;
+        ok = getCRL.find(this,crlOut,x);
+        mark(VerifyStats.PHASE_CRL_LOOKUP, t);
+        crl = crlOut[0];
+        crlOut[0] = null;
         if(ok == 0) {
             error = X509Utils.V_ERR_UNABLE_TO_GET_CRL;
-            ok = verifyCallback.call(new Integer(0), this);
+            ok = verifyCallback.verify(0,this);
             currentCRL = null;
             return ok;
         }
-        currentCRL = crl[0];
-        ok = checkCRL.call(this, crl[0]);
+        currentCRL = crl;
+        ok = checkCRL.check(this, crl);
         if(ok == 0) {
             currentCRL = null;
             return ok;
         }
-        ok = certificateCRL.call(this,crl[0],x);
+        ok = certificateCRL.check(this,crl,x);
         currentCRL = null;
         return ok;
     }
@@ -1048,13 +1211,13 @@ public class StoreContext {
         
         if(!crl.getThisUpdate().before(ptime)) {
             error=X509Utils.V_ERR_CRL_NOT_YET_VALID;
-            if(notify == 0 || verifyCallback.call(new Integer(0),this) == 0) {
+            if(notify == 0 || verifyCallback.verify(0,this) == 0) {
                 return 0;
             }
         }
         if(crl.getNextUpdate() != null && !crl.getNextUpdate().after(ptime)) {
             error=X509Utils.V_ERR_CRL_HAS_EXPIRED;
-            if(notify == 0 || verifyCallback.call(new Integer(0),this) == 0) {
+            if(notify == 0 || verifyCallback.verify(0,this) == 0) {
                 return 0;
             }
         }
@@ -1069,8 +1232,9 @@ public class StoreContext {
     public int getCRLStack(X509CRL[] pcrl, Name nm, List<X509CRL> crls) throws Exception { 
         X509CRL best_crl = null;
         if(null != crls) {
-            for(X509CRL crl : crls) {
-                if(!nm.isEqual(crl.getIssuerX500Principal())) {
+            boolean indexed = crls == this.crls;
+            for(X509CRL crl : indexed ? crlsIssuedBy(nm) : crls) {
+                if(!indexed && !nm.isEqual(crl.getIssuerX500Principal())) {
                     continue;
                 }
                 if(checkCRLTime(crl,0) != 0) {
@@ -1089,11 +1253,8 @@ public class StoreContext {
     /**
      * c: get_issuer_sk
      */
-    public final static Store.GetIssuerFunction getIssuerStack = new Store.GetIssuerFunction() { 
-            public int call(Object a1, Object a2, Object a3) throws Exception {
-                X509AuxCertificate[] issuer = (X509AuxCertificate[])a1;
-                StoreContext ctx = (StoreContext)a2;
-                X509AuxCertificate x = (X509AuxCertificate)a3;
+    public final static Store.GetIssuer getIssuerStack = new Store.GetIssuer() { 
+            public int find(X509AuxCertificate[] issuer, StoreContext ctx, X509AuxCertificate x) throws Exception {
                 issuer[0] = ctx.findIssuer(ctx.otherContext,x);
                 if(issuer[0] != null) {
                     return 1;
@@ -1103,14 +1264,20 @@ public class StoreContext {
             }
         };
 
+    /**
+     * c: X509_STORE_CTX_get1_issuer
+     */
+    public final static Store.GetIssuer defaultGetIssuer = new Store.GetIssuer() { 
+            public int find(X509AuxCertificate[] issuer, StoreContext ctx, X509AuxCertificate x) throws Exception {
+                return ctx.getFirstIssuer(issuer,x);
+            }
+        };
+
     /**
      * c: check_issued
      */
-    public final static Store.CheckIssuedFunction defaultCheckIssued = new Store.CheckIssuedFunction() { 
-            public int call(Object a1, Object a2, Object a3) throws Exception {
-                StoreContext ctx = (StoreContext)a1;
-                X509AuxCertificate x = (X509AuxCertificate)a2;
-                X509AuxCertificate issuer = (X509AuxCertificate)a3;
+    public final static Store.CheckIssued defaultCheckIssued = new Store.CheckIssued() { 
+            public int check(StoreContext ctx, X509AuxCertificate x, X509AuxCertificate issuer) throws Exception {
                 int ret = X509Utils.checkIfIssuedBy(issuer,x);
                 if(ret == X509Utils.V_OK) {
                     return 1;
@@ -1121,16 +1288,16 @@ public class StoreContext {
                 ctx.error = ret;
                 ctx.currentCertificate = x;
                 ctx.currentIssuer = issuer;
-                return ctx.verifyCallback.call(new Integer(0),ctx);
+                return ctx.verifyCallback.verify(0,ctx);
             }
         };
 
     /**
      * c: null_callback
      */
-    public final static Store.VerifyCallbackFunction NullCallback = new Store.VerifyCallbackFunction() { 
-            public int call(Object a1, Object a2) {
-                return ((Integer)a1).intValue();
+    public final static Store.VerifyCallback NullCallback = new Store.VerifyCallback() { 
+            public int verify(int ok, StoreContext ctx) {
+                return ok;
             }
         };
 
@@ -1140,20 +1307,20 @@ public class StoreContext {
     public final static Store.VerifyFunction internalVerify = new Store.VerifyFunction() { 
             public int call(Object a1) throws Exception {
                 StoreContext ctx = (StoreContext)a1;
-                Store.VerifyCallbackFunction cb = ctx.verifyCallback;
+                Store.VerifyCallback cb = ctx.verifyCallback;
                 int n = ctx.chain.size();
                 ctx.errorDepth = n-1;
                 n--;
                 X509AuxCertificate xi = ctx.chain.get(n);
                 X509AuxCertificate xs = null;
                 int ok = 0;
-                if(ctx.checkIssued.call(ctx,xi,xi) != 0) {
+                if(ctx.checkIssued.check(ctx,xi,xi) != 0) {
                     xs = xi;
                 } else {
                     if(n<=0) {
                         ctx.error = X509Utils.V_ERR_UNABLE_TO_VERIFY_LEAF_SIGNATURE;
                         ctx.currentCertificate = xi;
-                        ok = cb.call(new Integer(0),ctx);
+                        ok = cb.verify(0,ctx);
                         return ok;
                     } else {
                         n--;
@@ -1165,7 +1332,7 @@ public class StoreContext {
                     ctx.errorDepth = n;
                     if(!xs.isValid()) {
                         try {
-                            xs.verify(xi.getPublicKey());
+                            SignatureCache.verify(xs, xi.getPublicKey());
                         } catch(Exception e) {
                             /*
                             System.err.println("n: " + n);
@@ -1176,7 +1343,7 @@ public class StoreContext {
                             */
                             ctx.error = X509Utils.V_ERR_CERT_SIGNATURE_FAILURE;
                             ctx.currentCertificate = xs;
-                            ok = cb.call(new Integer(0),ctx);
+                            ok = cb.verify(0,ctx);
                             if(ok == 0) {
                                 return ok;
                             }
@@ -1189,7 +1356,7 @@ public class StoreContext {
                     }
                     ctx.currentIssuer = xi;
                     ctx.currentCertificate = xs;
-                    ok = cb.call(new Integer(1),ctx);
+                    ok = cb.verify(1,ctx);
                     if(ok == 0) {
                         return ok;
                     }
@@ -1233,19 +1400,17 @@ public class StoreContext {
     /**
      * c: get_crl
      */
-    public final static Store.GetCRLFunction defaultGetCRL = new Store.GetCRLFunction() { 
-            public int call(Object a1, Object a2, Object a3) throws Exception {
-                StoreContext ctx = (StoreContext)a1;
-                X509CRL[] pcrl = (X509CRL[])a2;
-                X509AuxCertificate x = (X509AuxCertificate)a3;
-                Name nm = new Name(x.getIssuerX500Principal());
+    public final static Store.GetCRL defaultGetCRL = new Store.GetCRL() { 
+            public int find(StoreContext ctx, X509CRL[] pcrl, X509AuxCertificate x) throws Exception {
+                Name nm = Name.of(x.getIssuerX500Principal());
                 X509CRL[] crl = new X509CRL[1];
                 int ok = ctx.getCRLStack(crl,nm,ctx.crls);
                 if(ok != 0) {
                     pcrl[0] = crl[0];
                     return 1;
                 }
-                X509Object[] xobj = new X509Object[1];
+                X509Object[] xobj = ctx.subjectOut;
+                xobj[0] = null;
                 ok = ctx.getBySubject(X509Utils.X509_LU_CRL,nm,xobj);
                 if(ok == 0) {
                     if(crl[0] != null) {
@@ -1254,7 +1419,11 @@ public class StoreContext {
                     }
                     return 0;
                 }
-                pcrl[0] = (X509CRL)(((CRL)xobj[0]).crl);
+                CRL obj = (CRL)xobj[0];
+                pcrl[0] = (X509CRL)obj.crl;
+                if(obj.index != null) {
+                    ctx.revocationIndexes.put(pcrl[0], obj.index);
+                }
                 return 1;
             }
         };
@@ -1262,10 +1431,8 @@ public class StoreContext {
     /**
      * c: check_crl
      */
-    public final static Store.CheckCRLFunction defaultCheckCRL = new Store.CheckCRLFunction() { 
-            public int call(Object a1, Object a2) throws Exception {
-                StoreContext ctx = (StoreContext)a1;
-                final X509CRL crl = (X509CRL)a2;
+    public final static Store.CheckCRL defaultCheckCRL = new Store.CheckCRL() { 
+            public int check(StoreContext ctx, final X509CRL crl) throws Exception {
                 X509AuxCertificate issuer = null;
                 int ok = 0,chnum,cnum;
                 cnum = ctx.errorDepth;
@@ -1274,9 +1441,9 @@ public class StoreContext {
                     issuer = ctx.chain.get(cnum+1);
                 } else {
                     issuer = ctx.chain.get(chnum);
-                    if(ctx.checkIssued.call(ctx,issuer,issuer) == 0) {
+                    if(ctx.checkIssued.check(ctx,issuer,issuer) == 0) {
                         ctx.error = X509Utils.V_ERR_UNABLE_TO_GET_CRL_ISSUER;
-                        ok = ctx.verifyCallback.call(new Integer(0),ctx);
+                        ok = ctx.verifyCallback.verify(0,ctx);
                         if(ok == 0) {
                             return ok;
                         }
@@ -1284,9 +1451,9 @@ public class StoreContext {
                 }
 
                 if (issuer != null) {
-                    if (issuer.getKeyUsage() != null && !issuer.getKeyUsage()[6]) {
+                    if (issuer.keyUsageRejects(X509Utils.KU_CRL_SIGN)) {
                         ctx.error = X509Utils.V_ERR_KEYUSAGE_NO_CRL_SIGN;
-                        ok = ctx.verifyCallback.call(new Integer(0), ctx);
+                        ok = ctx.verifyCallback.verify(0,ctx);
                         if (ok == 0) {
                             return ok;
                         }
@@ -1294,16 +1461,16 @@ public class StoreContext {
                     final PublicKey ikey = issuer.getPublicKey();
                     if (ikey == null) {
                         ctx.error = X509Utils.V_ERR_UNABLE_TO_DECODE_ISSUER_PUBLIC_KEY;
-                        ok = ctx.verifyCallback.call(new Integer(0), ctx);
+                        ok = ctx.verifyCallback.verify(0,ctx);
                         if (ok == 0) {
                             return ok;
                         }
                     } else {
                         try {
-                            crl.verify(ikey);
+                            SignatureCache.verify(crl, ikey);
                         } catch (Exception ignored) {
                             ctx.error = X509Utils.V_ERR_CRL_SIGNATURE_FAILURE;
-                            ok = ctx.verifyCallback.call(new Integer(0), ctx);
+                            ok = ctx.verifyCallback.verify(0,ctx);
                             if (ok == 0) {
                                 return ok;
                             }
@@ -1322,15 +1489,13 @@ public class StoreContext {
     /**
      * c: cert_crl
      */
-    public final static Store.CertificateCRLFunction defaultCertificateCRL = new Store.CertificateCRLFunction() { 
-            public int call(Object a1, Object a2, Object a3) throws Exception {
-                StoreContext ctx = (StoreContext)a1;
-                X509CRL crl = (X509CRL)a2;
-                X509AuxCertificate x = (X509AuxCertificate)a3;
+    public final static Store.CertificateCRL defaultCertificateCRL = new Store.CertificateCRL() { 
+            public int check(StoreContext ctx, X509CRL crl, X509AuxCertificate x) throws Exception {
                 int ok;
-                if(crl.getRevokedCertificate(x.getSerialNumber()) != null) {
+                RevocationIndex index = ctx.getRevocationIndex(crl);
+                if((index != null ? index.getRevokedCertificate(x.getSerialNumber()) : crl.getRevokedCertificate(x.getSerialNumber())) != null) {
                     ctx.error = X509Utils.V_ERR_CERT_REVOKED;
-                    ok = ctx.verifyCallback.call(new Integer(0), ctx);
+                    ok = ctx.verifyCallback.verify(0,ctx);
                     if(ok == 0) {
                         return 0;
                     }
@@ -1341,7 +1506,7 @@ public class StoreContext {
 
                 if(crl.getCriticalExtensionOIDs() != null && crl.getCriticalExtensionOIDs().size()>0) {
                     ctx.error = X509Utils.V_ERR_UNHANDLED_CRITICAL_CRL_EXTENSION;
-                    ok = ctx.verifyCallback.call(new Integer(0), ctx);
+                    ok = ctx.verifyCallback.verify(0,ctx);
                     if(ok == 0) {
                         return 0;
                     }
@@ -0,0 +1,901 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * An X509CRL read in a single pass over its DER encoding, held in a
+ * buffer that nothing else writes to. Only the issuer, dates, extensions and
+ * signature are decoded up front; revoked entries go straight into a
+ * RevocationIndex that remembers where each entry is, and are decoded
+ * again only when asked for. No ASN.1 object tree is built.
+ *
+ * c: X509_CRL
+ */
+public class StreamingCRL extends X509CRL {
+    private static final int BOOLEAN = 0x01;
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int OCTET_STRING = 0x04;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int UTC_TIME = 0x17;
+    private static final int GENERALIZED_TIME = 0x18;
+    private static final int SEQUENCE = 0x30;
+    private static final int EXTENSIONS_TAG = 0xa0;
+
+    private static final String PEM_BEGIN = "-----BEGIN X509 CRL-----";
+    private static final String PEM_END = "-----END X509 CRL-----";
+
+    private final ByteBuffer der;
+    private final int tbsStart, tbsEnd;
+    private final int revokedStart, revokedEnd;
+    private final int version;
+    private final X500Principal issuer;
+    private final Date thisUpdate, nextUpdate;
+    private final String sigAlgOID;
+    private final byte[] sigAlgParams;
+    private final byte[] signature;
+    private final Map<String, Extension> extensions;
+    private final RevocationIndex index;
+    private volatile byte[] digest;
+
+    private StreamingCRL(ByteBuffer buf) throws CRLException {
+        Cursor c = new Cursor(buf);
+        c.at(0, buf.limit()).expect(SEQUENCE);
+        int end = c.end;
+        this.der = slice(buf, 0, end);
+        c = new Cursor(der);
+        c.at(0, end).expect(SEQUENCE);
+
+        c.at(c.contents, end).expect(SEQUENCE);
+        tbsStart = c.start;
+        tbsEnd = c.end;
+        int p = c.contents;
+
+        c.at(p, tbsEnd);
+        if(c.tag == INTEGER) {
+            version = c.integer().intValue() + 1;
+            c.at(c.end, tbsEnd);
+        } else {
+            version = 1;
+        }
+        c.expect(SEQUENCE); // signature, repeated below
+
+        c.at(c.end, tbsEnd).expect(SEQUENCE);
+        issuer = new X500Principal(c.encoded());
+
+        c.at(c.end, tbsEnd);
+        thisUpdate = c.time();
+        p = c.end;
+
+        Date next = null;
+        if(p < tbsEnd && c.at(p, tbsEnd).isTime()) {
+            next = c.time();
+            p = c.end;
+        }
+        nextUpdate = next;
+
+        RevocationIndex.Builder revoked = new RevocationIndex.Builder();
+        int rs = -1, re = -1;
+        if(p < tbsEnd && c.at(p, tbsEnd).tag == SEQUENCE) {
+            rs = c.contents;
+            re = c.end;
+            Cursor e = new Cursor(der);
+            Cursor s = new Cursor(der);
+            for(int rp = rs; rp < re; rp = e.end) {
+                e.at(rp, re).expect(SEQUENCE);
+                s.at(e.contents, e.end).expect(INTEGER);
+                revoked.add(der, s.contents, s.end - s.contents, e.start);
+            }
+            p = c.end;
+        }
+        revokedStart = rs;
+        revokedEnd = re;
+
+        Map<String, Extension> exts = Collections.emptyMap();
+        if(p < tbsEnd) {
+            c.at(p, tbsEnd).expect(EXTENSIONS_TAG);
+            p = c.end;
+            c.at(c.contents, c.end).expect(SEQUENCE);
+            exts = parseExtensions(der, c.contents, c.end);
+        }
+        extensions = exts;
+        if(p != tbsEnd) {
+            throw new CRLException("trailing data in TBSCertList");
+        }
+
+        c.at(tbsEnd, end).expect(SEQUENCE);
+        int algEnd = c.end;
+        Cursor o = new Cursor(der).at(c.contents, algEnd).expect(OBJECT_IDENTIFIER);
+        sigAlgOID = o.oid();
+        sigAlgParams = o.end < algEnd ? copy(der, o.end, algEnd) : null;
+
+        c.at(algEnd, end).expect(BIT_STRING);
+        if(c.end - c.contents < 1) {
+            throw new CRLException("empty CRL signature");
+        }
+        signature = copy(der, c.contents + 1, c.end);
+
+        index = revoked.build(this);
+    }
+
+    /**
+     * Reads one DER encoded CRL from the start of der.
+     */
+    public static StreamingCRL parse(ByteBuffer der) throws CRLException {
+        return new StreamingCRL(der);
+    }
+
+    /**
+     * Reads the CRL in data, which may be either DER or PEM. For PEM,
+     * only the first X509 CRL block is used.
+     */
+    public static StreamingCRL load(ByteBuffer data) throws CRLException {
+        List<StreamingCRL> all = loadAll(data, null);
+        if(all.isEmpty()) {
+            throw new CRLException("no CRL found");
+        }
+        return all.get(0);
+    }
+
+    /**
+     * Reads every CRL in data. DER input holds exactly one CRL; for PEM
+     * input each X509 CRL block is decoded, and all other lines are
+     * appended to others (if not null) so that the caller can hand them
+     * to a PEM reader.
+     */
+    public static List<StreamingCRL> loadAll(ByteBuffer data, StringBuilder others) throws CRLException {
+        List<StreamingCRL> result = new ArrayList<StreamingCRL>();
+        int p = data.position();
+        while(p < data.limit() && isSpace(data.get(p))) {
+            p++;
+        }
+        if(p < data.limit() && data.get(p) == SEQUENCE) {
+            result.add(parse(slice(data, p, data.limit())));
+            return result;
+        }
+
+        Base64Decoder block = null;
+        StringBuilder line = new StringBuilder();
+        for(int i = p; i <= data.limit(); i++) {
+            if(i == data.limit() && line.length() == 0) {
+                break;
+            }
+            int b = i < data.limit() ? data.get(i) & 0xff : '\n';
+            if(b != '\n') {
+                if(b != '\r') {
+                    line.append((char)b);
+                }
+                continue;
+            }
+            String l = line.toString();
+            line.setLength(0);
+            if(block == null) {
+                if(l.startsWith(PEM_BEGIN)) {
+                    block = new Base64Decoder();
+                } else if(others != null) {
+                    others.append(l).append('\n');
+                }
+            } else if(l.startsWith(PEM_END)) {
+                result.add(parse(block.finish()));
+                block = null;
+            } else if(l.indexOf(':') < 0) {
+                block.decode(l);
+            }
+        }
+        if(block != null) {
+            throw new CRLException("unterminated PEM CRL block");
+        }
+        return result;
+    }
+
+    /**
+     * Reads all of in into a heap buffer. A StreamingCRL keeps decoding
+     * its entries from the buffer it was parsed from, so that buffer must
+     * be a private copy: a mapping of the file would change under it, or
+     * fault, when the file is rewritten in place.
+     */
+    public static ByteBuffer read(InputStream in) throws IOException {
+        /* sized from what the stream says is left, so a file stream is
+         * read straight into a buffer of its exact length */
+        byte[] buf = new byte[Math.max(in.available(), 8192)];
+        int len = 0;
+        for(;;) {
+            int n = in.read(buf, len, buf.length - len);
+            if(n == -1) {
+                break;
+            }
+            len += n;
+            if(len == buf.length) {
+                int b = in.read();
+                if(b == -1) {
+                    break;
+                }
+                byte[] grown = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, grown, 0, len);
+                buf = grown;
+                buf[len++] = (byte)b;
+            }
+        }
+        return ByteBuffer.wrap(buf, 0, len).slice();
+    }
+
+    public static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException("CRL file too large: " + file);
+            }
+            ByteBuffer data = ByteBuffer.allocate((int)size);
+            while(data.hasRemaining()) {
+                if(ch.read(data) == -1) {
+                    throw new EOFException("CRL file truncated while reading: " + file);
+                }
+            }
+            data.flip();
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    RevocationIndex getRevocationIndex() {
+        return index;
+    }
+
+    /**
+     * SHA-256 of the encoded CRL, computed once.
+     */
+    public byte[] getDigest() throws NoSuchAlgorithmException {
+        byte[] d = digest;
+        if(d == null) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(slice(der, 0, der.limit()));
+            digest = d = md.digest();
+        }
+        return d;
+    }
+
+    /**
+     * The OIDs of the CRL extensions, in encoded order.
+     */
+    public List<String> getExtensionOIDs() {
+        return new ArrayList<String>(extensions.keySet());
+    }
+
+    /**
+     * Number of revoked entries.
+     */
+    public int getRevokedCount() {
+        return index.size();
+    }
+
+    public byte[] getEncoded() {
+        return copy(der, 0, der.limit());
+    }
+
+    public void verify(PublicKey key) throws CRLException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+        Signature sig;
+        try {
+            sig = Signature.getInstance(getSigAlgName());
+        } catch(NoSuchAlgorithmException e) {
+            sig = Signature.getInstance(sigAlgOID);
+        }
+        verify(sig, key);
+    }
+
+    public void verify(PublicKey key, String sigProvider) throws CRLException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+        verify(Signature.getInstance(getSigAlgName(), sigProvider), key);
+    }
+
+    private void verify(Signature sig, PublicKey key) throws InvalidKeyException, SignatureException {
+        sig.initVerify(key);
+        sig.update(slice(der, tbsStart, tbsEnd));
+        if(!sig.verify(signature)) {
+            throw new SignatureException("CRL does not verify with supplied public key");
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Principal getIssuerDN() {
+        return issuer;
+    }
+
+    public X500Principal getIssuerX500Principal() {
+        return issuer;
+    }
+
+    public Date getThisUpdate() {
+        return new Date(thisUpdate.getTime());
+    }
+
+    public Date getNextUpdate() {
+        return nextUpdate == null ? null : new Date(nextUpdate.getTime());
+    }
+
+    public X509CRLEntry getRevokedCertificate(BigInteger serialNumber) {
+        int pos = index.positionOf(serialNumber);
+        if(pos < 0) {
+            return null;
+        }
+        try {
+            return new Entry(pos);
+        } catch(CRLException e) {
+            return null;
+        }
+    }
+
+    public Set<? extends X509CRLEntry> getRevokedCertificates() {
+        if(revokedStart < 0 || revokedStart == revokedEnd) {
+            return null;
+        }
+        Set<X509CRLEntry> entries = new LinkedHashSet<X509CRLEntry>();
+        for(Iterator<X509CRLEntry> iter = revokedIterator(); iter.hasNext();) {
+            entries.add(iter.next());
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * Decodes the revoked entries one at a time, in CRL order.
+     */
+    public Iterator<X509CRLEntry> revokedIterator() {
+        return new Iterator<X509CRLEntry>() {
+            private int pos = revokedStart < 0 ? revokedEnd : revokedStart;
+
+            public boolean hasNext() {
+                return pos < revokedEnd;
+            }
+
+            public X509CRLEntry next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    Entry e = new Entry(pos);
+                    pos = e.end;
+                    return e;
+                } catch(CRLException ce) {
+                    throw new IllegalStateException(ce.getMessage());
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public byte[] getTBSCertList() {
+        return copy(der, tbsStart, tbsEnd);
+    }
+
+    public byte[] getSignature() {
+        return signature.clone();
+    }
+
+    public String getSigAlgName() {
+        return signatureAlgorithmName(sigAlgOID);
+    }
+
+    /**
+     * The JCA name of the signature algorithm oid, or oid itself if
+     * it is not known.
+     */
+    static String signatureAlgorithmName(String oid) {
+        String name = SIGNATURE_ALGORITHMS.get(oid);
+        return name == null ? oid : name;
+    }
+
+    public String getSigAlgOID() {
+        return sigAlgOID;
+    }
+
+    public byte[] getSigAlgParams() {
+        return sigAlgParams == null ? null : sigAlgParams.clone();
+    }
+
+    public boolean isRevoked(Certificate cert) {
+        if(!(cert instanceof X509Certificate)) {
+            return false;
+        }
+        X509Certificate x = (X509Certificate)cert;
+        return issuer.equals(x.getIssuerX500Principal()) && index.isRevoked(x.getSerialNumber());
+    }
+
+    public String toString() {
+        return "X509 CRL v" + version + " issuer=" + issuer.getName() + " thisUpdate=" + thisUpdate +
+            " nextUpdate=" + nextUpdate + " revoked=" + index.size();
+    }
+
+    public Set<String> getCriticalExtensionOIDs() {
+        return extensionOIDs(extensions, true);
+    }
+
+    public Set<String> getNonCriticalExtensionOIDs() {
+        return extensionOIDs(extensions, false);
+    }
+
+    public byte[] getExtensionValue(String oid) {
+        Extension ext = extensions.get(oid);
+        return ext == null ? null : copy(der, ext.start, ext.end);
+    }
+
+    public boolean hasUnsupportedCriticalExtension() {
+        Set<String> critical = getCriticalExtensionOIDs();
+        return critical != null && !critical.isEmpty();
+    }
+
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(other instanceof StreamingCRL) {
+            StreamingCRL o = (StreamingCRL)other;
+            return Arrays.equals(signature, o.signature) && der.equals(o.der);
+        }
+        return super.equals(other);
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(signature);
+    }
+
+    /**
+     * A revoked entry, decoded from the CRL encoding on demand.
+     */
+    private class Entry extends X509CRLEntry {
+        private final int start, end;
+        private final BigInteger serial;
+        private final Date revocationDate;
+        private final Map<String, Extension> entryExtensions;
+
+        Entry(int pos) throws CRLException {
+            Cursor c = new Cursor(der).at(pos, revokedEnd).expect(SEQUENCE);
+            start = c.start;
+            end = c.end;
+            c.at(c.contents, end).expect(INTEGER);
+            serial = c.integer();
+            c.at(c.end, end);
+            revocationDate = c.time();
+            if(c.end < end) {
+                c.at(c.end, end).expect(SEQUENCE);
+                entryExtensions = parseExtensions(der, c.contents, c.end);
+            } else {
+                entryExtensions = Collections.emptyMap();
+            }
+        }
+
+        public byte[] getEncoded() {
+            return copy(der, start, end);
+        }
+
+        public BigInteger getSerialNumber() {
+            return serial;
+        }
+
+        public Date getRevocationDate() {
+            return new Date(revocationDate.getTime());
+        }
+
+        public boolean hasExtensions() {
+            return !entryExtensions.isEmpty();
+        }
+
+        public String toString() {
+            return "X509 CRL entry serial=" + serial + " revocationDate=" + revocationDate;
+        }
+
+        public Set<String> getCriticalExtensionOIDs() {
+            return extensionOIDs(entryExtensions, true);
+        }
+
+        public Set<String> getNonCriticalExtensionOIDs() {
+            return extensionOIDs(entryExtensions, false);
+        }
+
+        public byte[] getExtensionValue(String oid) {
+            Extension ext = entryExtensions.get(oid);
+            return ext == null ? null : copy(der, ext.start, ext.end);
+        }
+
+        public boolean hasUnsupportedCriticalExtension() {
+            Set<String> critical = getCriticalExtensionOIDs();
+            if(critical == null) {
+                return false;
+            }
+            for(String oid : critical) {
+                if(!ENTRY_EXTENSIONS.contains(oid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean equals(Object other) {
+            if(other instanceof Entry) {
+                Entry o = (Entry)other;
+                return slice(der, start, end).equals(slice(o.outer().der, o.start, o.end));
+            }
+            return super.equals(other);
+        }
+
+        public int hashCode() {
+            return serial.hashCode();
+        }
+
+        private StreamingCRL outer() {
+            return StreamingCRL.this;
+        }
+    }
+
+    /* extnValue OCTET STRING of one extension, as [start, end) of der */
+    private static class Extension {
+        final boolean critical;
+        final int start, end;
+
+        Extension(boolean critical, int start, int end) {
+            this.critical = critical;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static Map<String, Extension> parseExtensions(ByteBuffer der, int from, int to) throws CRLException {
+        Map<String, Extension> result = new LinkedHashMap<String, Extension>();
+        Cursor e = new Cursor(der);
+        Cursor f = new Cursor(der);
+        for(int p = from; p < to; p = e.end) {
+            e.at(p, to).expect(SEQUENCE);
+            f.at(e.contents, e.end).expect(OBJECT_IDENTIFIER);
+            String oid = f.oid();
+            boolean critical = false;
+            f.at(f.end, e.end);
+            if(f.tag == BOOLEAN) {
+                critical = f.end - f.contents == 1 && der.get(f.contents) != 0;
+                f.at(f.end, e.end);
+            }
+            f.expect(OCTET_STRING);
+            result.put(oid, new Extension(critical, f.start, f.end));
+        }
+        return result;
+    }
+
+    /* null when there are no extensions at all, as X509Extension asks */
+    private static Set<String> extensionOIDs(Map<String, Extension> exts, boolean critical) {
+        if(exts.isEmpty()) {
+            return null;
+        }
+        Set<String> result = new LinkedHashSet<String>();
+        for(Map.Entry<String, Extension> e : exts.entrySet()) {
+            if(e.getValue().critical == critical) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+        ByteBuffer b = buf.duplicate();
+        b.limit(to);
+        b.position(from);
+        return b.slice();
+    }
+
+    private static byte[] copy(ByteBuffer buf, int from, int to) {
+        byte[] b = new byte[to - from];
+        ByteBuffer d = buf.duplicate();
+        d.position(from);
+        d.get(b);
+        return b;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Reads DER TLV headers at absolute positions of a buffer.
+     */
+    private static class Cursor {
+        private final ByteBuffer buf;
+        int tag, start, contents, end;
+
+        Cursor(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /* reads the header of the TLV at pos, which must end by limit */
+        Cursor at(int pos, int limit) throws CRLException {
+            if(pos + 2 > limit) {
+                throw new CRLException("truncated CRL encoding");
+            }
+            start = pos;
+            tag = buf.get(pos++) & 0xff;
+            if((tag & 0x1f) == 0x1f) {
+                throw new CRLException("unsupported high tag number in CRL");
+            }
+            int len = buf.get(pos++) & 0xff;
+            if(len == 0x80) {
+                throw new CRLException("indefinite length in CRL encoding");
+            }
+            if(len > 0x7f) {
+                int n = len & 0x7f;
+                if(n > 4 || pos + n > limit) {
+                    throw new CRLException("bad length in CRL encoding");
+                }
+                len = 0;
+                for(int i=0;i<n;i++) {
+                    len = (len << 8) | (buf.get(pos++) & 0xff);
+                }
+                if(len < 0) {
+                    throw new CRLException("bad length in CRL encoding");
+                }
+            }
+            contents = pos;
+            end = pos + len;
+            if(end > limit || end < pos) {
+                throw new CRLException("truncated CRL encoding");
+            }
+            return this;
+        }
+
+        Cursor expect(int t) throws CRLException {
+            if(tag != t) {
+                throw new CRLException("unexpected tag 0x" + Integer.toHexString(tag) + " in CRL at offset " + start);
+            }
+            return this;
+        }
+
+        boolean isTime() {
+            return tag == UTC_TIME || tag == GENERALIZED_TIME;
+        }
+
+        byte[] encoded() {
+            return copy(buf, start, end);
+        }
+
+        BigInteger integer() throws CRLException {
+            if(end == contents) {
+                throw new CRLException("empty INTEGER in CRL");
+            }
+            return new BigInteger(copy(buf, contents, end));
+        }
+
+        String oid() throws CRLException {
+            StringBuilder sb = new StringBuilder();
+            long value = 0;
+            boolean first = true;
+            for(int i = contents; i < end; i++) {
+                int b = buf.get(i) & 0xff;
+                value = (value << 7) | (b & 0x7f);
+                if(value > (Long.MAX_VALUE >> 7)) {
+                    throw new CRLException("OID component too large in CRL");
+                }
+                if((b & 0x80) == 0) {
+                    if(first) {
+                        int top = value < 80 ? (int)(value / 40) : 2;
+                        sb.append(top).append('.').append(value - top * 40);
+                        first = false;
+                    } else {
+                        sb.append('.').append(value);
+                    }
+                    value = 0;
+                }
+            }
+            if(first) {
+                throw new CRLException("empty OID in CRL");
+            }
+            return sb.toString();
+        }
+
+        /* c: ASN1_TIME */
+        Date time() throws CRLException {
+            if(!isTime()) {
+                throw new CRLException("expected time in CRL at offset " + start);
+            }
+            int p = contents;
+            int year;
+            if(tag == UTC_TIME) {
+                year = digits(p, 2);
+                year += year < 50 ? 2000 : 1900;
+                p += 2;
+            } else {
+                year = digits(p, 4);
+                p += 4;
+            }
+            int month = digits(p, 2);
+            int day = digits(p + 2, 2);
+            int hour = digits(p + 4, 2);
+            int minute = digits(p + 6, 2);
+            p += 8;
+            int second = 0;
+            if(p + 2 <= end && isDigit(p)) {
+                second = digits(p, 2);
+                p += 2;
+            }
+            int millis = 0;
+            if(p < end && (buf.get(p) == '.' || buf.get(p) == ',')) {
+                p++;
+                int scale = 100;
+                while(p < end && isDigit(p)) {
+                    millis += (buf.get(p++) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            int offset = 0;
+            if(p < end && buf.get(p) == 'Z') {
+                p++;
+            } else if(p + 5 <= end && (buf.get(p) == '+' || buf.get(p) == '-')) {
+                offset = (digits(p + 1, 2) * 60 + digits(p + 3, 2)) * 60000;
+                if(buf.get(p) == '-') {
+                    offset = -offset;
+                }
+                p += 5;
+            }
+            if(p != end) {
+                throw new CRLException("bad time encoding in CRL at offset " + start);
+            }
+            Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            cal.clear();
+            cal.set(year, month - 1, day, hour, minute, second);
+            cal.set(Calendar.MILLISECOND, millis);
+            return new Date(cal.getTimeInMillis() - offset);
+        }
+
+        private boolean isDigit(int p) {
+            byte b = buf.get(p);
+            return b >= '0' && b <= '9';
+        }
+
+        private int digits(int p, int n) throws CRLException {
+            if(p + n > end) {
+                throw new CRLException("bad time encoding in CRL at offset " + start);
+            }
+            int v = 0;
+            for(int i=0;i<n;i++) {
+                if(!isDigit(p + i)) {
+                    throw new CRLException("bad time encoding in CRL at offset " + start);
+                }
+                v = v * 10 + (buf.get(p + i) - '0');
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Decodes base64 text line by line into a growing byte array.
+     */
+    private static class Base64Decoder {
+        private byte[] out = new byte[1024];
+        private int used;
+        private int bits, nbits;
+
+        void decode(String line) throws CRLException {
+            for(int i=0;i<line.length();i++) {
+                char ch = line.charAt(i);
+                int v;
+                if(ch >= 'A' && ch <= 'Z') {
+                    v = ch - 'A';
+                } else if(ch >= 'a' && ch <= 'z') {
+                    v = ch - 'a' + 26;
+                } else if(ch >= '0' && ch <= '9') {
+                    v = ch - '0' + 52;
+                } else if(ch == '+') {
+                    v = 62;
+                } else if(ch == '/') {
+                    v = 63;
+                } else if(ch == '=' || isSpace((byte)ch)) {
+                    continue;
+                } else {
+                    throw new CRLException("bad character in PEM CRL");
+                }
+                bits = (bits << 6) | v;
+                nbits += 6;
+                if(nbits >= 8) {
+                    nbits -= 8;
+                    if(used == out.length) {
+                        byte[] n = new byte[out.length * 2];
+                        System.arraycopy(out, 0, n, 0, used);
+                        out = n;
+                    }
+                    out[used++] = (byte)(bits >> nbits);
+                    bits &= (1 << nbits) - 1;
+                }
+            }
+        }
+
+        ByteBuffer finish() {
+            return ByteBuffer.wrap(out, 0, used);
+        }
+    }
+
+    private static final Set<String> ENTRY_EXTENSIONS = new HashSet<String>(Arrays.asList(new String[] {
+        "2.5.29.21", // CRL reason
+        "2.5.29.24", // invalidity date
+        "2.5.29.29"  // certificate issuer
+    }));
+
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<String, String>();
+    static {
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.2", "MD2withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.4", "MD5withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.14", "SHA224withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10040.4.3", "SHA1withDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.1", "SHA1withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+    }
+}// X509_CRL
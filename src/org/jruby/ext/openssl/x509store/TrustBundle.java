@@ -0,0 +1,422 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * A compiled, read-only set of trusted certificates, meant to be
+ * memory mapped at startup instead of parsing a PEM bundle.
+ *
+ * Layout, all integers big endian:
+ * <pre>
+ *   int magic "JRTB", int version, int count, int keyCount,
+ *   int CRC32 of everything after the header
+ *   count    x { int subject hash, int offset, int length }  by hash
+ *   keyCount x { int key identifier hash, int entry }        by hash
+ *   DER encoded certificates
+ * </pre>
+ * The subject hash is Name.canonicalHash(), the key identifier hash
+ * Arrays.hashCode of the subject key identifier. Certificates are only
+ * parsed when a lookup hits them, and only decoded into provider
+ * certificates when they are used (see Certificate).
+ */
+public class TrustBundle {
+    private static final int MAGIC = 0x4A525442;
+    private static final int VERSION = 1;
+    private static final int HEADER = 20;
+    private static final int SUBJECT_ENTRY = 12;
+    private static final int KEY_ENTRY = 8;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int keyCount;
+    private final int keyTable;
+    private final AtomicReferenceArray<Certificate> entries;
+
+    private TrustBundle(ByteBuffer data) throws IOException {
+        this.data = data;
+        if(data.limit() < HEADER || data.getInt(0) != MAGIC) {
+            throw new IOException("not a trust bundle");
+        }
+        if(data.getInt(4) != VERSION) {
+            throw new IOException("unsupported trust bundle version " + data.getInt(4));
+        }
+        count = data.getInt(8);
+        keyCount = data.getInt(12);
+        keyTable = HEADER + count * SUBJECT_ENTRY;
+        if(count < 0 || keyCount < 0 || keyTable + (long)keyCount * KEY_ENTRY > data.limit()) {
+            throw new IOException("corrupt trust bundle");
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer body = data.duplicate();
+        body.position(HEADER);
+        byte[] buf = new byte[8192];
+        while(body.hasRemaining()) {
+            int n = Math.min(buf.length, body.remaining());
+            body.get(buf, 0, n);
+            crc.update(buf, 0, n);
+        }
+        if((int)crc.getValue() != data.getInt(16)) {
+            throw new IOException("trust bundle checksum mismatch");
+        }
+        entries = new AtomicReferenceArray<Certificate>(count);
+    }
+
+    /**
+     * Maps file read-only, checking its header and checksum. Bundles are
+     * only ever replaced whole (see compile), never rewritten in place,
+     * so the mapping stays valid for as long as it is referenced.
+     */
+    public static TrustBundle open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            return new TrustBundle(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static TrustBundle open(ByteBuffer data) throws IOException {
+        return new TrustBundle(data.slice());
+    }
+
+    /**
+     * Whether file starts like a trust bundle.
+     */
+    public static boolean isBundle(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The i'th certificate, decoded on first use.
+     */
+    public X509AuxCertificate get(int i) throws CertificateException {
+        return entry(i).getX509();
+    }
+
+    /**
+     * The store entry for the i'th certificate, which holds on to the
+     * encoding and only decodes it when asked to.
+     */
+    Certificate entry(int i) throws CertificateException {
+        Certificate c = entries.get(i);
+        if(c == null) {
+            int at = HEADER + i * SUBJECT_ENTRY;
+            ByteBuffer der = data.duplicate();
+            der.position(data.getInt(at + 4));
+            byte[] bytes = new byte[data.getInt(at + 8)];
+            der.get(bytes);
+            try {
+                c = Certificate.fromDER(bytes);
+            } catch(Exception e) {
+                throw new CertificateException("bad certificate in trust bundle: " + e.getMessage());
+            }
+            if(!entries.compareAndSet(i, null, c)) {
+                c = entries.get(i);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * All certificates whose subject is name.
+     */
+    public List<X509AuxCertificate> bySubject(Name name) throws CertificateException {
+        return decode(entriesBySubject(name));
+    }
+
+    /**
+     * All certificates whose subject key identifier is keyId.
+     */
+    public List<X509AuxCertificate> byKeyIdentifier(byte[] keyId) throws CertificateException {
+        return decode(entriesByKeyIdentifier(keyId));
+    }
+
+    /**
+     * The entries for all certificates whose subject key identifier is
+     * keyId, none of them decoded.
+     */
+    List<Certificate> entriesByKeyIdentifier(byte[] keyId) throws CertificateException {
+        int h = Arrays.hashCode(keyId);
+        List<Certificate> result = null;
+        for(int i = lowerBound(keyTable, KEY_ENTRY, keyCount, h); i < keyCount && data.getInt(keyTable + i * KEY_ENTRY) == h; i++) {
+            Certificate c = entry(data.getInt(keyTable + i * KEY_ENTRY + 4));
+            if(Arrays.equals(keyId, c.getKeyIdentifier())) {
+                if(result == null) {
+                    result = new ArrayList<Certificate>(1);
+                }
+                result.add(c);
+            }
+        }
+        return result == null ? Collections.<Certificate>emptyList() : result;
+    }
+
+    /**
+     * The entries for all certificates whose subject is name, none of
+     * them decoded.
+     */
+    List<Certificate> entriesBySubject(Name name) throws CertificateException {
+        int h = (int)name.canonicalHash();
+        List<Certificate> result = null;
+        for(int i = lowerBound(HEADER, SUBJECT_ENTRY, count, h); i < count && data.getInt(HEADER + i * SUBJECT_ENTRY) == h; i++) {
+            Certificate c = entry(i);
+            if(name.equals(c.getSubject())) {
+                if(result == null) {
+                    result = new ArrayList<Certificate>(1);
+                }
+                result.add(c);
+            }
+        }
+        return result == null ? Collections.<Certificate>emptyList() : result;
+    }
+
+    private static List<X509AuxCertificate> decode(List<Certificate> entries) {
+        List<X509AuxCertificate> result = new ArrayList<X509AuxCertificate>(entries.size());
+        for(Certificate c : entries) {
+            result.add(c.getX509());
+        }
+        return result;
+    }
+
+    /* first entry of the table at base whose int key is >= h */
+    private int lowerBound(int base, int width, int n, int h) {
+        int lo = 0, hi = n;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(data.getInt(base + mid * width) < h) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Writes certs as a trust bundle to out. Duplicates are dropped.
+     * Returns the number of certificates written.
+     */
+    public static int write(Collection<? extends X509Certificate> certs, OutputStream out) throws IOException, CertificateException {
+        final List<byte[]> ders = new ArrayList<byte[]>();
+        final List<int[]> subjects = new ArrayList<int[]>();
+        final List<int[]> keys = new ArrayList<int[]>();
+        Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+        for(X509Certificate c : certs) {
+            byte[] der = c.getEncoded();
+            if(!seen.add(ByteBuffer.wrap(der))) {
+                continue;
+            }
+            X509AuxCertificate x = StoreContext.ensureAux(c);
+            int n = ders.size();
+            ders.add(der);
+            subjects.add(new int[]{(int)new Name(x.getSubjectX500Principal()).canonicalHash(), n});
+            byte[] skid = x.getSubjectKeyIdentifier();
+            if(skid != null) {
+                keys.add(new int[]{Arrays.hashCode(skid), n});
+            }
+        }
+        Comparator<int[]> byHash = new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : a[1] - b[1]);
+                }
+            };
+        Collections.sort(subjects, byHash);
+
+        /* certificates are laid out in subject table order, so the key
+         * table refers to them by their position there */
+        int[] position = new int[ders.size()];
+        for(int i=0;i<subjects.size();i++) {
+            position[subjects.get(i)[1]] = i;
+        }
+        for(int[] k : keys) {
+            k[1] = position[k[1]];
+        }
+        Collections.sort(keys, byHash);
+
+        int offset = HEADER + subjects.size() * SUBJECT_ENTRY + keys.size() * KEY_ENTRY;
+        ByteBuffer body = ByteBuffer.allocate(offset - HEADER);
+        for(int[] s : subjects) {
+            byte[] der = ders.get(s[1]);
+            body.putInt(s[0]).putInt(offset).putInt(der.length);
+            offset += der.length;
+        }
+        for(int[] k : keys) {
+            body.putInt(k[0]).putInt(k[1]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        for(int[] s : subjects) {
+            crc.update(ders.get(s[1]));
+        }
+
+        DataOutputStream o = new DataOutputStream(out);
+        o.writeInt(MAGIC);
+        o.writeInt(VERSION);
+        o.writeInt(subjects.size());
+        o.writeInt(keys.size());
+        o.writeInt((int)crc.getValue());
+        o.write(body.array());
+        for(int[] s : subjects) {
+            o.write(ders.get(s[1]));
+        }
+        o.flush();
+        return subjects.size();
+    }
+
+    /**
+     * Compiles the PEM certificates in sources, each a file or a
+     * directory of files, into the trust bundle out. Returns the
+     * number of distinct certificates written.
+     */
+    public static int compile(File out, String... sources) throws IOException, CertificateException {
+        List<X509Certificate> certs = new ArrayList<X509Certificate>();
+        for(String s : sources) {
+            File f = new File(s);
+            if(f.isDirectory()) {
+                File[] files = f.listFiles();
+                if(files != null) {
+                    Arrays.sort(files);
+                    for(File e : files) {
+                        if(e.isFile()) {
+                            readPEM(e, certs);
+                        }
+                    }
+                }
+            } else {
+                readPEM(f, certs);
+            }
+        }
+        File tmp = new File(out.getPath() + ".tmp");
+        OutputStream o = new FileOutputStream(tmp);
+        int n;
+        try {
+            n = write(certs, o);
+        } finally {
+            o.close();
+        }
+        if(!tmp.renameTo(out)) {
+            out.delete();
+            if(!tmp.renameTo(out)) {
+                throw new IOException("could not write " + out);
+            }
+        }
+        return n;
+    }
+
+    private static final String[] PEM_TYPES = { "CERTIFICATE", "X509 CERTIFICATE", "TRUSTED CERTIFICATE" };
+
+    /**
+     * Appends every certificate block in the PEM file f to certs. Text
+     * outside the blocks, and blocks of other types, are skipped.
+     */
+    static void readPEM(File f, List<X509Certificate> certs) throws IOException, CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        try {
+            StringBuilder block = null;
+            String end = null;
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(block == null) {
+                    for(String t : PEM_TYPES) {
+                        if(line.equals("-----BEGIN " + t + "-----")) {
+                            block = new StringBuilder();
+                            end = "-----END " + t + "-----";
+                        }
+                    }
+                } else if(line.equals(end)) {
+                    /* a TRUSTED CERTIFICATE carries its trust settings after the certificate */
+                    byte[] der = new ASN1InputStream(Base64.decode(block.toString())).readObject().getEncoded();
+                    certs.add((X509Certificate)cf.generateCertificate(new ByteArrayInputStream(der)));
+                    block = null;
+                } else if(line.indexOf(':') < 0) {
+                    block.append(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Usage: TrustBundle output ca-file-or-directory...
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("usage: TrustBundle output ca-file-or-directory...");
+            System.exit(1);
+        }
+        String[] sources = new String[args.length - 1];
+        System.arraycopy(args, 1, sources, 0, sources.length);
+        int n = compile(new File(args[0]), sources);
+        System.err.println("wrote " + n + " certificates to " + args[0]);
+    }
+}// TrustBundle
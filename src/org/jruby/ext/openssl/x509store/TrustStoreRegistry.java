@@ -0,0 +1,194 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JVM wide registry of CA files parsed into frozen X509ObjectTables,
+ * so that every Store loading the same file, in any runtime, shares
+ * one parsed and indexed copy.
+ *
+ * Files are keyed by canonical path and parsed again when their
+ * modification time or size changes; stores holding the old copy
+ * keep it. A table is held strongly while stores reference it, and
+ * only softly once the last of them has released it (Store.free) or
+ * been collected, so a context set up again soon after still finds it.
+ */
+public class TrustStoreRegistry {
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private static final Set<Hold> holds = new HashSet<Hold>();
+    private static final ReferenceQueue<Store> collected = new ReferenceQueue<Store>();
+
+    private TrustStoreRegistry() {}
+
+    private static final class Entry {
+        final long mtime;
+        final long size;
+        final SoftReference<X509ObjectTable> soft;
+        X509ObjectTable table;
+        int refs;
+
+        Entry(long mtime, long size, X509ObjectTable table) {
+            this.mtime = mtime;
+            this.size = size;
+            this.soft = new SoftReference<X509ObjectTable>(table);
+        }
+
+        X509ObjectTable get() {
+            return table != null ? table : soft.get();
+        }
+    }
+
+    /* one store's reference to an entry, dropped when the store is
+     * freed or collected */
+    private static final class Hold extends WeakReference<Store> {
+        final Entry entry;
+        final X509ObjectTable table;
+
+        Hold(Store store, Entry entry, X509ObjectTable table) {
+            super(store, collected);
+            this.entry = entry;
+            this.table = table;
+        }
+    }
+
+    /**
+     * The parsed contents of the PEM file on behalf of store, parsing
+     * it only if no current copy is registered. file must be a regular
+     * file, since its path and modification time key the copy. Returns
+     * null if the file holds nothing that could be loaded.
+     */
+    public static X509ObjectTable acquire(Store store, File file) throws Exception {
+        String path = file.getCanonicalPath();
+        long mtime = file.lastModified();
+        long size = file.length();
+        synchronized(entries) {
+            expunge();
+            Entry e = entries.get(path);
+            if(e != null && e.mtime == mtime && e.size == size) {
+                X509ObjectTable t = e.get();
+                if(t != null) {
+                    return hold(store, e, t);
+                }
+            }
+        }
+
+        X509ObjectTable parsed = parse(path);
+        if(parsed == null) {
+            return null;
+        }
+
+        synchronized(entries) {
+            Entry e = entries.get(path);
+            X509ObjectTable t = e == null ? null : e.get();
+            if(t == null || e.mtime != mtime || e.size != size) {
+                /* nobody beat us to it */
+                e = new Entry(mtime, size, parsed);
+                t = parsed;
+                entries.put(path, e);
+            }
+            return hold(store, e, t);
+        }
+    }
+
+    /**
+     * Drops store's reference to table.
+     */
+    public static void release(Store store, X509ObjectTable table) {
+        synchronized(entries) {
+            for(Hold h : new ArrayList<Hold>(holds)) {
+                if(h.table == table && h.get() == store) {
+                    drop(h);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every reference store holds.
+     */
+    public static void releaseAll(Store store) {
+        synchronized(entries) {
+            for(Hold h : new ArrayList<Hold>(holds)) {
+                if(h.get() == store) {
+                    drop(h);
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of stores currently referencing the copy of path that
+     * would be handed out now.
+     */
+    public static int references(String path) throws IOException {
+        synchronized(entries) {
+            expunge();
+            Entry e = entries.get(new File(path).getCanonicalPath());
+            return e == null ? 0 : e.refs;
+        }
+    }
+
+    private static X509ObjectTable hold(Store store, Entry e, X509ObjectTable t) {
+        e.table = t;
+        e.refs++;
+        holds.add(new Hold(store, e, t));
+        return t;
+    }
+
+    private static void drop(Hold h) {
+        if(holds.remove(h) && --h.entry.refs == 0) {
+            h.entry.table = null;
+        }
+    }
+
+    private static void expunge() {
+        Hold h;
+        while((h = (Hold)collected.poll()) != null) {
+            drop(h);
+        }
+    }
+
+    private static X509ObjectTable parse(String path) throws Exception {
+        Store tmp = new Store();
+        Lookup lookup = tmp.addLookup(Lookup.fileLookup());
+        if(lookup == null || lookup.loadFile(new CertificateFile.Path(path, X509Utils.X509_FILETYPE_PEM)) != 1) {
+            return null;
+        }
+        return tmp.getObjects();
+    }
+}// TrustStoreRegistry
@@ -0,0 +1,168 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counts collected by StoreContext.verifyCertificate for
+ * the stores that enable them, see Store.setStatsEnabled. Durations are
+ * kept per phase as a count, a total, a maximum and a histogram with
+ * power-of-two microsecond buckets: bucket 0 holds durations under one
+ * microsecond and bucket i those in [2^(i-1), 2^i) microseconds, the last
+ * bucket taking everything longer. Lookup methods count subject lookups
+ * that found and did not find an object.
+ *
+ * All updates are atomic, so one instance is shared by every context
+ * verifying against the store.
+ */
+public class VerifyStats {
+    /** Building the chain, including issuer lookups */
+    public static final int PHASE_CHAIN = 0;
+    /** check_chain_extensions: CA, purpose and path length checks */
+    public static final int PHASE_EXTENSIONS = 1;
+    /** X509_check_trust on the chain root */
+    public static final int PHASE_TRUST = 2;
+    /** check_revocation, CRL retrieval included */
+    public static final int PHASE_REVOCATION = 3;
+    /** Retrieving CRLs through getCRL */
+    public static final int PHASE_CRL_LOOKUP = 4;
+    /** internal_verify: signatures and validity periods */
+    public static final int PHASE_SIGNATURE = 5;
+    /** check_policy */
+    public static final int PHASE_POLICY = 6;
+    /** The whole of X509_verify_cert */
+    public static final int PHASE_TOTAL = 7;
+
+    public static final int PHASES = 8;
+    public static final int BUCKETS = 24;
+
+    private static final String[] PHASE_NAMES = {
+        "chain", "extensions", "trust", "revocation", "crl_lookup", "signature", "policy", "total"
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES);
+    private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(PHASES);
+    private final AtomicLongArray histogram = new AtomicLongArray(PHASES * BUCKETS);
+    private final ConcurrentHashMap<Lookup, AtomicLongArray> lookups = new ConcurrentHashMap<Lookup, AtomicLongArray>();
+    private final AtomicLong since = new AtomicLong(System.currentTimeMillis());
+
+    public static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    public void record(int phase, long elapsed) {
+        if(elapsed < 0) {
+            elapsed = 0;
+        }
+        counts.incrementAndGet(phase);
+        nanos.addAndGet(phase, elapsed);
+        histogram.incrementAndGet(phase * BUCKETS + bucket(elapsed));
+        long max;
+        while(elapsed > (max = maxNanos.get(phase))) {
+            if(maxNanos.compareAndSet(phase, max, elapsed)) {
+                break;
+            }
+        }
+    }
+
+    public void recordLookup(Lookup lu, boolean hit) {
+        AtomicLongArray c = lookups.get(lu);
+        if(c == null) {
+            c = new AtomicLongArray(2);
+            AtomicLongArray prev = lookups.putIfAbsent(lu, c);
+            if(prev != null) {
+                c = prev;
+            }
+        }
+        c.incrementAndGet(hit ? 0 : 1);
+    }
+
+    public long getCount(int phase) {
+        return counts.get(phase);
+    }
+
+    public long getTotalNanos(int phase) {
+        return nanos.get(phase);
+    }
+
+    public long getMaxNanos(int phase) {
+        return maxNanos.get(phase);
+    }
+
+    public long[] getHistogram(int phase) {
+        long[] h = new long[BUCKETS];
+        for(int i=0;i<BUCKETS;i++) {
+            h[i] = histogram.get(phase * BUCKETS + i);
+        }
+        return h;
+    }
+
+    public Lookup[] getLookups() {
+        return lookups.keySet().toArray(new Lookup[0]);
+    }
+
+    public long getLookupHits(Lookup lu) {
+        AtomicLongArray c = lookups.get(lu);
+        return c == null ? 0 : c.get(0);
+    }
+
+    public long getLookupMisses(Lookup lu) {
+        AtomicLongArray c = lookups.get(lu);
+        return c == null ? 0 : c.get(1);
+    }
+
+    /**
+     * Wall clock time in milliseconds at which collection started or
+     * was last reset.
+     */
+    public long getSince() {
+        return since.get();
+    }
+
+    public void reset() {
+        for(int i=0;i<PHASES;i++) {
+            counts.set(i, 0);
+            nanos.set(i, 0);
+            maxNanos.set(i, 0);
+        }
+        for(int i=0;i<PHASES * BUCKETS;i++) {
+            histogram.set(i, 0);
+        }
+        lookups.clear();
+        since.set(System.currentTimeMillis());
+    }
+}// VerifyStats
@@ -43,6 +43,8 @@ import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Collection;
 import java.util.List;
@@ -50,8 +52,16 @@ import java.util.Set;
 
 import javax.security.auth.x500.X500Principal;
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DEREncodable;
 import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.X509Name;
 
 /**
  * Since regular X509Certificate doesn't represent the Aux part of a
@@ -66,7 +76,20 @@ public class X509AuxCertificate extends X509Certificate {
     private final X509Aux aux;
 
     private boolean valid = false;
-    private int ex_flags = 0;
+
+    /* Extension values cached by cacheExtensions(). ex_flags is written
+     * last and carries EXFLAG_SET, so the other fields are safe to read
+     * once it is seen. */
+    private volatile int ex_flags = 0;
+    private int ex_pathlen = -1;
+    private int ex_kusage = 0;
+    private int ex_xkusage = 0;
+    private int ex_nscert = 0;
+    private List<String> ex_xku = null;
+    private byte[] skid = null;
+    private byte[] akid_keyid = null;
+    private BigInteger akid_serial = null;
+    private Name akid_issuer = null;
     
     public X509AuxCertificate(X509Certificate wrap) {
         this(wrap,null);
@@ -91,6 +114,7 @@ public class X509AuxCertificate extends X509Certificate {
     }
 
     public int getExFlags() {
+        cacheExtensions();
         return ex_flags;
     }
 
@@ -98,6 +122,231 @@ public class X509AuxCertificate extends X509Certificate {
         this.ex_flags = ex_flags;
     }
 
+    private static final String BASIC_CONSTRAINTS_OID = "2.5.29.19";
+    private static final String SUBJECT_KEY_ID_OID = "2.5.29.14";
+    private static final String AUTHORITY_KEY_ID_OID = "2.5.29.35";
+    private static final String PROXY_CERT_INFO_OID = "1.3.6.1.5.5.7.1.14";
+
+    /**
+     * c: x509v3_cache_extensions
+     */
+    public void cacheExtensions() {
+        if((ex_flags & X509Utils.EXFLAG_SET) != 0) {
+            return;
+        }
+        synchronized(this) {
+            if((ex_flags & X509Utils.EXFLAG_SET) != 0) {
+                return;
+            }
+            int flags = 0;
+
+            if(getVersion() == 1) {
+                flags |= X509Utils.EXFLAG_V1;
+            }
+
+            if(getExtensionValue(BASIC_CONSTRAINTS_OID) != null) {
+                flags |= X509Utils.EXFLAG_BCONS;
+                int bc = getBasicConstraints();
+                if(bc != -1) {
+                    flags |= X509Utils.EXFLAG_CA;
+                    ex_pathlen = (bc == Integer.MAX_VALUE) ? -1 : bc;
+                }
+            }
+
+            boolean[] ku = getKeyUsage();
+            if(ku != null) {
+                flags |= X509Utils.EXFLAG_KUSAGE;
+                ex_kusage = keyUsageBits(ku);
+            }
+
+            try {
+                List<String> xku = getExtendedKeyUsage();
+                if(xku != null) {
+                    flags |= X509Utils.EXFLAG_XKUSAGE;
+                    ex_xku = Collections.unmodifiableList(xku);
+                    ex_xkusage = extendedKeyUsageBits(xku);
+                }
+            } catch(CertificateParsingException e) {
+                flags |= X509Utils.EXFLAG_INVALID;
+            }
+
+            try {
+                Integer ns = getNsCertType();
+                if(ns != null) {
+                    flags |= X509Utils.EXFLAG_NSCERT;
+                    ex_nscert = ns.intValue();
+                }
+            } catch(Exception e) {
+                flags |= X509Utils.EXFLAG_INVALID;
+            }
+
+            try {
+                byte[] ext = getExtensionValue(SUBJECT_KEY_ID_OID);
+                if(ext != null) {
+                    skid = ((ASN1OctetString)extensionContents(ext)).getOctets();
+                }
+            } catch(Exception e) {
+                flags |= X509Utils.EXFLAG_INVALID;
+            }
+
+            try {
+                byte[] ext = getExtensionValue(AUTHORITY_KEY_ID_OID);
+                if(ext != null) {
+                    cacheAuthorityKeyIdentifier(extensionContents(ext));
+                }
+            } catch(Exception e) {
+                flags |= X509Utils.EXFLAG_INVALID;
+            }
+
+            if(getExtensionValue(PROXY_CERT_INFO_OID) != null) {
+                flags |= X509Utils.EXFLAG_PROXY;
+            }
+
+            if(getSubjectX500Principal().equals(getIssuerX500Principal())) {
+                if(skid == null || akid_keyid == null || Arrays.equals(skid, akid_keyid)) {
+                    flags |= X509Utils.EXFLAG_SS;
+                }
+            }
+
+            ex_flags |= flags | X509Utils.EXFLAG_SET;
+        }
+    }
+
+    private static Object extensionContents(byte[] ext) throws IOException {
+        Object outer = new ASN1InputStream(ext).readObject();
+        return new ASN1InputStream(((ASN1OctetString)outer).getOctets()).readObject();
+    }
+
+    private void cacheAuthorityKeyIdentifier(Object key) {
+        ASN1Sequence seq = (ASN1Sequence)key;
+        AuthorityKeyIdentifier akid;
+        if(seq.size() == 1 && (seq.getObjectAt(0) instanceof ASN1OctetString)) {
+            akid = new AuthorityKeyIdentifier(new DERSequence(new DERTaggedObject(0, seq.getObjectAt(0))));
+        } else {
+            akid = new AuthorityKeyIdentifier(seq);
+        }
+        akid_keyid = akid.getKeyIdentifier();
+        akid_serial = akid.getAuthorityCertSerialNumber();
+        if(akid.getAuthorityCertIssuer() != null) {
+            GeneralName[] gens = akid.getAuthorityCertIssuer().getNames();
+            for(int i=0;i<gens.length;i++) {
+                if(gens[i].getTagNo() == GeneralName.directoryName) {
+                    DEREncodable nameTmp = gens[i].getName();
+                    if(nameTmp instanceof X509Name) {
+                        akid_issuer = new Name((X509Name)nameTmp);
+                    } else if(nameTmp instanceof DERSequence) {
+                        akid_issuer = new Name(new X509Name((DERSequence)nameTmp));
+                    } else {
+                        throw new IllegalArgumentException("unknown name type in authority key identifier: " + nameTmp);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int keyUsageBits(boolean[] ku) {
+        int bits = 0;
+        for(int i=0;i<ku.length && i<9;i++) {
+            if(ku[i]) {
+                bits |= (i < 8) ? (0x80 >> i) : X509Utils.KU_DECIPHER_ONLY;
+            }
+        }
+        return bits;
+    }
+
+    private static int extendedKeyUsageBits(List<String> xku) {
+        int bits = 0;
+        for(String oid : xku) {
+            if("1.3.6.1.5.5.7.3.1".equals(oid)) {
+                bits |= X509Utils.XKU_SSL_SERVER;
+            } else if("1.3.6.1.5.5.7.3.2".equals(oid)) {
+                bits |= X509Utils.XKU_SSL_CLIENT;
+            } else if("1.3.6.1.5.5.7.3.4".equals(oid)) {
+                bits |= X509Utils.XKU_SMIME;
+            } else if("1.3.6.1.5.5.7.3.3".equals(oid)) {
+                bits |= X509Utils.XKU_CODE_SIGN;
+            } else if("2.16.840.1.113730.4.1".equals(oid) || "1.3.6.1.4.1.311.10.3.3".equals(oid)) {
+                bits |= X509Utils.XKU_SGC;
+            } else if("1.3.6.1.5.5.7.3.9".equals(oid)) {
+                bits |= X509Utils.XKU_OCSP_SIGN;
+            } else if("1.3.6.1.5.5.7.3.8".equals(oid)) {
+                bits |= X509Utils.XKU_TIMESTAMP;
+            } else if("1.3.6.1.5.5.7.3.10".equals(oid)) {
+                bits |= X509Utils.XKU_DVCS;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * c: ku_reject
+     */
+    public boolean keyUsageRejects(int usage) {
+        cacheExtensions();
+        return (ex_flags & X509Utils.EXFLAG_KUSAGE) != 0 && (ex_kusage & usage) == 0;
+    }
+
+    /**
+     * c: xku_reject
+     */
+    public boolean extendedKeyUsageRejects(int usage) {
+        cacheExtensions();
+        return (ex_flags & X509Utils.EXFLAG_XKUSAGE) != 0 && (ex_xkusage & usage) == 0;
+    }
+
+    /**
+     * c: ns_reject
+     */
+    public boolean nsCertTypeRejects(int usage) {
+        cacheExtensions();
+        return (ex_flags & X509Utils.EXFLAG_NSCERT) != 0 && (ex_nscert & usage) == 0;
+    }
+
+    /**
+     * The cached extended key usage OIDs, or null if the extension is absent.
+     */
+    public List<String> getCachedExtendedKeyUsage() {
+        cacheExtensions();
+        return ex_xku;
+    }
+
+    /**
+     * The cached netscape cert type bits, only meaningful with EXFLAG_NSCERT.
+     */
+    public int getNsCertTypeBits() {
+        cacheExtensions();
+        return ex_nscert;
+    }
+
+    /**
+     * The basicConstraints path length, or -1 if not limited.
+     */
+    public int getPathLength() {
+        cacheExtensions();
+        return ex_pathlen;
+    }
+
+    public byte[] getSubjectKeyIdentifier() {
+        cacheExtensions();
+        return skid;
+    }
+
+    public byte[] getAuthorityKeyIdentifier() {
+        cacheExtensions();
+        return akid_keyid;
+    }
+
+    public BigInteger getAuthorityKeySerial() {
+        cacheExtensions();
+        return akid_serial;
+    }
+
+    public Name getAuthorityKeyIssuer() {
+        cacheExtensions();
+        return akid_issuer;
+    }
+
     public void checkValidity() throws CertificateExpiredException, CertificateNotYetValidException { wrap.checkValidity(); }
     public void 	checkValidity(Date date) throws CertificateExpiredException, CertificateNotYetValidException { wrap.checkValidity(date); }
     public int 	getBasicConstraints()  { return wrap.getBasicConstraints(); }
@@ -27,17 +27,31 @@
  ***** END LICENSE BLOCK *****/
 package org.jruby.ext.openssl.x509store;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * Used to handle OpenSSL errors in a sane way. These are not safe for
- * multi runtimes at the moments.
+ * Used to handle OpenSSL errors in a sane way. Each thread keeps its own
+ * fixed size ring of reason codes, like OpenSSL's ERR_STATE, so recording
+ * an error neither locks nor allocates. When the ring is full the oldest
+ * entry is overwritten. Stack traces are only captured when the
+ * jruby.openssl.debug system property is true.
  * 
  * @author <a href="mailto:ola.bini@ki.se">Ola Bini</a>
  */
 public class X509Error {
-    private static ThreadLocal<List<ErrorException>> errors = new ThreadLocal<List<ErrorException>>();
+    /**
+     * c: ERR_NUM_ERRORS
+     */
+    public static final int ERR_NUM_ERRORS = 16;
+
+    private static final boolean DEBUG;
+    static {
+        boolean debug = false;
+        try {
+            debug = Boolean.getBoolean("jruby.openssl.debug");
+        } catch (SecurityException e) {
+            // just ignore if we can't read system properties
+        }
+        DEBUG = debug;
+    }
 
     public static class ErrorException extends Exception {
         private static final long serialVersionUID = -3214495184277468063L;
@@ -52,19 +66,168 @@ public class X509Error {
         }
     }
 
-    public static synchronized void addError(int reason) {
-        List<ErrorException> errs = errors.get();
-        if(errs == null) {
-            errs = new ArrayList<ErrorException>();
-            errors.set(errs);
+    /* c: ERR_STATE
+     *
+     * Kept in JDK types only, so the per thread value does not pin
+     * this class loader to threads that outlive the runtime. */
+    private static final int REASONS = 0;
+    private static final int FUNCTIONS = 1;
+    private static final int LINES = 2;
+    private static final int TRACES = 3;
+    private static final int ENDS = 4;
+    private static final int TOP = 0;
+    private static final int BOTTOM = 1;
+
+    private static final ThreadLocal<Object[]> errors = new ThreadLocal<Object[]>();
+
+    private static Object[] state() {
+        Object[] es = errors.get();
+        if(es == null) {
+            es = new Object[] {
+                new int[ERR_NUM_ERRORS],
+                new String[ERR_NUM_ERRORS],
+                new int[ERR_NUM_ERRORS],
+                DEBUG ? new StackTraceElement[ERR_NUM_ERRORS][] : null,
+                new int[2] };
+            errors.set(es);
+        }
+        return es;
+    }
+
+    private static void put(int reason, String function, int line) {
+        Object[] es = state();
+        int[] ends = (int[])es[ENDS];
+        int top = ends[TOP] = (ends[TOP] + 1) % ERR_NUM_ERRORS;
+        if(top == ends[BOTTOM]) {
+            ends[BOTTOM] = (ends[BOTTOM] + 1) % ERR_NUM_ERRORS;
+        }
+        ((int[])es[REASONS])[top] = reason;
+        ((String[])es[FUNCTIONS])[top] = function;
+        ((int[])es[LINES])[top] = line;
+        if(es[TRACES] != null) {
+            ((StackTraceElement[][])es[TRACES])[top] = new Throwable().getStackTrace();
+        }
+    }
+
+    private static void clear(Object[] es, int i) {
+        ((int[])es[REASONS])[i] = 0;
+        ((String[])es[FUNCTIONS])[i] = null;
+        ((int[])es[LINES])[i] = 0;
+        if(es[TRACES] != null) {
+            ((StackTraceElement[][])es[TRACES])[i] = null;
+        }
+    }
+
+    /* the slot of the most recent error, or -1 if there is none */
+    private static int last(Object[] es) {
+        if(es == null) {
+            return -1;
+        }
+        int[] ends = (int[])es[ENDS];
+        return ends[BOTTOM] == ends[TOP] ? -1 : ends[TOP];
+    }
+
+    /**
+     * c: ERR_put_error
+     */
+    public static void addError(int reason) {
+        put(reason, null, 0);
+    }
+
+    /**
+     * c: ERR_put_error
+     */
+    public static void addError(int reason, String function, int line) {
+        put(reason, function, line);
+    }
+
+    /**
+     * c: ERR_clear_error
+     */
+    public static void clearErrors() {
+        Object[] es = errors.get();
+        if(es == null) {
+            return;
+        }
+        for(int i=0;i<ERR_NUM_ERRORS;i++) {
+            clear(es, i);
+        }
+        int[] ends = (int[])es[ENDS];
+        ends[TOP] = ends[BOTTOM] = 0;
+    }
+
+    /**
+     * c: ERR_remove_thread_state
+     */
+    public static void removeErrors() {
+        errors.remove();
+    }
+
+    /**
+     * c: ERR_get_error
+     */
+    public static int getError() {
+        Object[] es = errors.get();
+        if(last(es) < 0) {
+            return 0;
         }
-        errs.add(new ErrorException(reason));
+        int[] ends = (int[])es[ENDS];
+        int i = ends[BOTTOM] = (ends[BOTTOM] + 1) % ERR_NUM_ERRORS;
+        int reason = ((int[])es[REASONS])[i];
+        clear(es, i);
+        return reason;
+    }
+
+    /**
+     * c: ERR_peek_error
+     */
+    public static int peekError() {
+        Object[] es = errors.get();
+        if(last(es) < 0) {
+            return 0;
+        }
+        return ((int[])es[REASONS])[(((int[])es[ENDS])[BOTTOM] + 1) % ERR_NUM_ERRORS];
+    }
+
+    /**
+     * c: ERR_peek_last_error
+     */
+    public static int peekLastError() {
+        Object[] es = errors.get();
+        int i = last(es);
+        return i < 0 ? 0 : ((int[])es[REASONS])[i];
+    }
+
+    /**
+     * Function name recorded with the most recent error, or null.
+     */
+    public static String peekLastErrorFunction() {
+        Object[] es = errors.get();
+        int i = last(es);
+        return i < 0 ? null : ((String[])es[FUNCTIONS])[i];
+    }
+
+    /**
+     * Line recorded with the most recent error, or 0.
+     */
+    public static int peekLastErrorLine() {
+        Object[] es = errors.get();
+        int i = last(es);
+        return i < 0 ? 0 : ((int[])es[LINES])[i];
     }
 
-    public static synchronized void clearErrors() {
-        List<ErrorException> errs = errors.get();
-        if(errs != null) {
-            errs.clear();
+    /**
+     * Stack trace of the most recent error; null unless
+     * jruby.openssl.debug is set.
+     */
+    public static ErrorException peekLastErrorTrace() {
+        Object[] es = errors.get();
+        int i = last(es);
+        if(i < 0 || es[TRACES] == null) {
+            return null;
         }
+        ErrorException e = new ErrorException(((int[])es[REASONS])[i]);
+        e.setStackTrace(((StackTraceElement[][])es[TRACES])[i]);
+        return e;
     }
 }// Err
@@ -39,11 +39,15 @@ public abstract class X509Object implements Comparable<X509Object> {
      * c: X509_OBJECT_idx_by_subject
      */
     public static int indexBySubject(List<? extends X509Object> h, int type, Name name) {
+        if(h instanceof X509ObjectTable) {
+            return ((X509ObjectTable)h).indexBySubject(type, name);
+        }
         int ix = 0;
         for(X509Object oo : h) {
             if(type == oo.type() && oo.isName(name)) {
                 return ix;
             }
+            ix++;
         }
         return -1;
     }
@@ -52,6 +56,9 @@ public abstract class X509Object implements Comparable<X509Object> {
      * c: X509_OBJECT_retrieve_by_subject
      */
     public static X509Object retrieveBySubject(List<? extends X509Object> h,int type,Name name) {
+        if(h instanceof X509ObjectTable) {
+            return ((X509ObjectTable)h).retrieveBySubject(type, name);
+        }
         for(X509Object o : h) {
             if(type == o.type() && o.isName(name)) {
                 return o;
@@ -64,6 +71,9 @@ public abstract class X509Object implements Comparable<X509Object> {
      * c: X509_OBJECT_retrieve_match
      */
     public static X509Object retrieveMatch(List<? extends X509Object> h, X509Object x) {
+        if(h instanceof X509ObjectTable) {
+            return ((X509ObjectTable)h).retrieveMatch(x);
+        }
         for(X509Object o : h) {
             if(o.matches(x)) {
                 return o;
@@ -0,0 +1,434 @@
+/***** BEGIN LICENSE BLOCK *****
+ * Version: CPL 1.0/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Common Public
+ * License Version 1.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either of the GNU General Public License Version 2 or later (the "GPL"),
+ * or the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the CPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the CPL, the GPL or the LGPL.
+ ***** END LICENSE BLOCK *****/
+package org.jruby.ext.openssl.x509store;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509CRL;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The objects held by a Store. Keeps insertion order like the plain
+ * list did, and additionally indexes certificates by subject and CRLs
+ * by issuer (canonical Name) so that lookups don't have to walk every
+ * object. Certificates carrying a subject key identifier are also
+ * indexed by it, for AKID-directed issuer selection.
+ * Certificates are deduplicated by their SHA-1 fingerprint.
+ *
+ * A Store publishes frozen snapshots of its table (see snapshot())
+ * which can be read from any thread without locking. A snapshot shares
+ * the objects and indexes of the table it was taken from and sees only
+ * the objects that were there at the time: additions are appended in
+ * place, at positions past the snapshot's end, so taking a snapshot
+ * copies nothing and loading certificates one lookup at a time stays
+ * linear. Replacing or removing a CRL moves the table to a fresh copy
+ * of its contents, leaving the one its snapshots read untouched.
+ *
+ * Frozen tables parsed from CA files are shared between stores (see
+ * TrustStoreRegistry) by layering them under a store's own objects:
+ * they come after its own objects in iteration order, and lookups
+ * consult them after its own indexes. A store's own CRL shadows a
+ * shared one from the same issuer.
+ *
+ * c: STACK_OF(X509_OBJECT) in X509_STORE
+ */
+public class X509ObjectTable extends AbstractList<X509Object> {
+    /* Objects by position, and indexes from key to the positions of
+     * the objects under it, in ascending order. Only ever appended to;
+     * a table reads the first count positions. */
+    private static final class Core {
+        volatile X509Object[] items = new X509Object[16];
+        final Map<Name, int[]> certificates = new ConcurrentHashMap<Name, int[]>();
+        final Map<Name, int[]> crls = new ConcurrentHashMap<Name, int[]>();
+        final Map<ByteBuffer, int[]> keyIdentifiers = new ConcurrentHashMap<ByteBuffer, int[]>();
+        final Map<ByteBuffer, Integer> fingerprints = new ConcurrentHashMap<ByteBuffer, Integer>();
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private Core core = new Core();
+    private int count;
+    private final List<X509ObjectTable> shared;
+    private boolean frozen;
+
+    public X509ObjectTable() {
+        shared = new ArrayList<X509ObjectTable>();
+    }
+
+    private X509ObjectTable(X509ObjectTable other) {
+        core = other.core;
+        count = other.count;
+        shared = new ArrayList<X509ObjectTable>(other.shared);
+        frozen = true;
+    }
+
+    /**
+     * Returns an immutable view of this table as it is now.
+     */
+    public X509ObjectTable snapshot() {
+        return new X509ObjectTable(this);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public X509Object get(int index) {
+        if(index >= 0 && index < count) {
+            return core.items[index];
+        }
+        index -= count;
+        for(X509ObjectTable t : shared) {
+            if(index < t.size()) {
+                return t.get(index);
+            }
+            index -= t.size();
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    public int size() {
+        int n = count;
+        for(X509ObjectTable t : shared) {
+            n += t.size();
+        }
+        return n;
+    }
+
+    /**
+     * Layers the frozen table t under this one in place of old, or
+     * after the others if old is null or not there.
+     */
+    public void replaceShared(X509ObjectTable old, X509ObjectTable t) {
+        if(frozen) {
+            throw new UnsupportedOperationException("frozen X509ObjectTable");
+        }
+        if(!t.frozen) {
+            throw new IllegalArgumentException("only frozen tables can be shared");
+        }
+        for(int i = 0; i < shared.size(); i++) {
+            if(shared.get(i) == old) {
+                shared.set(i, t);
+                modCount++;
+                return;
+            }
+        }
+        shared.add(t);
+        modCount++;
+    }
+
+    /**
+     * The frozen tables layered under this one.
+     */
+    public List<X509ObjectTable> getShared() {
+        return Collections.unmodifiableList(shared);
+    }
+
+    /**
+     * Adds the object unless a matching one is already present.
+     * Returns false for duplicates.
+     */
+    @Override
+    public boolean add(X509Object o) {
+        if(frozen) {
+            throw new UnsupportedOperationException("frozen X509ObjectTable");
+        }
+        Name key = nameOf(o);
+        if(key == null) {
+            return false;
+        }
+        if(o instanceof Certificate) {
+            ByteBuffer fp = fingerprint((Certificate)o);
+            if(fp == null || hasSharedFingerprint(fp) || hasFingerprint(fp)) {
+                return false;
+            }
+        } else if(retrieveMatch(o) != null) {
+            return false;
+        }
+        append(o, key);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Puts the CRL o in place of the CRL from the same issuer, or adds
+     * it if there is none. Returns the CRL that was replaced, or null.
+     */
+    public X509Object replace(CRL o) {
+        if(frozen) {
+            throw new UnsupportedOperationException("frozen X509ObjectTable");
+        }
+        X509Object old = retrieveMatch(o);
+        if(old == null) {
+            add(o);
+            return null;
+        }
+        int at = ownPosition(old);
+        if(at < 0) {
+            /* old is in a shared table; shadow it */
+            append(o, nameOf(o));
+        } else {
+            List<X509Object> own = ownObjects();
+            own.set(at, o);
+            rebuild(own);
+        }
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Removes the CRL o itself (not one matching it) from this table's
+     * own objects, uncovering a shared CRL it shadowed. Returns false if
+     * o is not there.
+     */
+    public boolean removeCRL(CRL o) {
+        if(frozen) {
+            throw new UnsupportedOperationException("frozen X509ObjectTable");
+        }
+        int at = ownPosition(o);
+        if(at < 0) {
+            return false;
+        }
+        List<X509Object> own = ownObjects();
+        own.remove(at);
+        rebuild(own);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * c: X509_OBJECT_retrieve_by_subject
+     */
+    public X509Object retrieveBySubject(int type, Name name) {
+        int[] bucket = bucket(type, name);
+        if(bucket.length > 0 && bucket[0] < count) {
+            return core.items[bucket[0]];
+        }
+        for(X509ObjectTable t : shared) {
+            X509Object o = t.retrieveBySubject(type, name);
+            if(o != null) {
+                return o;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All objects of the given type whose subject (or CRL issuer) is
+     * name, in insertion order.
+     */
+    public List<X509Object> retrieveAllBySubject(int type, Name name) {
+        List<X509Object> all = visible(bucket(type, name));
+        if(shared.isEmpty() || (type == X509Utils.X509_LU_CRL && !all.isEmpty())) {
+            return Collections.unmodifiableList(all);
+        }
+        for(X509ObjectTable t : shared) {
+            all.addAll(t.retrieveAllBySubject(type, name));
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * All certificates whose subject key identifier is keyId, in
+     * insertion order.
+     */
+    public List<X509Object> retrieveByKeyIdentifier(byte[] keyId) {
+        if(keyId == null) {
+            return Collections.emptyList();
+        }
+        int[] bucket = core.keyIdentifiers.get(ByteBuffer.wrap(keyId));
+        List<X509Object> all = visible(bucket == null ? NONE : bucket);
+        for(X509ObjectTable t : shared) {
+            all.addAll(t.retrieveByKeyIdentifier(keyId));
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * c: X509_OBJECT_idx_by_subject
+     */
+    public int indexBySubject(int type, Name name) {
+        X509Object first = retrieveBySubject(type, name);
+        return first == null ? -1 : indexOf(first);
+    }
+
+    /**
+     * c: X509_OBJECT_retrieve_match
+     */
+    public X509Object retrieveMatch(X509Object x) {
+        Name key = nameOf(x);
+        if(key == null) {
+            return null;
+        }
+        X509Object[] items = core.items;
+        for(int p : bucket(x.type(), key)) {
+            if(p >= count) {
+                break;
+            }
+            if(items[p].matches(x)) {
+                return items[p];
+            }
+        }
+        for(X509ObjectTable t : shared) {
+            X509Object o = t.retrieveMatch(x);
+            if(o != null) {
+                return o;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasFingerprint(ByteBuffer fp) {
+        Integer p = core.fingerprints.get(fp);
+        return p != null && p.intValue() < count;
+    }
+
+    private boolean hasSharedFingerprint(ByteBuffer fp) {
+        for(X509ObjectTable t : shared) {
+            if(t.hasFingerprint(fp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* writes o at position count, then indexes it; tables sharing the
+     * core only read below their own count, so they never see it */
+    private void append(X509Object o, Name key) {
+        Core c = core;
+        X509Object[] items = c.items;
+        if(count == items.length) {
+            X509Object[] grown = new X509Object[items.length * 2];
+            System.arraycopy(items, 0, grown, 0, count);
+            items = grown;
+        }
+        items[count] = o;
+        c.items = items;
+        addTo(tableFor(o.type()), key, count);
+        if(o instanceof Certificate) {
+            byte[] skid = ((Certificate)o).getKeyIdentifier();
+            if(skid != null) {
+                addTo(c.keyIdentifiers, ByteBuffer.wrap(skid), count);
+            }
+            c.fingerprints.put(fingerprint((Certificate)o), Integer.valueOf(count));
+        }
+        count++;
+    }
+
+    /* moves this table to a fresh core holding own, leaving the old
+     * one to the snapshots reading it */
+    private void rebuild(List<X509Object> own) {
+        core = new Core();
+        count = 0;
+        for(X509Object o : own) {
+            append(o, nameOf(o));
+        }
+    }
+
+    private List<X509Object> ownObjects() {
+        List<X509Object> own = new ArrayList<X509Object>(count);
+        X509Object[] items = core.items;
+        for(int i = 0; i < count; i++) {
+            own.add(items[i]);
+        }
+        return own;
+    }
+
+    private int ownPosition(X509Object o) {
+        X509Object[] items = core.items;
+        for(int p : bucket(o.type(), nameOf(o))) {
+            if(p >= count) {
+                break;
+            }
+            if(items[p] == o) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private List<X509Object> visible(int[] bucket) {
+        List<X509Object> objects = new ArrayList<X509Object>(bucket.length);
+        X509Object[] items = core.items;
+        for(int p : bucket) {
+            if(p >= count) {
+                break;
+            }
+            objects.add(items[p]);
+        }
+        return objects;
+    }
+
+    private int[] bucket(int type, Name name) {
+        Map<Name, int[]> table = tableFor(type);
+        if(table == null || name == null) {
+            return NONE;
+        }
+        int[] bucket = table.get(name);
+        return bucket == null ? NONE : bucket;
+    }
+
+    private Map<Name, int[]> tableFor(int type) {
+        switch(type) {
+        case X509Utils.X509_LU_X509:
+            return core.certificates;
+        case X509Utils.X509_LU_CRL:
+            return core.crls;
+        default:
+            return null;
+        }
+    }
+
+    /* a new array each time, so readers holding the old one are unaffected */
+    private static <K> void addTo(Map<K, int[]> table, K key, int p) {
+        int[] bucket = table.get(key);
+        int n = bucket == null ? 0 : bucket.length;
+        int[] grown = new int[n + 1];
+        if(n > 0) {
+            System.arraycopy(bucket, 0, grown, 0, n);
+        }
+        grown[n] = p;
+        table.put(key, grown);
+    }
+
+    private static Name nameOf(X509Object o) {
+        if(o instanceof Certificate) {
+            return ((Certificate)o).getSubject();
+        } else if(o instanceof CRL) {
+            return Name.of(((X509CRL)((CRL)o).crl).getIssuerX500Principal());
+        }
+        return null;
+    }
+
+    private static ByteBuffer fingerprint(Certificate o) {
+        return ByteBuffer.wrap(o.getFingerprint());
+    }
+}// X509_OBJECT table
@@ -28,18 +28,8 @@
 package org.jruby.ext.openssl.x509store;
 
 
+import java.math.BigInteger;
 import java.util.Arrays;
-import org.bouncycastle.asn1.ASN1InputStream;
-import org.bouncycastle.asn1.ASN1OctetString;
-import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.DEREncodable;
-import org.bouncycastle.asn1.DEROctetString;
-import org.bouncycastle.asn1.DERSequence;
-import org.bouncycastle.asn1.DERTaggedObject;
-import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
-import org.bouncycastle.asn1.x509.GeneralName;
-import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
-import org.bouncycastle.asn1.x509.X509Name;
 
 /**
  * Contains most of the functionality that beings with X509 in
@@ -99,6 +89,8 @@ public abstract class X509Utils {
 	switch(n){
         case V_OK:
             return("ok");
+	case V_ERR_UNSPECIFIED:
+            return("unspecified certificate verification error");
 	case V_ERR_UNABLE_TO_GET_ISSUER_CERT:
             return("unable to get issuer certificate");
 	case V_ERR_UNABLE_TO_GET_CRL:
@@ -185,88 +177,47 @@ public abstract class X509Utils {
             return("invalid or inconsistent certificate policy extension");
 	case V_ERR_NO_EXPLICIT_POLICY:
             return("no explicit policy");
+	case V_ERR_OCSP_VERIFY_FAILED:
+            return("OCSP verification failed");
+	case V_ERR_OCSP_CERT_UNKNOWN:
+            return("OCSP unknown cert");
 	default:
             return "error number " + n;
         }
     }
 
-    private static Object get(Object str) throws Exception {
-        return get(((DEROctetString)str).getOctets());
-    }
-    
-    private static Object get(byte[] str) throws Exception {
-        return new ASN1InputStream(str).readObject();
-    }
-
     /**
      * c: X509_check_issued
      */
     public static int checkIfIssuedBy(X509AuxCertificate issuer, X509AuxCertificate subject) throws Exception { 
+        if(((issuer.getExFlags() | subject.getExFlags()) & EXFLAG_INVALID) != 0) {
+            return V_ERR_UNSPECIFIED;
+        }
         if(!issuer.getSubjectX500Principal().equals(subject.getIssuerX500Principal())) {
             return V_ERR_SUBJECT_ISSUER_MISMATCH;
         }
 
-        if(subject.getExtensionValue("2.5.29.35") != null) { //authorityKeyID
-            // I hate ASN1 and DER
-            Object key = get(subject.getExtensionValue("2.5.29.35"));
-            if(!(key instanceof ASN1Sequence)) {
-                key = get(key);
-            }
-            
-            ASN1Sequence seq = (ASN1Sequence)key;
-            AuthorityKeyIdentifier sakid = null;
-            if(seq.size() == 1 && (seq.getObjectAt(0) instanceof ASN1OctetString)) {
-                sakid = new AuthorityKeyIdentifier(new DERSequence(new DERTaggedObject(0, seq.getObjectAt(0))));
-            } else {
-                sakid = new AuthorityKeyIdentifier(seq);
-            }
-
-            if(sakid.getKeyIdentifier() != null) {
-                if(issuer.getExtensionValue("2.5.29.14") != null) {
-                    DEROctetString der = (DEROctetString)get(issuer.getExtensionValue("2.5.29.14"));
-                    if(der.getOctets().length > 20) {
-                        der = (DEROctetString)get(der.getOctets());
-                    }
-                    SubjectKeyIdentifier iskid = new SubjectKeyIdentifier(der);
-                    if(iskid.getKeyIdentifier() != null) {
-                        if(!Arrays.equals(sakid.getKeyIdentifier(),iskid.getKeyIdentifier())) {
-                            return V_ERR_AKID_SKID_MISMATCH;
-                        }
-                    }
-                }
-            }
-            if(sakid.getAuthorityCertSerialNumber() != null && !sakid.getAuthorityCertSerialNumber().equals(issuer.getSerialNumber())) {
-                return V_ERR_AKID_ISSUER_SERIAL_MISMATCH;
-            }
-            if(sakid.getAuthorityCertIssuer() != null) {
-                GeneralName[] gens = sakid.getAuthorityCertIssuer().getNames();
-                X509Name nm = null;
-                for(int i=0;i<gens.length;i++) {
-                    if(gens[i].getTagNo() == GeneralName.directoryName) {
-                        DEREncodable nameTmp = gens[i].getName();
-                        if (nameTmp instanceof X509Name) {
-                            nm = (X509Name)nameTmp;
-                        } else if (nameTmp instanceof DERSequence) {
-                            nm = new X509Name((DERSequence)nameTmp);
-                        } else {
-                            throw new RuntimeException("unknown name type in X509Utils: " + nameTmp);
-                        }
-                        break;
-                    }
-                }
-                if(nm != null) {
-                    if(!(new Name(nm).isEqual(issuer.getIssuerX500Principal()))) {
-                        return V_ERR_AKID_ISSUER_SERIAL_MISMATCH;
-                    }
-                }
+        byte[] akid = subject.getAuthorityKeyIdentifier();
+        if(akid != null) {
+            byte[] iskid = issuer.getSubjectKeyIdentifier();
+            if(iskid != null && !Arrays.equals(akid, iskid)) {
+                return V_ERR_AKID_SKID_MISMATCH;
             }
         }
+        BigInteger akidSerial = subject.getAuthorityKeySerial();
+        if(akidSerial != null && !akidSerial.equals(issuer.getSerialNumber())) {
+            return V_ERR_AKID_ISSUER_SERIAL_MISMATCH;
+        }
+        Name akidIssuer = subject.getAuthorityKeyIssuer();
+        if(akidIssuer != null && !akidIssuer.isEqual(issuer.getIssuerX500Principal())) {
+            return V_ERR_AKID_ISSUER_SERIAL_MISMATCH;
+        }
 
-        if(subject.getExtensionValue("1.3.6.1.5.5.7.1.14") != null) {
-            if(issuer.getKeyUsage() != null && !issuer.getKeyUsage()[0]) { // KU_DIGITAL_SIGNATURE
+        if((subject.getExFlags() & EXFLAG_PROXY) != 0) {
+            if(issuer.keyUsageRejects(KU_DIGITAL_SIGNATURE)) {
                 return V_ERR_KEYUSAGE_NO_DIGITAL_SIGNATURE;
             }
-        } else if(issuer.getKeyUsage() != null && !issuer.getKeyUsage()[5]) { // KU_KEY_CERT_SIGN
+        } else if(issuer.keyUsageRejects(KU_KEY_CERT_SIGN)) {
             return V_ERR_KEYUSAGE_NO_CERTSIGN;
         }
         return V_OK;
@@ -282,8 +233,6 @@ public abstract class X509Utils {
     public static final String X509_CERT_DIR_EVP = "SSL_CERT_DIR";
     public static final String X509_CERT_FILE_EVP = "SSL_CERT_FILE";
 
-    public static final Object CRYPTO_LOCK_X509_STORE = new Object();
-
     public static final int X509_LU_RETRY=-1;
     public static final int X509_LU_FAIL=0;
     public static final int X509_LU_X509=1;
@@ -296,8 +245,10 @@ public abstract class X509Utils {
 
     public static final int X509_L_FILE_LOAD = 1;
     public static final int X509_L_ADD_DIR = 2;
+    public static final int X509_L_ADD_BUNDLE = 3;
 
     public static final int V_OK = 0;
+    public static final int	V_ERR_UNSPECIFIED = 1;
     public static final int	V_ERR_UNABLE_TO_GET_ISSUER_CERT = 2;
     public static final int	V_ERR_UNABLE_TO_GET_CRL = 3;
     public static final int	V_ERR_UNABLE_TO_DECRYPT_CERT_SIGNATURE = 4;
@@ -346,6 +297,9 @@ public abstract class X509Utils {
 
     public static final int	V_ERR_APPLICATION_VERIFICATION = 50;
 
+    public static final int	V_ERR_OCSP_VERIFY_FAILED = 74;
+    public static final int	V_ERR_OCSP_CERT_UNKNOWN = 75;
+
     public static final int	V_FLAG_CB_ISSUER_CHECK = 0x1;
     public static final int	V_FLAG_USE_CHECK_TIME = 0x2;
     public static final int	V_FLAG_CRL_CHECK = 0x4;
@@ -446,6 +400,25 @@ public abstract class X509Utils {
     public static final int NS_OBJSIGN_CA=0x01;
     public static final int NS_ANY_CA=(NS_SSL_CA|NS_SMIME_CA|NS_OBJSIGN_CA);
 
+    public static final int KU_DIGITAL_SIGNATURE=0x0080;
+    public static final int KU_NON_REPUDIATION=0x0040;
+    public static final int KU_KEY_ENCIPHERMENT=0x0020;
+    public static final int KU_DATA_ENCIPHERMENT=0x0010;
+    public static final int KU_KEY_AGREEMENT=0x0008;
+    public static final int KU_KEY_CERT_SIGN=0x0004;
+    public static final int KU_CRL_SIGN=0x0002;
+    public static final int KU_ENCIPHER_ONLY=0x0001;
+    public static final int KU_DECIPHER_ONLY=0x8000;
+
+    public static final int XKU_SSL_SERVER=0x1;
+    public static final int XKU_SSL_CLIENT=0x2;
+    public static final int XKU_SMIME=0x4;
+    public static final int XKU_CODE_SIGN=0x8;
+    public static final int XKU_SGC=0x10;
+    public static final int XKU_OCSP_SIGN=0x20;
+    public static final int XKU_TIMESTAMP=0x40;
+    public static final int XKU_DVCS=0x80;
+
     public static final int X509V3_R_BAD_IP_ADDRESS = 118;
     public static final int X509V3_R_BAD_OBJECT = 119;
     public static final int X509V3_R_BN_DEC2BN_ERROR = 100;
@@ -527,6 +500,8 @@ public abstract class X509Utils {
     public static final int EXFLAG_CRITICAL=0x200;
     public static final int EXFLAG_PROXY=0x400;
 
+    public static final int EXFLAG_V1_ROOT=(EXFLAG_V1|EXFLAG_SS);
+
     public static final int EXFLAG_INVALID_POLICY=0x400;
 
     public static final int POLICY_FLAG_ANY_POLICY = 0x2;